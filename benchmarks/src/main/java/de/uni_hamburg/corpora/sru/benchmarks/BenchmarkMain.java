@@ -0,0 +1,38 @@
+/**
+ * @file BenchmarkMain.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JMH main that writes results as JSON to jmh-result.json unless told
+ * otherwise with -rf or -rff, so runs can be compared over time.
+ * All other arguments are JMH's, e.g. a regex of benchmarks to run.
+ * @author tpirinen
+ */
+public final class BenchmarkMain {
+
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> given = Arrays.asList(args);
+        List<String> all = new ArrayList<String>();
+        if (!given.contains("-rf")) {
+            all.add("-rf");
+            all.add("json");
+            if (!given.contains("-rff")) {
+                all.add("-rff");
+                all.add(DEFAULT_RESULT_FILE);
+            }
+        }
+        all.addAll(given);
+        org.openjdk.jmh.Main.main(all.toArray(new String[all.size()]));
+    }
+}
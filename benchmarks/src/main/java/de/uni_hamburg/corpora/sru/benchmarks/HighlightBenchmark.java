@@ -0,0 +1,78 @@
+/**
+ * @file HighlightBenchmark.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.uni_hamburg.corpora.sru.AdvancedSearchResult;
+import de.uni_hamburg.corpora.sru.AdvancedSearchResultSegment;
+import de.uni_hamburg.corpora.sru.HZSKQuery;
+import de.uni_hamburg.corpora.sru.Highlighter;
+
+/**
+ * AdvancedSearchResult.highlightSearch of a text query with 1 to 10 terms,
+ * per utterance, with the Highlighter of the query compiled once as in
+ * search results, and compiled for every utterance.
+ * @author tpirinen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HighlightBenchmark {
+
+    private static final int UTTERANCES = 64;
+
+    @Param({"1", "2", "5", "10"})
+    public int terms;
+
+    @Param({"12", "40"})
+    public int tokens;
+
+    private AdvancedSearchResultSegment[] texts;
+    private HZSKQuery query;
+
+    @Setup
+    public void setUp() {
+        Utterances generator = new Utterances(4711, 0.1);
+        texts = new AdvancedSearchResultSegment[UTTERANCES];
+        for (int i = 0; i < UTTERANCES; i++) {
+            texts[i] = generator.next(tokens).getWhole();
+        }
+        query = Utterances.query(terms);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(UTTERANCES)
+    public void highlightSearch(Blackhole bh) {
+        for (AdvancedSearchResultSegment text : texts) {
+            bh.consume(AdvancedSearchResult.highlightSearch(text, query));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(UTTERANCES)
+    public void compileAndHighlight(Blackhole bh) {
+        for (AdvancedSearchResultSegment text : texts) {
+            bh.consume(new Highlighter(query, 0).highlight(text));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * @file STTSBenchmark.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.uni_hamburg.corpora.sru.STTS2UDConverter;
+
+/**
+ * STTS2UDConverter lookups both ways, per lookup.
+ * The tags are new strings like read from the DB, not interned literals.
+ * @author tpirinen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class STTSBenchmark {
+
+    private static final int LOOKUPS = 256;
+    private static final String[] UD = {"ADJ", "ADP", "ADV", "AUX", "CONJ",
+        "DET", "INTJ", "NOUN", "NUM", "PART", "PRON", "PROPN", "PUNCT",
+        "SCONJ", "VERB", "X"};
+
+    private String[] stts;
+    private String[] ud;
+
+    @Setup
+    public void setUp() {
+        List<String> tags = Utterances.tags();
+        stts = new String[LOOKUPS];
+        ud = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            stts[i] = new String(tags.get((i * 7) % tags.size()));
+            ud[i] = new String(UD[(i * 5) % UD.length]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void fromSTTS(Blackhole bh) {
+        for (String tag : stts) {
+            bh.consume(STTS2UDConverter.fromSTTS(tag));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void toSTTS(Blackhole bh) {
+        for (String tag : ud) {
+            bh.consume(STTS2UDConverter.toSTTS(tag));
+        }
+    }
+}
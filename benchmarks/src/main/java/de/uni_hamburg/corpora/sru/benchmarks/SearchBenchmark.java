@@ -0,0 +1,120 @@
+/**
+ * @file SearchBenchmark.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.benchmarks;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.uni_hamburg.corpora.sru.AdvancedSearchResultSet;
+import de.uni_hamburg.corpora.sru.HZSKQuery;
+import de.uni_hamburg.corpora.sru.SQLCorpusConnection;
+import de.uni_hamburg.corpora.sru.testing.EmbeddedCorpusDB;
+import de.uni_hamburg.corpora.sru.testing.SyntheticCorpus;
+
+/**
+ * First result pages of searches through SQLCorpusConnection on a synthetic
+ * corpus in the embedded DB, from SQL to records with layers.
+ * The corpus is generated in memory, or with -p path=... in H2 files that
+ * are generated on first run and reused after, for corpora of millions of
+ * utterances. Use -t for concurrent searches.
+ * @author tpirinen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    private static final int PAGE = 10;
+    private static final int PAGES = 20;
+
+    @Param({"20000"})
+    public int utterances;
+
+    /** H2 files of the corpus, or empty for memory. */
+    @Param({""})
+    public String path;
+
+    private EmbeddedCorpusDB db;
+    private SQLCorpusConnection corpus;
+    private SyntheticCorpus synthetic;
+    private int page;
+
+    @Setup
+    public void setUp() throws SQLException {
+        if (path.equals("")) {
+            db = EmbeddedCorpusDB.inMemory("bench");
+        } else {
+            db = EmbeddedCorpusDB.onDisk(new File(path));
+        }
+        synthetic = new SyntheticCorpus(1);
+        if (db.isEmpty()) {
+            Connection c = db.getConnection();
+            try {
+                synthetic.generate(c, utterances);
+            } finally {
+                c.close();
+            }
+        }
+        corpus = new SQLCorpusConnection(db.getDataSource());
+        corpus.setUseFulltext(false);
+    }
+
+    /** Cycle through the first pages, H2 would return the same result of
+     *  the same query from its cache.
+     */
+    private int nextStart() {
+        page = (page + 1) % PAGES;
+        return page * PAGE;
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        db.close();
+    }
+
+    /** Word of the top ten, hits everywhere. */
+    @Benchmark
+    public AdvancedSearchResultSet commonWord() throws SQLException {
+        return corpus.query(new HZSKQuery(synthetic.getWord(3)), nextStart(),
+                PAGE);
+    }
+
+    /** Word of rank 1000, a few hits in every ten thousand utterances. */
+    @Benchmark
+    public AdvancedSearchResultSet rareWord() throws SQLException {
+        return corpus.query(new HZSKQuery(synthetic.getWord(1000)),
+                nextStart(), PAGE);
+    }
+
+    @Benchmark
+    public AdvancedSearchResultSet posTag() throws SQLException {
+        return corpus.query(new HZSKQuery("pos", "NOUN"), nextStart(),
+                PAGE);
+    }
+
+    @Benchmark
+    public AdvancedSearchResultSet lemma() throws SQLException {
+        return corpus.query(new HZSKQuery("lemma", synthetic.getLemma(6)),
+                nextStart(), PAGE);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * @file SegmentBatchBenchmark.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.benchmarks;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.uni_hamburg.corpora.sru.AdvancedSearchResultSet;
+import de.uni_hamburg.corpora.sru.HZSKQuery;
+import de.uni_hamburg.corpora.sru.SQLCorpusConnection;
+import de.uni_hamburg.corpora.sru.testing.EmbeddedCorpusDB;
+import de.uni_hamburg.corpora.sru.testing.SyntheticCorpus;
+
+/**
+ * Text search pages with segments read per hit or in one batch per page,
+ * on a synthetic corpus in the embedded DB.
+ * @author tpirinen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentBatchBenchmark {
+
+    private static final int PAGES = 20;
+
+    @Param({"20000"})
+    public int utterances;
+
+    @Param({"50"})
+    public int pageSize;
+
+    @Param({"false", "true"})
+    public boolean batched;
+
+    private EmbeddedCorpusDB db;
+    private SQLCorpusConnection corpus;
+    private SyntheticCorpus synthetic;
+    private int page;
+
+    @Setup
+    public void setUp() throws SQLException {
+        db = EmbeddedCorpusDB.inMemory("segmentbatch");
+        synthetic = new SyntheticCorpus(1);
+        Connection c = db.getConnection();
+        try {
+            synthetic.generate(c, utterances);
+        } finally {
+            c.close();
+        }
+        corpus = new SQLCorpusConnection(db.getDataSource());
+        corpus.setUseFulltext(false);
+        corpus.setBatchSegments(batched);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        db.close();
+    }
+
+    /** Cycle through the first pages, like in SearchBenchmark. */
+    private int nextStart() {
+        page = (page + 1) % PAGES;
+        return page * pageSize;
+    }
+
+    /** Word of the top ten, so that every page is full. */
+    @Benchmark
+    public AdvancedSearchResultSet commonWord() throws SQLException {
+        return corpus.query(new HZSKQuery(synthetic.getWord(3)), nextStart(),
+                pageSize);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * @file SegmentOrderBenchmark.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.uni_hamburg.corpora.sru.AdvancedSearchResult;
+import de.uni_hamburg.corpora.sru.AdvancedSearchResultSegment;
+
+/**
+ * AdvancedSearchResultSegment.compareTo and the sorting merge of layers
+ * read in several runs, AdvancedSearchResult.mergeChildLayer.
+ * The merge copies the runs first since it changes them, that is included
+ * in the times.
+ * @author tpirinen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentOrderBenchmark {
+
+    private static final int UTTERANCES = 64;
+    private static final int PAIRS = 1024;
+
+    @Param({"40"})
+    public int tokens;
+
+    /** Share of tokens with two pos tags, each starts a new run. */
+    @Param({"0.05", "0.2"})
+    public double ambiguity;
+
+    private List<List<List<AdvancedSearchResultSegment>>> posRuns;
+    private AdvancedSearchResultSegment[] lefts;
+    private AdvancedSearchResultSegment[] rights;
+
+    @Setup
+    public void setUp() {
+        Utterances generator = new Utterances(4711, ambiguity);
+        posRuns = new ArrayList<List<List<AdvancedSearchResultSegment>>>();
+        List<AdvancedSearchResultSegment> all =
+            new ArrayList<AdvancedSearchResultSegment>();
+        for (int i = 0; i < UTTERANCES; i++) {
+            Utterances.Utterance utterance = generator.next(tokens);
+            posRuns.add(utterance.getRuns("pos"));
+            for (List<AdvancedSearchResultSegment> run :
+                    utterance.getRuns("pos")) {
+                all.addAll(run);
+            }
+        }
+        // neighbours compare on every field: same span, different tags
+        lefts = new AdvancedSearchResultSegment[PAIRS];
+        rights = new AdvancedSearchResultSegment[PAIRS];
+        for (int i = 0; i < PAIRS; i++) {
+            lefts[i] = all.get(i % all.size());
+            rights[i] = all.get((i + 1) % all.size());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public int compareTo() {
+        int sum = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            sum += lefts[i].compareTo(rights[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(UTTERANCES)
+    public void mergeChildLayer(Blackhole bh) {
+        for (List<List<AdvancedSearchResultSegment>> runs : posRuns) {
+            AdvancedSearchResult rec = new AdvancedSearchResult();
+            for (List<AdvancedSearchResultSegment> run : runs) {
+                rec.mergeChildLayer("pos",
+                        new ArrayList<AdvancedSearchResultSegment>(run));
+            }
+            bh.consume(rec);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * @file Utterances.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.uni_hamburg.corpora.sru.AdvancedSearchResult;
+import de.uni_hamburg.corpora.sru.AdvancedSearchResultSegment;
+import de.uni_hamburg.corpora.sru.HZSKQuery;
+
+/**
+ * Generates EXMARaLDA-like utterances of spoken German with pos, lemma and
+ * pho tiers for benchmarks. Segments are positioned by characters like
+ * without TLI, and some tokens have two pos tags for the same span, which
+ * like in the DB start a new run of the tier that has to be merged.
+ * The same seed gives the same utterances.
+ * @author tpirinen
+ */
+public class Utterances {
+
+    /** Tiers of the utterances. */
+    public static final String[] TIERS = {"pos", "lemma", "pho"};
+
+    /** word, lemma, STTS, pho (SAMPA) */
+    private static final String[][] LEXICON = {
+        {"ich", "ich", "PPER", "IC"},
+        {"du", "du", "PPER", "du:"},
+        {"wir", "wir", "PPER", "vi:6"},
+        {"das", "die", "ART", "das"},
+        {"die", "die", "ART", "di:"},
+        {"ein", "ein", "ART", "aIn"},
+        {"Haus", "Haus", "NN", "haUs"},
+        {"Stadt", "Stadt", "NN", "Stat"},
+        {"Schule", "Schule", "NN", "Su:l@"},
+        {"Hamburg", "Hamburg", "NE", "hambUrk"},
+        {"habe", "haben", "VAFIN", "ha:b@"},
+        {"ist", "sein", "VAFIN", "Ist"},
+        {"war", "sein", "VAFIN", "va:6"},
+        {"gesehen", "sehen", "VVPP", "g@ze:@n"},
+        {"gegangen", "gehen", "VVPP", "g@gaN@n"},
+        {"sagt", "sagen", "VVFIN", "za:kt"},
+        {"weiß", "wissen", "VVFIN", "vaIs"},
+        {"kann", "können", "VMFIN", "kan"},
+        {"nicht", "nicht", "PTKNEG", "nICt"},
+        {"ja", "ja", "PTKANT", "ja:"},
+        {"und", "und", "KON", "Unt"},
+        {"aber", "aber", "KON", "a:b6"},
+        {"dass", "dass", "KOUS", "das"},
+        {"in", "in", "APPR", "In"},
+        {"mit", "mit", "APPR", "mIt"},
+        {"im", "in", "APPRART", "Im"},
+        {"da", "da", "ADV", "da:"},
+        {"so", "so", "ADV", "zo:"},
+        {"immer", "immer", "ADV", "Im6"},
+        {"schön", "schön", "ADJD", "S2:n"},
+        {"alte", "alt", "ADJA", "alt@"},
+        {"zwei", "zwei", "CARD", "tsvaI"},
+        {"äh", "äh", "ITJ", "E:"},
+        {"ähm", "ähm", "ITJ", "E:m"},
+        {"hm", "hm", "ITJ", "hm"},
+        {"was", "was", "PWS", "vas"},
+    };
+
+    /** Second pos tags of ambiguous tokens. */
+    private static final String[] AMBIGUOUS = {"PDS", "ADV", "PTKVZ", "PIS"};
+
+    /** One generated utterance with its tiers in DB order. */
+    public static class Utterance {
+        private final AdvancedSearchResultSegment whole;
+        private final Map<String, List<List<AdvancedSearchResultSegment>>>
+            runs;
+
+        Utterance(AdvancedSearchResultSegment whole,
+                Map<String, List<List<AdvancedSearchResultSegment>>> runs) {
+            this.whole = whole;
+            this.runs = runs;
+        }
+
+        public AdvancedSearchResultSegment getWhole() {
+            return whole;
+        }
+
+        public String getText() {
+            return whole.getText();
+        }
+
+        /** Runs of a tier as the segment query would read them. */
+        public List<List<AdvancedSearchResultSegment>> getRuns(String tier) {
+            return runs.get(tier);
+        }
+    }
+
+    private final Random random;
+    private final double ambiguity;
+
+    /** @param ambiguity share of tokens with two pos tags. */
+    public Utterances(long seed, double ambiguity) {
+        this.random = new Random(seed);
+        this.ambiguity = ambiguity;
+    }
+
+    /** Get a word of the lexicon, e.g. for search terms. */
+    public static String word(int i) {
+        return LEXICON[i % LEXICON.length][0];
+    }
+
+    /** Get all STTS tags the utterances use. */
+    public static List<String> tags() {
+        List<String> tags = new ArrayList<String>();
+        for (String[] entry : LEXICON) {
+            tags.add(entry[2]);
+        }
+        for (String tag : AMBIGUOUS) {
+            tags.add(tag);
+        }
+        return tags;
+    }
+
+    /** Generate an utterance, words early in the lexicon are more common. */
+    public Utterance next(int tokens) {
+        StringBuilder text = new StringBuilder();
+        Map<String, List<List<AdvancedSearchResultSegment>>> runs =
+            new HashMap<String, List<List<AdvancedSearchResultSegment>>>();
+        for (String tier : TIERS) {
+            List<List<AdvancedSearchResultSegment>> tierRuns =
+                new ArrayList<List<AdvancedSearchResultSegment>>();
+            tierRuns.add(new ArrayList<AdvancedSearchResultSegment>());
+            runs.put(tier, tierRuns);
+        }
+        for (int i = 0; i < tokens; i++) {
+            // small words are more common, like in speech
+            int pick = (int) (LEXICON.length *
+                    Math.pow(random.nextDouble(), 2));
+            String[] entry = LEXICON[pick];
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            int start = text.length();
+            text.append(entry[0]);
+            int end = text.length();
+            add(runs.get("pos"), entry[2], entry[0], start, end);
+            if (random.nextDouble() < ambiguity) {
+                // same span again starts a new run
+                runs.get("pos").add(
+                        new ArrayList<AdvancedSearchResultSegment>());
+                add(runs.get("pos"),
+                        AMBIGUOUS[random.nextInt(AMBIGUOUS.length)],
+                        entry[0], start, end);
+            }
+            add(runs.get("lemma"), entry[1], entry[0], start, end);
+            add(runs.get("pho"), entry[3], entry[0], start, end);
+        }
+        AdvancedSearchResultSegment whole = new AdvancedSearchResultSegment(
+                text.toString(), 0, text.length());
+        return new Utterance(whole, runs);
+    }
+
+    private static void add(List<List<AdvancedSearchResultSegment>> runs,
+            String annotation, String text, int start, int end) {
+        runs.get(runs.size() - 1).add(new AdvancedSearchResultSegment(
+                    annotation, text, start, end));
+    }
+
+    /** Make a search result record of an utterance like SQLCorpusConnection
+     *  does, with hits of query highlighted and all tiers merged.
+     */
+    public static AdvancedSearchResult record(Utterance utterance,
+            HZSKQuery query, int segmentId) {
+        AdvancedSearchResultSegment whole = utterance.getWhole();
+        AdvancedSearchResult rec = new AdvancedSearchResult(whole,
+                AdvancedSearchResult.highlightSearch(whole, query),
+                "HZSK-BENCH", "http://hdl.handle.net/11022/0000-0000-" +
+                segmentId, "http://corpora.uni-hamburg.de/bench",
+                whole.getStart(), whole.getEnd());
+        rec.setSegmentId(segmentId);
+        for (String tier : TIERS) {
+            for (List<AdvancedSearchResultSegment> run :
+                    utterance.getRuns(tier)) {
+                rec.mergeChildLayer(tier,
+                        new ArrayList<AdvancedSearchResultSegment>(run));
+            }
+        }
+        return rec;
+    }
+
+    /** Make a query for any of terms words of the lexicon. */
+    public static HZSKQuery query(int terms) {
+        HZSKQuery query = new HZSKQuery(word(0));
+        for (int i = 1; i < terms; i++) {
+            // every third word so the terms are not all small ones
+            query.combineOr(new HZSKQuery(word(i * 3)));
+        }
+        return query;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * @file WriteRecordBenchmark.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.benchmarks;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.clarin.sru.server.SRUDiagnosticList;
+import eu.clarin.sru.server.SRUException;
+
+import de.uni_hamburg.corpora.sru.AdvancedSearchResultSet;
+import de.uni_hamburg.corpora.sru.HZSKQuery;
+import de.uni_hamburg.corpora.sru.HZSKSRUSearchResultSet;
+
+/**
+ * HZSKSRUSearchResultSet.writeRecord of a page of records with pos, lemma
+ * and pho layers into UTF-8 XML, per record.
+ * @author tpirinen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteRecordBenchmark {
+
+    private static final int PAGE = 10;
+
+    @Param({"12", "40"})
+    public int tokens;
+
+    private AdvancedSearchResultSet page;
+    private XMLStreamWriter writer;
+    private final SRUDiagnosticList diagnostics = new SRUDiagnosticList() {
+        @Override
+        public void addDiagnostic(String uri, String details,
+                String message) {
+        }
+    };
+
+    /** Counts bytes written so the XML isn't optimised away. */
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private CountingOutputStream out;
+
+    @Setup
+    public void setUp() throws XMLStreamException {
+        Utterances generator = new Utterances(4711, 0.1);
+        HZSKQuery query = Utterances.query(2);
+        page = new AdvancedSearchResultSet(PAGE);
+        for (int i = 0; i < PAGE; i++) {
+            page.addRecord(Utterances.record(generator.next(tokens), query,
+                        i + 1));
+        }
+        page.setTotalLength(PAGE);
+        out = new CountingOutputStream();
+        writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out,
+                "UTF-8");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGE)
+    public long writeRecord() throws SRUException, XMLStreamException {
+        HZSKSRUSearchResultSet results =
+            new HZSKSRUSearchResultSet(diagnostics, page);
+        while (results.nextRecord()) {
+            results.writeRecord(writer);
+        }
+        writer.flush();
+        return out.count;
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * @file AdmissionController.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import eu.clarin.sru.server.SRUConstants;
+import eu.clarin.sru.server.SRUException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many requests of each SRU operation run at once.
+ * Each operation has a number of slots; requests over that wait in a fair
+ * queue for a while and are rejected if the queue is full or the wait runs
+ * out, so that a flood of requests can't take all the pooled DB
+ * connections. Before queueing, each client (address and User-Agent, see
+ * ClientFilter) takes a token from its own bucket, which refills at a
+ * steady rate, so one crawler can't fill the queue for everyone.
+ * Rejections are SRU "system temporarily unavailable" diagnostics.
+ * @author tpirinen
+ */
+public class AdmissionController {
+
+    /** Operations with their own slots. */
+    public enum Operation {EXPLAIN, SCAN, SEARCH};
+
+    /** A slot held by an admitted request. */
+    public static class Permit {
+        private final Gate gate;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        Permit(Gate gate) {
+            this.gate = gate;
+        }
+
+        /** Give the slot to the next request, only the first call counts. */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                gate.active.decrementAndGet();
+                gate.slots.release();
+            }
+        }
+    }
+
+    /** Slots, queue and counters of one operation. */
+    public static class Gate {
+        private final Operation operation;
+        private final int limit;
+        private final Semaphore slots;
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger maxQueued = new AtomicInteger();
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong waited = new AtomicLong();
+        private final AtomicLong waitMillis = new AtomicLong();
+        private final AtomicLong rejectedBusy = new AtomicLong();
+        private final AtomicLong rejectedRate = new AtomicLong();
+
+        Gate(Operation operation, int limit) {
+            this.operation = operation;
+            this.limit = limit;
+            this.slots = new Semaphore(limit, true);
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        /** Requests running now. */
+        public int getActive() {
+            return active.get();
+        }
+
+        /** Requests waiting for a slot now. */
+        public int getQueued() {
+            return queued.get();
+        }
+
+        /** Most requests that have waited at once. */
+        public int getMaxQueued() {
+            return maxQueued.get();
+        }
+
+        public long getAdmitted() {
+            return admitted.get();
+        }
+
+        /** Admitted requests that had to wait for a slot. */
+        public long getWaited() {
+            return waited.get();
+        }
+
+        /** Total time admitted and rejected requests spent waiting. */
+        public long getWaitMillis() {
+            return waitMillis.get();
+        }
+
+        /** Requests rejected because the queue was full or wait ran out. */
+        public long getRejectedBusy() {
+            return rejectedBusy.get();
+        }
+
+        /** Requests rejected because the client used up its tokens. */
+        public long getRejectedRate() {
+            return rejectedRate.get();
+        }
+
+        @Override
+        public String toString() {
+            return operation + ": " + active.get() + "/" + limit +
+                " active, " + queued.get() + " queued (max " +
+                maxQueued.get() + "), " + admitted.get() + " admitted, " +
+                waited.get() + " waited " + waitMillis.get() + " ms, " +
+                rejectedBusy.get() + " rejected busy, " + rejectedRate.get() +
+                " rejected rate";
+        }
+    }
+
+    /** Tokens of one client, refilled at a steady rate up to a burst. */
+    private static class TokenBucket {
+        private double tokens;
+        private long refilled;
+
+        TokenBucket(double burst, long now) {
+            this.tokens = burst;
+            this.refilled = now;
+        }
+
+        synchronized boolean take(double rate, double burst, long now) {
+            tokens = Math.min(burst,
+                    tokens + (now - refilled) * rate / 1000.0);
+            refilled = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isIdle(double rate, double burst, long now) {
+            return tokens + (now - refilled) * rate / 1000.0 >= burst;
+        }
+    }
+
+    /** Forget full buckets when there are more clients than this. */
+    private static final int MAX_IDLE_CLIENTS = 10000;
+
+    private static final ThreadLocal<String> currentClient =
+        new ThreadLocal<String>();
+
+    private final Map<Operation, Gate> gates =
+        new ConcurrentHashMap<Operation, Gate>();
+    private final long maxWaitMillis;
+    private final int maxQueue;
+    private final double clientRate;
+    private final double clientBurst;
+    private final ConcurrentHashMap<String, TokenBucket> buckets =
+        new ConcurrentHashMap<String, TokenBucket>();
+
+    /** Create admission control.
+     *  @param maxWaitMillis how long requests wait for a slot.
+     *  @param maxQueue how many requests of an operation may wait.
+     *  @param clientRate requests per second per client, 0 for no limit.
+     *  @param clientBurst requests a client may send at once.
+     */
+    public AdmissionController(long maxWaitMillis, int maxQueue,
+            double clientRate, double clientBurst) {
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxQueue = maxQueue;
+        this.clientRate = clientRate;
+        this.clientBurst = Math.max(1, clientBurst);
+    }
+
+    /** Limit concurrent requests of an operation, 0 for no limit. */
+    public void setLimit(Operation operation, int limit) {
+        if (limit > 0) {
+            gates.put(operation, new Gate(operation, limit));
+        } else {
+            gates.remove(operation);
+        }
+    }
+
+    /** Get slots and counters of an operation, or null if not limited. */
+    public Gate getGate(Operation operation) {
+        return gates.get(operation);
+    }
+
+    /** Set client of requests of this thread, done by ClientFilter. */
+    public static void setCurrentClient(String client) {
+        if (client == null) {
+            currentClient.remove();
+        } else {
+            currentClient.set(client);
+        }
+    }
+
+    /** Get client of the request of this thread, or null if unknown. */
+    public static String getCurrentClient() {
+        return currentClient.get();
+    }
+
+    /** Wait for a slot for the request of this thread.
+     *  @return permit to release when the response is done, or null if the
+     *      operation is not limited.
+     *  @throws SRUException if the client is over its rate or there's no
+     *      slot in time.
+     */
+    public Permit admit(Operation operation) throws SRUException {
+        Gate gate = gates.get(operation);
+        if (gate == null) {
+            return null;
+        }
+        String client = getCurrentClient();
+        if ((clientRate > 0) && (client != null) && !takeToken(client)) {
+            gate.rejectedRate.incrementAndGet();
+            throw new SRUException(
+                    SRUConstants.SRU_SYSTEM_TEMPORARILY_UNAVAILABLE,
+                    "Too many requests from this client, try again later.");
+        }
+        // untimed tryAcquire() would barge past the ones already waiting
+        boolean free = false;
+        try {
+            free = gate.slots.tryAcquire(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (free) {
+            return admitted(gate);
+        }
+        int waiting = gate.queued.incrementAndGet();
+        long started = System.currentTimeMillis();
+        boolean acquired = false;
+        try {
+            if (waiting > maxQueue) {
+                gate.rejectedBusy.incrementAndGet();
+                throw new SRUException(
+                        SRUConstants.SRU_SYSTEM_TEMPORARILY_UNAVAILABLE,
+                        "Too many " + operation.toString().toLowerCase() +
+                        " requests waiting, try again later.");
+            }
+            int max = gate.maxQueued.get();
+            while ((waiting > max) &&
+                    !gate.maxQueued.compareAndSet(max, waiting)) {
+                max = gate.maxQueued.get();
+            }
+            try {
+                acquired = gate.slots.tryAcquire(maxWaitMillis,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            gate.queued.decrementAndGet();
+            gate.waitMillis.addAndGet(System.currentTimeMillis() - started);
+        }
+        if (!acquired) {
+            gate.rejectedBusy.incrementAndGet();
+            throw new SRUException(
+                    SRUConstants.SRU_SYSTEM_TEMPORARILY_UNAVAILABLE,
+                    "The endpoint is busy, try again later.");
+        }
+        gate.waited.incrementAndGet();
+        return admitted(gate);
+    }
+
+    private static Permit admitted(Gate gate) {
+        gate.active.incrementAndGet();
+        gate.admitted.incrementAndGet();
+        return new Permit(gate);
+    }
+
+    private boolean takeToken(String client) {
+        long now = System.currentTimeMillis();
+        TokenBucket bucket = buckets.get(client);
+        if (bucket == null) {
+            if (buckets.size() > MAX_IDLE_CLIENTS) {
+                forgetIdleClients(now);
+            }
+            TokenBucket fresh = new TokenBucket(clientBurst, now);
+            bucket = buckets.putIfAbsent(client, fresh);
+            if (bucket == null) {
+                bucket = fresh;
+            }
+        }
+        return bucket.take(clientRate, clientBurst, now);
+    }
+
+    /** Drop buckets that have refilled, they'd start full anyway. */
+    private void forgetIdleClients(long now) {
+        Iterator<TokenBucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isIdle(clientRate, clientBurst, now)) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Number of clients with a token bucket. */
+    public int getClients() {
+        return buckets.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("AdmissionController: ");
+        sb.append(buckets.size()).append(" clients");
+        for (Operation operation : Operation.values()) {
+            Gate gate = gates.get(operation);
+            if (gate != null) {
+                sb.append("; ").append(gate);
+            }
+        }
+        return sb.toString();
+    }
+}
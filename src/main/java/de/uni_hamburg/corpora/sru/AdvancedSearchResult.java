@@ -7,11 +7,10 @@ package de.uni_hamburg.corpora.sru;
 
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.net.URI;
 
 /**
@@ -34,6 +33,7 @@ public class AdvancedSearchResult {
     private List<AdvancedSearchResultSegment> searchSplits;
     private Map<String, List<AdvancedSearchResultSegment>> childLayers;
 
+    private int segmentId = -1;
     private String source;
     private String pid;
     private String page;
@@ -69,11 +69,35 @@ public class AdvancedSearchResult {
         childLayers.put(name, segments);
     }
 
+    /** Add segments to a layer, merging them in order with the segments
+     *  already there, e.g. when a layer is read from the DB in several runs.
+     */
+    public void mergeChildLayer(String name,
+            List<AdvancedSearchResultSegment> segments) {
+        List<AdvancedSearchResultSegment> existing = childLayers.get(name);
+        if (existing != null) {
+            segments.addAll(existing);
+            Collections.sort(segments);
+        }
+        childLayers.put(name, segments);
+    }
+
     public Map<String, List<AdvancedSearchResultSegment>>
            getChildLayers() {
         return childLayers;
     }
 
+    /**
+     * @return the segment_id of matched text in database or -1
+     */
+    public int getSegmentId() {
+        return segmentId;
+    }
+
+    public void setSegmentId(int segmentId) {
+        this.segmentId = segmentId;
+    }
+
     public AdvancedSearchResultSegment getResultText() {
         return wholeText;
     }
@@ -85,6 +109,11 @@ public class AdvancedSearchResult {
         return searchSplits;
     }
 
+    public void setResultHighlights(
+            List<AdvancedSearchResultSegment> highlights) {
+        this.searchSplits = highlights;
+    }
+
     /**
      * @return the source
      */
@@ -156,48 +185,63 @@ public class AdvancedSearchResult {
         }
     }
 
+    /** Split text into highlights at hits of the text searches of query.
+     *  The query keeps its compiled Highlighter, so all records of a page
+     *  share it.
+     */
     public static
         List<AdvancedSearchResultSegment>
         highlightSearch(AdvancedSearchResultSegment text,
             HZSKQuery query) {
+        return highlightSearch(text, query.getHighlighter(0));
+    }
+
+    public static
+        List<AdvancedSearchResultSegment>
+        highlightSearch(AdvancedSearchResultSegment text,
+            Highlighter highlighter) {
+        long started = System.nanoTime();
+        List<AdvancedSearchResultSegment> highlights =
+            highlighter.highlight(text);
+        Metrics.HIGHLIGHT.recordSince(started);
+        return highlights;
+    }
+
+    /** Split text into highlights at known hit positions.
+     *  @param ranges start and end character positions of hits, in the same
+     *      positions as text start and end, ascending and not overlapping.
+     */
+    public static
+        List<AdvancedSearchResultSegment>
+        highlightRanges(AdvancedSearchResultSegment text, int[] ranges) {
         List<AdvancedSearchResultSegment> highlights = new
             ArrayList<AdvancedSearchResultSegment>();
         String fulltext = text.getText();
-        // create a highlighter from query
-        String matcherSearch = "";
-        String delim = "";
-        for (String s : query.getTextSearches()) {
-            matcherSearch += delim;
-            matcherSearch += s;
-            delim = "|";
-        }
-        Pattern pattern = Pattern.compile(matcherSearch);
-        Matcher matcher = pattern.matcher(fulltext);
+        int textStart = (int) text.getStart();
         int previousEnd = 0;
-        matcher.reset();
-        while (matcher.find()) {
-            if (previousEnd < matcher.start()) {
-                AdvancedSearchResultSegment left = new
-                    AdvancedSearchResultSegment(fulltext.substring(previousEnd,
-                            matcher.start()), text.getStart() + previousEnd,
-                            text.getStart() + previousEnd +
-                            (matcher.start() - previousEnd));
-                highlights.add(left);
+        for (int i = 0; i + 1 < ranges.length; i += 2) {
+            int hitStart = Math.max(ranges[i] - textStart, previousEnd);
+            int hitEnd = Math.min(ranges[i + 1] - textStart,
+                    fulltext.length());
+            if (hitEnd <= hitStart) {
+                continue;
+            }
+            if (previousEnd < hitStart) {
+                highlights.add(new AdvancedSearchResultSegment(
+                            fulltext.substring(previousEnd, hitStart),
+                            textStart + previousEnd, textStart + hitStart));
             }
             AdvancedSearchResultSegment hit = new AdvancedSearchResultSegment(
-                fulltext.substring(matcher.start(), matcher.end()),
-                    text.getStart() + matcher.start(),
-                    text.getStart() + matcher.start() +
-                    (matcher.end() - matcher.start()));
+                    fulltext.substring(hitStart, hitEnd),
+                    textStart + hitStart, textStart + hitEnd);
             hit.setHighlighted(true);
             highlights.add(hit);
-            previousEnd = matcher.end();
+            previousEnd = hitEnd;
         }
         if (previousEnd < fulltext.length()) {
-            AdvancedSearchResultSegment right = new AdvancedSearchResultSegment(
-                    fulltext.substring(previousEnd),
-                    text.getStart() + previousEnd, text.getEnd());
-            highlights.add(right);
+            highlights.add(new AdvancedSearchResultSegment(
+                        fulltext.substring(previousEnd),
+                        textStart + previousEnd, text.getEnd()));
         }
         return highlights;
     }
@@ -0,0 +1,68 @@
+/**
+ * @file ClientFilter.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Tells AdmissionController which client sent the request.
+ * The SRU server doesn't pass the servlet request to the search engine, so
+ * the client, its address and User-Agent, is kept for the request's thread
+ * while the SRU servlet handles it. Behind a proxy, set init-param
+ * trustForwardedFor to true to use the first address of X-Forwarded-For.
+ * @author tpirinen
+ */
+public class ClientFilter implements Filter {
+
+    private static final int MAX_USER_AGENT = 100;
+
+    private boolean trustForwardedFor = false;
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        trustForwardedFor = "true".equals(
+                config.getInitParameter("trustForwardedFor"));
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response,
+            FilterChain chain) throws IOException, ServletException {
+        AdmissionController.setCurrentClient(clientOf(request));
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            AdmissionController.setCurrentClient(null);
+        }
+    }
+
+    private String clientOf(ServletRequest request) {
+        String address = request.getRemoteAddr();
+        String userAgent = null;
+        if (request instanceof HttpServletRequest) {
+            HttpServletRequest http = (HttpServletRequest) request;
+            String forwarded = http.getHeader("X-Forwarded-For");
+            if (trustForwardedFor && (forwarded != null)) {
+                address = forwarded.split(",")[0].trim();
+            }
+            userAgent = http.getHeader("User-Agent");
+        }
+        if ((userAgent != null) && (userAgent.length() > MAX_USER_AGENT)) {
+            userAgent = userAgent.substring(0, MAX_USER_AGENT);
+        }
+        return address + " " + ((userAgent != null) ? userAgent : "-");
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
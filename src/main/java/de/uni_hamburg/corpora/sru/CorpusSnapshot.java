@@ -0,0 +1,692 @@
+/**
+ * @file CorpusSnapshot.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only copy of the utterances of corpus DB in a memory-mapped file.
+ * Holds everything SQLCorpusConnection reads for records and the index:
+ * utterances, their child segments with annotations, transcriptions and
+ * timelines. The file is columnar: all strings are in one dictionary and
+ * referred to by number, and each column is an int array, so opening it
+ * only maps the file and finds where the columns start. Child segments of
+ * an utterance are consecutive in char_s order. Each annotation tier has
+ * a column of values and a column of offsets to the values of each
+ * segment, as a segment may have more than one, e.g. two pos tags of an
+ * ambiguous token. Snapshots are written by Writer, usually with
+ * CorpusSnapshotExporter, and are limited to 2 GB.
+ * @author tpirinen
+ */
+public class CorpusSnapshot {
+
+    private static final int MAGIC = 0x485a5343; // HZSC
+    private static final int VERSION = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Collects a corpus and writes it to a snapshot file.
+     *  Call addTranscription() and addTimelineItem() for all
+     *  transcriptions, then addUtterance() for all utterances, then
+     *  addSegment() for their child segments, each followed by annotate()
+     *  for its annotations, then write().
+     */
+    public static class Writer {
+        private final Map<String, Integer> stringIds =
+            new HashMap<String, Integer>();
+        private final List<String> strings = new ArrayList<String>();
+        private final Map<String, Integer> transcriptionIds =
+            new HashMap<String, Integer>();
+        private final IntList transcriptionGuids = new IntList();
+        private final IntList transcriptionNames = new IntList();
+        private final IntList fileUrls = new IntList();
+        private final IntList availUrls = new IntList();
+        private final Map<String, IntList> tliIds =
+            new HashMap<String, IntList>();
+        private final Map<String, List<Double>> tliTimes =
+            new HashMap<String, List<Double>>();
+        private final IntList utteranceIds = new IntList(1024);
+        private final IntList utteranceTexts = new IntList(1024);
+        private final IntList utteranceCharS = new IntList(1024);
+        private final IntList utteranceCharE = new IntList(1024);
+        private final IntList utteranceTliS = new IntList(1024);
+        private final IntList utteranceTliE = new IntList(1024);
+        private final IntList utteranceTranscriptions = new IntList(1024);
+        private final IntList segmentOffsets = new IntList(1024);
+        private final IntList segmentNames = new IntList(8192);
+        private final IntList segmentTexts = new IntList(8192);
+        private final IntList segmentCharS = new IntList(8192);
+        private final IntList segmentCharE = new IntList(8192);
+        private final IntList segmentTliS = new IntList(8192);
+        private final IntList segmentTliE = new IntList(8192);
+        private final Map<String, IntList> tierOffsets =
+            new HashMap<String, IntList>();
+        private final Map<String, IntList> tierValues =
+            new HashMap<String, IntList>();
+        private int segmentDoc = -1;
+        private boolean segmentAdded = false;
+
+        private int string(String s) {
+            if (s == null) {
+                return -1;
+            }
+            Integer id = stringIds.get(s);
+            if (id == null) {
+                id = strings.size();
+                strings.add(s);
+                stringIds.put(s, id);
+            }
+            return id;
+        }
+
+        /** Add metadata of a transcription. */
+        public void addTranscription(String guid, String name,
+                String fileUrl, String availUrl) {
+            if (transcriptionIds.containsKey(guid)) {
+                return;
+            }
+            transcriptionIds.put(guid, transcriptionGuids.size());
+            transcriptionGuids.add(string(guid));
+            transcriptionNames.add(string(name));
+            fileUrls.add(string(fileUrl));
+            availUrls.add(string(availUrl));
+        }
+
+        /** Add timeline item of a transcription, in tli_id order.
+         *  @param time time in seconds or NaN if it has none.
+         */
+        public void addTimelineItem(String guid, int tliId, double time) {
+            IntList ids = tliIds.get(guid);
+            if (ids == null) {
+                ids = new IntList();
+                tliIds.put(guid, ids);
+                tliTimes.put(guid, new ArrayList<Double>());
+            }
+            if (tliId <= ids.last()) {
+                throw new IllegalArgumentException("Timeline item " + tliId +
+                        " added after " + ids.last());
+            }
+            ids.add(tliId);
+            tliTimes.get(guid).add(time);
+        }
+
+        /** Add next utterance.
+         *  Utterances of transcriptions that were not added are left out
+         *  of records, like from DB.
+         *  @param segmentId segment_id, ascending.
+         */
+        public void addUtterance(int segmentId, String text, int charS,
+                int charE, int tliS, int tliE, String transcriptionGuid) {
+            int last = utteranceIds.last();
+            if (segmentId <= last) {
+                throw new IllegalArgumentException("Utterance " + segmentId +
+                        " added after " + last);
+            }
+            Integer transcription = transcriptionIds.get(transcriptionGuid);
+            utteranceIds.add(segmentId);
+            utteranceTexts.add(string((text == null) ? "" : text));
+            utteranceCharS.add(charS);
+            utteranceCharE.add(charE);
+            utteranceTliS.add(tliS);
+            utteranceTliE.add(tliE);
+            utteranceTranscriptions.add((transcription == null) ? -1 :
+                    transcription);
+        }
+
+        /** Add next child segment of an utterance, in parent and char_s
+         *  order. Segments of utterances that were not added are ignored.
+         */
+        public void addSegment(int parent, String name, String text,
+                int charS, int charE, int tliS, int tliE) {
+            if ((segmentDoc == -1) ||
+                    (utteranceIds.get(segmentDoc) != parent)) {
+                if ((segmentDoc != -1) &&
+                        (parent < utteranceIds.get(segmentDoc))) {
+                    throw new IllegalArgumentException("Segment of " +
+                            parent + " added after " +
+                            utteranceIds.get(segmentDoc));
+                }
+                int doc = segmentDoc + 1;
+                while ((doc < utteranceIds.size()) &&
+                        (utteranceIds.get(doc) < parent)) {
+                    doc++;
+                }
+                if ((doc == utteranceIds.size()) ||
+                        (utteranceIds.get(doc) != parent)) {
+                    segmentAdded = false;
+                    return;
+                }
+                while (segmentOffsets.size() <= doc) {
+                    segmentOffsets.add(segmentNames.size());
+                }
+                segmentDoc = doc;
+            }
+            segmentNames.add(string(name));
+            segmentTexts.add(string(text));
+            segmentCharS.add(charS);
+            segmentCharE.add(charE);
+            segmentTliS.add(tliS);
+            segmentTliE.add(tliE);
+            segmentAdded = true;
+        }
+
+        /** Add an annotation to the last added segment.
+         *  A segment can have several values in a tier, they are kept in
+         *  the order they were added.
+         */
+        public void annotate(String tier, String value) {
+            if ((tier == null) || (value == null) || !segmentAdded) {
+                return;
+            }
+            IntList offsets = tierOffsets.get(tier);
+            IntList values = tierValues.get(tier);
+            if (offsets == null) {
+                offsets = new IntList(segmentNames.size() + 1);
+                values = new IntList(segmentNames.size() + 1);
+                tierOffsets.put(tier, offsets);
+                tierValues.put(tier, values);
+            }
+            int segment = segmentNames.size() - 1;
+            while (offsets.size() <= segment) {
+                offsets.add(values.size());
+            }
+            values.add(string(value));
+        }
+
+        public int getUtteranceCount() {
+            return utteranceIds.size();
+        }
+
+        public int getSegmentCount() {
+            return segmentNames.size();
+        }
+
+        /** Write the snapshot. It is written to a temporary file next to
+         *  file first and renamed, so that a snapshot in use is never seen
+         *  half written.
+         */
+        public void write(File file) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp),
+                        1 << 16));
+            try {
+                writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot replace " + file);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            while (segmentOffsets.size() <= utteranceIds.size()) {
+                segmentOffsets.add(segmentNames.size());
+            }
+            // tiers by name, so that layers come out ordered like from DB
+            String[] tierNames = tierOffsets.keySet().toArray(
+                    new String[tierOffsets.size()]);
+            Arrays.sort(tierNames);
+            IntList tierIds = new IntList(tierNames.length);
+            for (String tier : tierNames) {
+                tierIds.add(string(tier));
+            }
+            int transcriptions = transcriptionGuids.size();
+            IntList tliOffsets = new IntList(transcriptions + 1);
+            IntList allTliIds = new IntList(1024);
+            List<Double> allTimes = new ArrayList<Double>(1024);
+            for (int t = 0; t < transcriptions; t++) {
+                tliOffsets.add(allTliIds.size());
+                String guid = strings.get(transcriptionGuids.get(t));
+                IntList ids = tliIds.get(guid);
+                if (ids != null) {
+                    for (int i = 0; i < ids.size(); i++) {
+                        allTliIds.add(ids.get(i));
+                    }
+                    allTimes.addAll(tliTimes.get(guid));
+                }
+            }
+            tliOffsets.add(allTliIds.size());
+            IntList stringOffsets = new IntList(strings.size() + 1);
+            List<byte[]> utf8s = new ArrayList<byte[]>(strings.size());
+            int bytes = 0;
+            for (String s : strings) {
+                byte[] utf8 = s.getBytes(UTF8);
+                stringOffsets.add(bytes);
+                utf8s.add(utf8);
+                bytes += utf8.length;
+            }
+            stringOffsets.add(bytes);
+            int segments = segmentNames.size();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(strings.size());
+            out.writeInt(transcriptions);
+            out.writeInt(allTliIds.size());
+            out.writeInt(utteranceIds.size());
+            out.writeInt(segments);
+            out.writeInt(tierNames.length);
+            int written = 40;
+            written = writeInts(out, written, stringOffsets);
+            for (byte[] utf8 : utf8s) {
+                out.write(utf8);
+            }
+            written = pad(out, written + bytes);
+            written = writeInts(out, written, transcriptionGuids);
+            written = writeInts(out, written, transcriptionNames);
+            written = writeInts(out, written, fileUrls);
+            written = writeInts(out, written, availUrls);
+            written = writeInts(out, written, tliOffsets);
+            written = writeInts(out, written, allTliIds);
+            for (double time : allTimes) {
+                out.writeDouble(time);
+            }
+            written += 8 * allTimes.size();
+            written = writeInts(out, written, utteranceIds);
+            written = writeInts(out, written, utteranceTexts);
+            written = writeInts(out, written, utteranceCharS);
+            written = writeInts(out, written, utteranceCharE);
+            written = writeInts(out, written, utteranceTliS);
+            written = writeInts(out, written, utteranceTliE);
+            written = writeInts(out, written, utteranceTranscriptions);
+            written = writeInts(out, written, segmentOffsets);
+            written = writeInts(out, written, segmentNames);
+            written = writeInts(out, written, segmentTexts);
+            written = writeInts(out, written, segmentCharS);
+            written = writeInts(out, written, segmentCharE);
+            written = writeInts(out, written, segmentTliS);
+            written = writeInts(out, written, segmentTliE);
+            written = writeInts(out, written, tierIds);
+            for (String tier : tierNames) {
+                IntList offsets = tierOffsets.get(tier);
+                IntList values = tierValues.get(tier);
+                while (offsets.size() <= segments) {
+                    offsets.add(values.size());
+                }
+                written = writeInts(out, written, offsets);
+                written = writeInts(out, written, values);
+            }
+        }
+
+        /** Write ints and pad to 8 bytes, for the doubles after them.
+         *  @return bytes written so far.
+         */
+        private static int writeInts(DataOutputStream out, int written,
+                IntList values) throws IOException {
+            for (int i = 0; i < values.size(); i++) {
+                out.writeInt(values.get(i));
+            }
+            return pad(out, written + 4 * values.size());
+        }
+
+        private static int pad(DataOutputStream out, int written)
+                throws IOException {
+            while ((written % 8) != 0) {
+                out.writeByte(0);
+                written++;
+            }
+            return written;
+        }
+    }
+
+    private final File file;
+    private final MappedByteBuffer map;
+    private final long created;
+    private final IntBuffer stringOffsets;
+    private final ByteBuffer stringBytes;
+    private final TranscriptionCache.Transcription[] transcriptions;
+    private final IntBuffer tliOffsets;
+    private final IntBuffer tliIds;
+    private final DoubleBuffer tliTimes;
+    private final IntBuffer utteranceIds;
+    private final IntBuffer utteranceTexts;
+    private final IntBuffer utteranceCharS;
+    private final IntBuffer utteranceCharE;
+    private final IntBuffer utteranceTliS;
+    private final IntBuffer utteranceTliE;
+    private final IntBuffer utteranceTranscriptions;
+    private final IntBuffer segmentOffsets;
+    private final IntBuffer segmentNames;
+    private final IntBuffer segmentTexts;
+    private final IntBuffer segmentCharS;
+    private final IntBuffer segmentCharE;
+    private final IntBuffer segmentTliS;
+    private final IntBuffer segmentTliE;
+    private final String[] tierNames;
+    private final IntBuffer[] tierOffsets;
+    private final IntBuffer[] tierValues;
+    private int position;
+
+    private CorpusSnapshot(File file, MappedByteBuffer map)
+            throws IOException {
+        this.file = file;
+        this.map = map;
+        if ((map.limit() < 40) || (map.getInt(0) != MAGIC)) {
+            throw new IOException(file + " is not a corpus snapshot");
+        }
+        int version = map.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(file + " has snapshot version " + version +
+                    ", expected " + VERSION);
+        }
+        created = map.getLong(8);
+        int strings = map.getInt(16);
+        int transcriptionCount = map.getInt(20);
+        int tlis = map.getInt(24);
+        int utterances = map.getInt(28);
+        int segments = map.getInt(32);
+        int tiers = map.getInt(36);
+        position = 40;
+        stringOffsets = ints(map, strings + 1);
+        stringBytes = bytes(map, stringOffsets.get(strings));
+        IntBuffer guids = ints(map, transcriptionCount);
+        IntBuffer names = ints(map, transcriptionCount);
+        IntBuffer fileUrls = ints(map, transcriptionCount);
+        IntBuffer availUrls = ints(map, transcriptionCount);
+        tliOffsets = ints(map, transcriptionCount + 1);
+        tliIds = ints(map, tlis);
+        tliTimes = bytes(map, 8 * tlis).asDoubleBuffer();
+        utteranceIds = ints(map, utterances);
+        utteranceTexts = ints(map, utterances);
+        utteranceCharS = ints(map, utterances);
+        utteranceCharE = ints(map, utterances);
+        utteranceTliS = ints(map, utterances);
+        utteranceTliE = ints(map, utterances);
+        utteranceTranscriptions = ints(map, utterances);
+        segmentOffsets = ints(map, utterances + 1);
+        segmentNames = ints(map, segments);
+        segmentTexts = ints(map, segments);
+        segmentCharS = ints(map, segments);
+        segmentCharE = ints(map, segments);
+        segmentTliS = ints(map, segments);
+        segmentTliE = ints(map, segments);
+        IntBuffer tierIds = ints(map, tiers);
+        tierNames = new String[tiers];
+        tierOffsets = new IntBuffer[tiers];
+        tierValues = new IntBuffer[tiers];
+        for (int t = 0; t < tiers; t++) {
+            tierNames[t] = string(tierIds.get(t));
+            tierOffsets[t] = ints(map, segments + 1);
+            tierValues[t] = ints(map, tierOffsets[t].get(segments));
+        }
+        if (position > map.limit()) {
+            throw new IOException(file + " is truncated");
+        }
+        // few enough to decode now, and then records can share them
+        transcriptions =
+            new TranscriptionCache.Transcription[transcriptionCount];
+        for (int t = 0; t < transcriptionCount; t++) {
+            transcriptions[t] = new TranscriptionCache.Transcription(
+                    string(names.get(t)), string(fileUrls.get(t)),
+                    string(availUrls.get(t)));
+        }
+    }
+
+    /** Map next count ints of the file. */
+    private IntBuffer ints(MappedByteBuffer map, int count)
+            throws IOException {
+        return bytes(map, 4 * count).asIntBuffer();
+    }
+
+    /** Map next count bytes of the file, padded to 8 bytes. */
+    private ByteBuffer bytes(MappedByteBuffer map, int count)
+            throws IOException {
+        if ((count < 0) || (position + (long) count > map.limit())) {
+            throw new IOException(file + " is truncated");
+        }
+        ByteBuffer view = map.duplicate();
+        view.position(position);
+        view.limit(position + count);
+        position += count;
+        position += (8 - position % 8) % 8;
+        return view.slice();
+    }
+
+    /** Open a snapshot file by mapping it to memory. */
+    public static CorpusSnapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is over 2 GB");
+            }
+            // the mapping stays valid after the channel is closed
+            return new CorpusSnapshot(file, channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Read the whole file into memory, so that the first searches don't
+     *  wait for the disk page by page.
+     */
+    public void warm() {
+        map.load();
+    }
+
+    /** Get string of dictionary, or null for -1. */
+    private String string(int id) {
+        if (id < 0) {
+            return null;
+        }
+        int start = stringOffsets.get(id);
+        byte[] utf8 = new byte[stringOffsets.get(id + 1) - start];
+        ByteBuffer view = stringBytes.duplicate();
+        view.position(start);
+        view.get(utf8);
+        return new String(utf8, UTF8);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Time the snapshot was written, in milliseconds since epoch. */
+    public long getCreated() {
+        return created;
+    }
+
+    public int getUtteranceCount() {
+        return utteranceIds.limit();
+    }
+
+    public int getSegmentCount() {
+        return segmentNames.limit();
+    }
+
+    /** Find an utterance by segment_id.
+     *  @return utterance number or -1 if it isn't in snapshot.
+     */
+    public int findUtterance(int segmentId) {
+        int low = 0;
+        int high = utteranceIds.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = utteranceIds.get(mid);
+            if (id < segmentId) {
+                low = mid + 1;
+            } else if (id > segmentId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int getSegmentId(int utterance) {
+        return utteranceIds.get(utterance);
+    }
+
+    public String getText(int utterance) {
+        return string(utteranceTexts.get(utterance));
+    }
+
+    public int getCharStart(int utterance) {
+        return utteranceCharS.get(utterance);
+    }
+
+    public int getCharEnd(int utterance) {
+        return utteranceCharE.get(utterance);
+    }
+
+    /** Get start of utterance in milliseconds, or -1 if it has no time. */
+    public double getMillisStart(int utterance) {
+        return millis(utterance, utteranceTliS.get(utterance));
+    }
+
+    public double getMillisEnd(int utterance) {
+        return millis(utterance, utteranceTliE.get(utterance));
+    }
+
+    /** Get metadata of the utterance's transcription, or null if it
+     *  wasn't in DB.
+     */
+    public TranscriptionCache.Transcription getTranscription(int utterance) {
+        int t = utteranceTranscriptions.get(utterance);
+        return (t < 0) ? null : transcriptions[t];
+    }
+
+    /** Time of timeline item in the utterance's transcription, in
+     *  milliseconds like TimelineCache.getMillis().
+     */
+    private double millis(int utterance, int tliId) {
+        int t = utteranceTranscriptions.get(utterance);
+        if (t < 0) {
+            return -1;
+        }
+        int low = tliOffsets.get(t);
+        int high = tliOffsets.get(t + 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = tliIds.get(mid);
+            if (id < tliId) {
+                low = mid + 1;
+            } else if (id > tliId) {
+                high = mid - 1;
+            } else {
+                double time = tliTimes.get(mid);
+                return Double.isNaN(time) ? -1 : time * 1000;
+            }
+        }
+        return -1;
+    }
+
+    /** First child segment of utterance. */
+    public int getFirstSegment(int utterance) {
+        return segmentOffsets.get(utterance);
+    }
+
+    /** End of child segments of utterance, exclusive. */
+    public int getSegmentEnd(int utterance) {
+        return segmentOffsets.get(utterance + 1);
+    }
+
+    public String getSegmentName(int segment) {
+        return string(segmentNames.get(segment));
+    }
+
+    public String getSegmentText(int segment) {
+        return string(segmentTexts.get(segment));
+    }
+
+    public int getSegmentCharStart(int segment) {
+        return segmentCharS.get(segment);
+    }
+
+    public int getSegmentCharEnd(int segment) {
+        return segmentCharE.get(segment);
+    }
+
+    /** Get start of child segment of utterance in milliseconds. */
+    public double getSegmentMillisStart(int utterance, int segment) {
+        return millis(utterance, segmentTliS.get(segment));
+    }
+
+    public double getSegmentMillisEnd(int utterance, int segment) {
+        return millis(utterance, segmentTliE.get(segment));
+    }
+
+    /** Number of annotation tiers, numbered in name order. */
+    public int getTierCount() {
+        return tierNames.length;
+    }
+
+    public String getTierName(int tier) {
+        return tierNames[tier];
+    }
+
+    /** First annotation of segment in tier. */
+    public int getFirstAnnotation(int tier, int segment) {
+        return tierOffsets[tier].get(segment);
+    }
+
+    /** End of annotations of segment in tier, exclusive. */
+    public int getAnnotationEnd(int tier, int segment) {
+        return tierOffsets[tier].get(segment + 1);
+    }
+
+    /** Get value of an annotation of tier. */
+    public String getAnnotation(int tier, int annotation) {
+        return string(tierValues[tier].get(annotation));
+    }
+
+    /** Feed all utterances, HIAT:w tokens and their lemma and pos to an
+     *  index, like SQLCorpusConnection.buildIndex() does from DB.
+     */
+    public void buildIndex(InvertedIndex.Builder builder) {
+        int utterances = getUtteranceCount();
+        for (int u = 0; u < utterances; u++) {
+            builder.addUtterance(getSegmentId(u), getText(u));
+        }
+        int tiers = getTierCount();
+        for (int u = 0; u < utterances; u++) {
+            int segmentId = getSegmentId(u);
+            for (int s = getFirstSegment(u); s < getSegmentEnd(u); s++) {
+                if (!"HIAT:w".equals(getSegmentName(s))) {
+                    continue;
+                }
+                builder.addToken(segmentId, getSegmentText(s),
+                        getSegmentCharStart(s), getSegmentCharEnd(s));
+                for (int t = 0; t < tiers; t++) {
+                    for (int a = getFirstAnnotation(t, s);
+                            a < getAnnotationEnd(t, s); a++) {
+                        builder.annotate(tierNames[t], getAnnotation(t, a));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CorpusSnapshot: " + file + " of " + new Date(created) +
+            ", " + getUtteranceCount() + " utterances, " + getSegmentCount() +
+            " segments, " + transcriptions.length + " transcriptions, " +
+            tierNames.length + " tiers";
+    }
+}
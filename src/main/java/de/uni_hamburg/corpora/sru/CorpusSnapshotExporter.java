@@ -0,0 +1,63 @@
+/**
+ * @file CorpusSnapshotExporter.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.io.File;
+
+/**
+ * Writes a CorpusSnapshot of corpus DB for the endpoint to serve from.
+ * Run it with e.g.:
+ * <pre>
+ * java ... CorpusSnapshotExporter jdbc:mysql://localhost:3306/corpora anon ""
+ *      corpora.hzsc [index.hzsi]
+ * </pre>
+ * and set the file as corpusSnapshot in web.xml. With the index file,
+ * the inverted index is also built from the snapshot and saved for
+ * indexSnapshot, so that the endpoint doesn't need to build it at
+ * startup.
+ *
+ * @author tpirinen
+ */
+public class CorpusSnapshotExporter {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: CorpusSnapshotExporter JDBCURL USER " +
+                    "PASSWORD SNAPSHOTFILE [INDEXFILE]");
+            System.exit(2);
+        }
+        org.apache.tomcat.jdbc.pool.DataSource pool =
+            new org.apache.tomcat.jdbc.pool.DataSource();
+        if (args[0].startsWith("jdbc:mysql:")) {
+            pool.setDriverClassName("com.mysql.jdbc.Driver");
+        }
+        pool.setUrl(args[0]);
+        pool.setUsername(args[1]);
+        pool.setPassword(args[2]);
+        File file = new File(args[3]);
+        long started = System.currentTimeMillis();
+        CorpusSnapshot.Writer writer = new CorpusSnapshot.Writer();
+        try {
+            new SQLCorpusConnection(pool).exportSnapshot(writer);
+        } finally {
+            pool.close();
+        }
+        System.out.println("Read " + writer.getUtteranceCount() +
+                " utterances and " + writer.getSegmentCount() +
+                " segments in " + (System.currentTimeMillis() - started) +
+                " ms");
+        writer.write(file);
+        CorpusSnapshot snapshot = CorpusSnapshot.open(file);
+        System.out.println("Wrote " + snapshot + ", " + file.length() +
+                " bytes");
+        if (args.length > 4) {
+            InvertedIndex.Builder builder = new InvertedIndex.Builder();
+            snapshot.buildIndex(builder);
+            InvertedIndex index = builder.build();
+            index.save(new File(args[4]));
+            System.out.println("Wrote " + index);
+        }
+    }
+}
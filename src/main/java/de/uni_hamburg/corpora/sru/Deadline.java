@@ -0,0 +1,146 @@
+/**
+ * @file Deadline.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Time limit of one search request.
+ * The remaining time is set as query timeout of each statement the search
+ * runs, and the loops reading results check it between rows. Searches that
+ * hit the deadline stop and keep the results they have, and mark the
+ * deadline stopped so that the endpoint can tell the client the results
+ * are partial. Cancelling the deadline cancels the statements running
+ * under it, e.g. when the response is abandoned.
+ * @author tpirinen
+ */
+public class Deadline {
+
+    private final long expires;
+    private final Set<Statement> running = new HashSet<Statement>();
+    private final List<Deadline> children = new ArrayList<Deadline>();
+    private volatile boolean cancelled = false;
+    private volatile boolean stopped = false;
+
+    private Deadline(long expires) {
+        this.expires = expires;
+    }
+
+    /** Create deadline given milliseconds from now. */
+    public static Deadline after(long millis) {
+        return new Deadline(System.currentTimeMillis() + millis);
+    }
+
+    /** Create deadline that never expires, but can still be cancelled. */
+    public static Deadline none() {
+        return new Deadline(Long.MAX_VALUE);
+    }
+
+    /** Create deadline of the same time that can be cancelled on its own,
+     *  e.g. for one of searches running in parallel. Cancelling this
+     *  deadline cancels the child too, but the child's stopped mark is its
+     *  own.
+     */
+    public Deadline child() {
+        Deadline child = new Deadline(expires);
+        synchronized (running) {
+            if (!cancelled) {
+                children.add(child);
+                return child;
+            }
+        }
+        child.cancel();
+        return child;
+    }
+
+    public boolean isExpired() {
+        return cancelled || (System.currentTimeMillis() >= expires);
+    }
+
+    /** Get milliseconds left, or Long.MAX_VALUE if there is no limit. */
+    public long remainingMillis() {
+        if (expires == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, expires - System.currentTimeMillis());
+    }
+
+    /** Set query timeout of a statement to the remaining time.
+     *  The statement is cancelled if the deadline is cancelled before
+     *  finished() is called for it.
+     *  @throws SQLTimeoutException if the time is up already.
+     */
+    public void start(Statement stmt) throws SQLException {
+        if (expires != Long.MAX_VALUE) {
+            // whole seconds only, rounded up
+            long seconds = (remainingMillis() + 999) / 1000;
+            stmt.setQueryTimeout((int) Math.min(Integer.MAX_VALUE,
+                        Math.max(1, seconds)));
+        }
+        synchronized (running) {
+            // under the lock of cancel(), so that a cancel either finds the
+            // statement or is found here
+            if (isExpired()) {
+                throw new SQLTimeoutException("Deadline passed");
+            }
+            running.add(stmt);
+        }
+    }
+
+    /** Forget a statement started under the deadline. */
+    public void finished(Statement stmt) {
+        synchronized (running) {
+            running.remove(stmt);
+        }
+    }
+
+    /** Cancel the statements running under the deadline and its children
+     *  and expire it.
+     */
+    public void cancel() {
+        Statement[] statements;
+        Deadline[] cancelling;
+        synchronized (running) {
+            cancelled = true;
+            statements = running.toArray(new Statement[running.size()]);
+            cancelling = children.toArray(new Deadline[children.size()]);
+        }
+        for (Deadline child : cancelling) {
+            child.cancel();
+        }
+        for (Statement stmt : statements) {
+            try {
+                stmt.cancel();
+            } catch (SQLException sqle) {
+                // finished or closed meanwhile
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Check whether a failed statement was stopped by this deadline. */
+    public boolean causedBy(SQLException sqle) {
+        return (sqle instanceof SQLTimeoutException) || isExpired();
+    }
+
+    /** Note that a search stopped before finding all it was asked for. */
+    public void stopped() {
+        stopped = true;
+    }
+
+    /** Check whether the results under the deadline are partial. */
+    public boolean wasStopped() {
+        return stopped;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * @file EndpointAdminMBean.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+/**
+ * JMX management of the search engine: state of its caches and admission
+ * control, invalidating the caches after the corpus DB is reloaded, and
+ * loading a new corpus snapshot.
+ * @author tpirinen
+ */
+public interface EndpointAdminMBean {
+
+    /** Forget everything cached about the corpus. */
+    void invalidateCaches();
+
+    String getResultCache();
+
+    String getResultSets();
+
+    String getAdmission();
+
+    String getStatementCatalog();
+
+    String getIndex();
+
+    String getTimelineCache();
+
+    String getTranscriptionCache();
+
+    String getSnapshot();
+
+    /** Load new snapshot and index in background and swap them in. */
+    void reloadSnapshot();
+}
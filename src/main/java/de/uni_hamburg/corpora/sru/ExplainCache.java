@@ -0,0 +1,224 @@
+/**
+ * @file ExplainCache.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import eu.clarin.sru.server.SRUExplainResult;
+import eu.clarin.sru.server.SRUVersion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Pre-rendered endpoint descriptions of explain responses per SRU version.
+ * The description is rendered once to bytes by the FCS library and read
+ * back into a flat list of XML events, which is replayed to each response
+ * writer. The response writer is a StAX writer of the SRU server, so the
+ * bytes can't be copied as such, but replaying needs no walking of the
+ * description nor any DB access.
+ * @author tpirinen
+ */
+public class ExplainCache {
+
+    /** A rendered description ready to be written to responses. */
+    public static class Rendered {
+        private final List<Event> events;
+        private final int bytes;
+
+        Rendered(List<Event> events, int bytes) {
+            this.events = events;
+            this.bytes = bytes;
+        }
+
+        /** Size of the rendered XML in bytes. */
+        public int getBytes() {
+            return bytes;
+        }
+
+        public void writeTo(XMLStreamWriter writer)
+                throws XMLStreamException {
+            for (Event event : events) {
+                event.writeTo(writer);
+            }
+        }
+    }
+
+    /** One element start, end or text. */
+    private static class Event {
+        private final int type;
+        private final String prefix;
+        private final String localName;
+        private final String namespace;
+        private final String text;
+        // prefix, uri pairs
+        private final String[] namespaces;
+        // prefix, uri, local name, value quadruples
+        private final String[] attributes;
+
+        Event(int type, String prefix, String localName, String namespace,
+                String text, String[] namespaces, String[] attributes) {
+            this.type = type;
+            this.prefix = prefix;
+            this.localName = localName;
+            this.namespace = namespace;
+            this.text = text;
+            this.namespaces = namespaces;
+            this.attributes = attributes;
+        }
+
+        void writeTo(XMLStreamWriter writer) throws XMLStreamException {
+            switch (type) {
+                case XMLStreamConstants.START_ELEMENT:
+                    for (int i = 0; i < namespaces.length; i += 2) {
+                        if (namespaces[i].equals("")) {
+                            writer.setDefaultNamespace(namespaces[i + 1]);
+                        } else {
+                            writer.setPrefix(namespaces[i],
+                                    namespaces[i + 1]);
+                        }
+                    }
+                    writer.writeStartElement(prefix, localName, namespace);
+                    for (int i = 0; i < namespaces.length; i += 2) {
+                        if (namespaces[i].equals("")) {
+                            writer.writeDefaultNamespace(namespaces[i + 1]);
+                        } else {
+                            writer.writeNamespace(namespaces[i],
+                                    namespaces[i + 1]);
+                        }
+                    }
+                    for (int i = 0; i < attributes.length; i += 4) {
+                        if (attributes[i + 1].equals("")) {
+                            writer.writeAttribute(attributes[i + 2],
+                                    attributes[i + 3]);
+                        } else {
+                            writer.writeAttribute(attributes[i],
+                                    attributes[i + 1], attributes[i + 2],
+                                    attributes[i + 3]);
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(text);
+                    break;
+                default:
+                    writer.writeCharacters(text);
+                    break;
+            }
+        }
+    }
+
+    private static final String WRAPPER = "rendered";
+
+    private volatile ConcurrentMap<SRUVersion, Rendered> rendered =
+        new ConcurrentHashMap<SRUVersion, Rendered>();
+
+    /** Get rendered description for SRU version, or null if not yet. */
+    public Rendered get(SRUVersion version) {
+        return rendered.get(version);
+    }
+
+    /** Render the extra response data of an explain result and keep it.
+     *  If the cache is invalidated meanwhile, the rendering is returned but
+     *  not kept.
+     */
+    public Rendered render(SRUVersion version, SRUExplainResult result)
+            throws XMLStreamException {
+        ConcurrentMap<SRUVersion, Rendered> target = rendered;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLStreamWriter writer =
+            XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+        // wrapped so that the fragment parses as a document
+        writer.writeStartElement(WRAPPER);
+        result.writeExtraResponseData(writer);
+        writer.writeEndElement();
+        writer.flush();
+        writer.close();
+        byte[] bytes = out.toByteArray();
+        Rendered fresh = new Rendered(readEvents(bytes), bytes.length);
+        target.put(version, fresh);
+        return fresh;
+    }
+
+    /** Forget rendered descriptions, e.g. when the description changed. */
+    public void invalidate() {
+        rendered = new ConcurrentHashMap<SRUVersion, Rendered>();
+    }
+
+    private static List<Event> readEvents(byte[] bytes)
+            throws XMLStreamException {
+        List<Event> events = new ArrayList<Event>();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        XMLStreamReader reader = factory.createXMLStreamReader(
+                new ByteArrayInputStream(bytes), "UTF-8");
+        int depth = 0;
+        try {
+            while (reader.hasNext()) {
+                int type = reader.next();
+                if (type == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth == 1) {
+                        continue;
+                    }
+                    String[] namespaces =
+                        new String[reader.getNamespaceCount() * 2];
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        namespaces[i * 2] = nonNull(
+                                reader.getNamespacePrefix(i));
+                        namespaces[i * 2 + 1] = nonNull(
+                                reader.getNamespaceURI(i));
+                    }
+                    String[] attributes =
+                        new String[reader.getAttributeCount() * 4];
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        attributes[i * 4] = nonNull(
+                                reader.getAttributePrefix(i));
+                        attributes[i * 4 + 1] = nonNull(
+                                reader.getAttributeNamespace(i));
+                        attributes[i * 4 + 2] =
+                            reader.getAttributeLocalName(i);
+                        attributes[i * 4 + 3] = reader.getAttributeValue(i);
+                    }
+                    events.add(new Event(type, nonNull(reader.getPrefix()),
+                                reader.getLocalName(),
+                                nonNull(reader.getNamespaceURI()), null,
+                                namespaces, attributes));
+                } else if (type == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    if (depth == 0) {
+                        continue;
+                    }
+                    events.add(new Event(type, null, null, null, null, null,
+                                null));
+                } else if ((type == XMLStreamConstants.CHARACTERS) ||
+                        (type == XMLStreamConstants.SPACE) ||
+                        (type == XMLStreamConstants.CDATA)) {
+                    events.add(new Event(type, null, null, null,
+                                reader.getText(), null, null));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return events;
+    }
+
+    private static String nonNull(String s) {
+        return (s != null) ? s : "";
+    }
+}
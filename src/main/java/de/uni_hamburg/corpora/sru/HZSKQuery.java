@@ -7,6 +7,9 @@ package de.uni_hamburg.corpora.sru;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.z3950.zing.cql.CQLNode;
 import org.z3950.zing.cql.CQLBooleanNode;
@@ -58,16 +61,27 @@ public class HZSKQuery {
     private static final String SUPPORTED_RELATION_EXACT = "exact";
     private static final String INDEX_CQL_SERVERCHOICE = "cql.serverChoice";
     private static final String INDEX_FCS_WORDS = "words";
+    private static final String INDEX_CQL_RESULT_SET_ID = "cql.resultSetId";
     // just one combotype over all searches
     enum ComboType {WHATEVER, AND, OR, NEAR};
     protected ComboType combine = ComboType.WHATEVER;
     protected List<String> textSearch;
     protected List<String> posSearch;
     protected List<String> lemmaSearch;
+    // FCS-QL sequence of single token queries, in order
+    protected List<HZSKQuery> sequence;
     protected String fcsString;
     protected String cqlString;
+    protected String resultSetId;
+    private static final Pattern REGEX_SPECIALS =
+        Pattern.compile("[\\\\.^$|?*+()\\[\\]{}]");
     private boolean regexSearch = false;
     private boolean usable = false;
+    // positions of results in milliseconds of timeline, not characters
+    private boolean timePositions = false;
+    // compiled for the text searches it was made from
+    private volatile Highlighter highlighter;
+    private volatile List<String> highlighterTerms;
 
     public HZSKQuery() {
         this.usable = false;
@@ -91,11 +105,11 @@ public class HZSKQuery {
                     // expression.getRegexFlags()
                     if (expression.getLayerIdentifier().equals("text") &&
                             (expression.getLayerQualifier() == null)) {
-                        setTextSearch(
+                        setRegexTextSearch(
                                 expression.getRegexValue());
                     } else if (expression.getLayerIdentifier().equals("word") &&
                             (expression.getLayerQualifier() == null)) {
-                        setTextSearch(
+                        setRegexTextSearch(
                                 expression.getRegexValue());
                     } else if (expression.getLayerIdentifier().equals("pos") &&
                             (expression.getLayerQualifier() == null)) {
@@ -123,11 +137,18 @@ public class HZSKQuery {
                         "Endpoint only supports default occurances in segments");
             }
         } else if (query instanceof QuerySequence) {
-            QuerySequence sequence = (QuerySequence) query;
-            for (QueryNode child : sequence.getChildren()) {
+            QuerySequence querySequence = (QuerySequence) query;
+            sequence = new ArrayList<HZSKQuery>();
+            for (QueryNode child : querySequence.getChildren()) {
                 HZSKQuery childQuery = new HZSKQuery();
                 childQuery.initialise(child);
+                // flattened for backends that only check co-occurrence
                 combineAnd(childQuery);
+                if (childQuery.isSequence()) {
+                    sequence.addAll(childQuery.sequence);
+                } else {
+                    sequence.add(childQuery);
+                }
             }
         } else  {
             throw new SRUException(
@@ -144,7 +165,8 @@ public class HZSKQuery {
             // XXX: this is temp hack until I figure out why FCS QL don't come
             // through
             if ((INDEX_CQL_SERVERCHOICE.equals(root.getIndex())
-                    || INDEX_FCS_WORDS.equals(root.getIndex()))) {
+                    || INDEX_FCS_WORDS.equals(root.getIndex())
+                    || INDEX_CQL_RESULT_SET_ID.equals(root.getIndex()))) {
                 // pass
             } else {
                 throw new SRUException(SRUConstants.SRU_UNSUPPORTED_INDEX,
@@ -177,7 +199,18 @@ public class HZSKQuery {
                 throw new SRUException(SRUConstants.SRU_EMPTY_TERM_UNSUPPORTED,
                         "An empty term is not supported.");
             }
-            setTextSearch(term);
+            if (INDEX_CQL_RESULT_SET_ID.equals(root.getIndex())) {
+                if (recursion > 0) {
+                    throw new SRUException(
+                            SRUConstants.SRU_QUERY_FEATURE_UNSUPPORTED,
+                            "Result sets can't be combined with other " +
+                            "terms.");
+                }
+                resultSetId = term;
+                usable = true;
+            } else {
+                setTextSearch(term);
+            }
         } else if (query instanceof CQLBooleanNode) {
             if (recursion > 0) {
                 throw new SRUException(SRUConstants.SRU_QUERY_FEATURE_UNSUPPORTED,
@@ -269,6 +302,7 @@ public class HZSKQuery {
     // @fixme there's no sanity checks here just overwriting
     public void combineOr(HZSKQuery rhs) {
         textSearch.addAll(rhs.textSearch);
+        regexSearch = regexSearch || rhs.regexSearch;
         posSearch.addAll(rhs.posSearch);
         lemmaSearch.addAll(rhs.lemmaSearch);
         combine = ComboType.OR;
@@ -277,6 +311,7 @@ public class HZSKQuery {
 
     public void combineAnd(HZSKQuery rhs) {
         textSearch.addAll(rhs.textSearch);
+        regexSearch = regexSearch || rhs.regexSearch;
         posSearch.addAll(rhs.posSearch);
         lemmaSearch.addAll(rhs.lemmaSearch);
         combine = ComboType.AND;
@@ -335,6 +370,58 @@ public class HZSKQuery {
         usable = true;
     }
 
+    /** Set text search from FCS-QL, where values are regular expressions.
+     *  @throws SRUException if the regular expression is broken.
+     */
+    public void setRegexTextSearch(String search) throws SRUException {
+        try {
+            Pattern.compile(search);
+        } catch (PatternSyntaxException pse) {
+            throw new SRUException(SRUConstants.SRU_QUERY_SYNTAX_ERROR,
+                    search, "Broken regular expression: " +
+                    pse.getDescription());
+        }
+        setTextSearch(search);
+        regexSearch = true;
+    }
+
+    /** Check if text searches are regular expressions or literal strings. */
+    public boolean isRegexSearch() {
+        return regexSearch;
+    }
+
+    /** Get highlighter for text searches, compiled once for all records.
+     *  It's compiled again if the searches or modes have changed since.
+     */
+    public Highlighter getHighlighter(int modes) {
+        Highlighter compiled = highlighter;
+        if ((compiled == null) || (compiled.getModes() != modes) ||
+                !textSearch.equals(highlighterTerms)) {
+            compiled = new Highlighter(this, modes);
+            highlighterTerms = new ArrayList<String>(textSearch);
+            highlighter = compiled;
+        }
+        return compiled;
+    }
+
+    /** Select whether results are positioned in time or in characters.
+     *  Positions in time are in milliseconds from the timeline of the
+     *  transcription; texts aren't highlighted then, since hits are found
+     *  in characters.
+     */
+    public void setTimePositions(boolean timePositions) {
+        this.timePositions = timePositions;
+    }
+
+    public boolean isTimePositions() {
+        return timePositions;
+    }
+
+    /** Check if a text search term is a literal string as well as regex. */
+    public static boolean isLiteral(String term) {
+        return !REGEX_SPECIALS.matcher(term).find();
+    }
+
     public void setPosSearch(String search) {
         posSearch.clear();
         posSearch.add(search);
@@ -381,9 +468,63 @@ public class HZSKQuery {
         return lemmaSearch;
     }
 
+    /** Get result set id of cql.resultSetId query, or null. */
+    public String getResultSetId() {
+        return resultSetId;
+    }
+
     public HZSKQuery.ComboType getCombinator() {
         return combine;
     }
 
+    /** Check if query is a sequence of adjacent tokens from FCS-QL. */
+    public boolean isSequence() {
+        return (sequence != null) && (sequence.size() > 1);
+    }
+
+    /** Get the token queries of a sequence in order.
+     *  Each has one text, pos or lemma search.
+     */
+    public List<HZSKQuery> getSequence() {
+        return sequence;
+    }
+
+    /** Get a normalised form of the query usable as a key or for hashes.
+     *  Terms combined with AND or OR are sorted since their order doesn't
+     *  matter, while terms that are concatenated keep their order.
+     */
+    public String toCanonicalString() {
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(combine);
+        if (regexSearch) {
+            canonical.append("|regex");
+        }
+        if (isSequence()) {
+            // order matters in sequences
+            canonical.append("|seq");
+            for (HZSKQuery item : sequence) {
+                canonical.append("|(").append(item.toCanonicalString())
+                    .append(')');
+            }
+        }
+        appendCanonicalTerms(canonical, "text", textSearch);
+        appendCanonicalTerms(canonical, "pos", posSearch);
+        appendCanonicalTerms(canonical, "lemma", lemmaSearch);
+        return canonical.toString();
+    }
+
+    private void appendCanonicalTerms(StringBuilder canonical, String layer,
+            List<String> terms) {
+        List<String> sorted = new ArrayList<String>(terms);
+        if ((combine == ComboType.AND) || (combine == ComboType.OR)) {
+            Collections.sort(sorted);
+        }
+        canonical.append('|').append(layer).append('=');
+        for (String term : sorted) {
+            // length prefix keeps terms with separators unambiguous
+            canonical.append(term.length()).append(':').append(term);
+        }
+    }
+
 
 }
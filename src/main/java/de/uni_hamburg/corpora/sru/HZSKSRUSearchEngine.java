@@ -2,17 +2,32 @@
  */
 package de.uni_hamburg.corpora.sru;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
 import java.net.MalformedURLException;
+import java.text.SimpleDateFormat;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.servlet.ServletContext;
+import javax.sql.DataSource;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,8 +59,10 @@ import eu.clarin.sru.server.SRUConstants;
 import eu.clarin.sru.server.SRUDiagnostic;
 import eu.clarin.sru.server.SRUDiagnosticList;
 import eu.clarin.sru.server.SRUException;
+import eu.clarin.sru.server.SRUExplainResult;
 import eu.clarin.sru.server.SRUQueryParserRegistry.Builder;
 import eu.clarin.sru.server.SRURequest;
+import eu.clarin.sru.server.SRUResultCountPrecision;
 import eu.clarin.sru.server.SRUScanResultSet;
 import eu.clarin.sru.server.SRUSearchResultSet;
 import eu.clarin.sru.server.SRUServerConfig;
@@ -64,18 +81,105 @@ public class HZSKSRUSearchEngine extends SimpleEndpointSearchEngineBase {
     private static final String CLARIN_FCS_RECORD_SCHEMA = FCS_NS;
     private static final String FCS_PREFIX = "fcs";
     private static final String CLARIN_CONTEXT = "x-cmd-context";
+    private static final String HZSK_CONTINUATION = "x-hzsk-continuation";
+    private static final String HZSK_TIMEOUT = "x-hzsk-timeout";
+    private static final String HZSK_POSITIONS = "x-hzsk-positions";
+    private static final String HZSK_NS = "http://corpora.uni-hamburg.de/sru";
+    private static final String HZSK_PREFIX = "hzsk";
     private static final int HZSK_MAX_CORPORA_IN_DB = 250;
+    private static final String PARAM_HIT_COUNT =
+        "de.uni_hamburg.corpora.sru.hitCount";
+    private static final String PARAM_HIT_COUNT_TIMEOUT =
+        "de.uni_hamburg.corpora.sru.hitCountTimeout";
+    private static final long DEFAULT_HIT_COUNT_TIMEOUT = 2000;
+    private static final String PARAM_QUERY_TIMEOUT =
+        "de.uni_hamburg.corpora.sru.queryTimeout";
+    private static final long DEFAULT_QUERY_TIMEOUT = 30000;
+    private static final String PARAM_FULLTEXT =
+        "de.uni_hamburg.corpora.sru.fulltext";
+    private static final String PARAM_HIGHLIGHT =
+        "de.uni_hamburg.corpora.sru.highlight";
+    private static final String PARAM_TIMELINE_CACHE =
+        "de.uni_hamburg.corpora.sru.timelineCache";
+    private static final String PARAM_INDEX =
+        "de.uni_hamburg.corpora.sru.index";
+    private static final String PARAM_INDEX_SNAPSHOT =
+        "de.uni_hamburg.corpora.sru.indexSnapshot";
+    private static final String PARAM_CORPUS_SNAPSHOT =
+        "de.uni_hamburg.corpora.sru.corpusSnapshot";
+    private static final String PARAM_SNAPSHOT_CHECK =
+        "de.uni_hamburg.corpora.sru.snapshotCheck";
+    private static final long DEFAULT_SNAPSHOT_CHECK = 60;
+    private static final String PARAM_PARTITIONS =
+        "de.uni_hamburg.corpora.sru.partitions";
+    private static final String PARAM_STREAMING =
+        "de.uni_hamburg.corpora.sru.streaming";
+    private static final String PARAM_RESULT_CACHE_MB =
+        "de.uni_hamburg.corpora.sru.resultCacheMB";
+    private static final String PARAM_RESULT_CACHE_TTL =
+        "de.uni_hamburg.corpora.sru.resultCacheTTL";
+    private static final int DEFAULT_RESULT_CACHE_TTL = 300;
+    private static final String PARAM_RESULT_SETS_MB =
+        "de.uni_hamburg.corpora.sru.resultSetsMB";
+    private static final String PARAM_RESULT_SET_TTL =
+        "de.uni_hamburg.corpora.sru.resultSetTTL";
+    private static final int DEFAULT_RESULT_SET_TTL = 600;
+    private static final int RESULT_SET_MAX_IDS = 1000000;
+    private static final String PARAM_MAX_SEARCHES =
+        "de.uni_hamburg.corpora.sru.maxSearches";
+    private static final String PARAM_MAX_SCANS =
+        "de.uni_hamburg.corpora.sru.maxScans";
+    private static final String PARAM_MAX_EXPLAINS =
+        "de.uni_hamburg.corpora.sru.maxExplains";
+    private static final String PARAM_ADMISSION_WAIT =
+        "de.uni_hamburg.corpora.sru.admissionWait";
+    private static final long DEFAULT_ADMISSION_WAIT = 2000;
+    private static final String PARAM_ADMISSION_QUEUE =
+        "de.uni_hamburg.corpora.sru.admissionQueue";
+    private static final int DEFAULT_ADMISSION_QUEUE = 50;
+    private static final String PARAM_CLIENT_RATE =
+        "de.uni_hamburg.corpora.sru.clientRate";
+    private static final String PARAM_CLIENT_BURST =
+        "de.uni_hamburg.corpora.sru.clientBurst";
+    private static final int DEFAULT_CLIENT_BURST = 20;
+    private static final String PARAM_EXPLAIN_REFRESH =
+        "de.uni_hamburg.corpora.sru.explainRefresh";
+    private static final long DEFAULT_EXPLAIN_REFRESH = 3600;
+    /** Servlet context attribute with a DataSource of the corpus DB to use
+     *  instead of jdbc/corpora from JNDI, e.g. an embedded DB for tests.
+     */
+    public static final String DATA_SOURCE_ATTRIBUTE =
+        "de.uni_hamburg.corpora.sru.dataSource";
+    private static final String X_FCS_ENDPOINT_DESCRIPTION =
+        "x-fcs-endpoint-description";
     private static final String HAMATAC_PID =
         "http://hdl.handle.net/11022/0000-0000-63C5-2";
     private static final Logger logger =
             LoggerFactory.getLogger(HZSKSRUSearchEngine.class);
 
     private SQLCorpusConnection corpusDB;
+    private HitCounter hitCounter;
+    private long hitCountTimeout = DEFAULT_HIT_COUNT_TIMEOUT;
+    private long queryTimeout = DEFAULT_QUERY_TIMEOUT;
+    private final SnapshotManager snapshots = new SnapshotManager();
+    private ScheduledExecutorService snapshotLoader;
+    private File snapshotFile; // corpus snapshot or null
+    private File indexSnapshotFile; // index snapshot or null
+    private boolean indexed = false; // whether versions have an index
+    private volatile long snapshotModified;
+    private PartitionedSearch partitionedSearch;
+    private boolean streaming = false;
+    private ResultCache resultCache;
+    private ResultSetStore resultSets;
+    private final ExplainCache explainCache = new ExplainCache();
+    private ScheduledExecutorService explainRefresher;
+    private AdmissionController admission;
 
     /**
      * Create endpoint description from bundled XML, fallback to DB.
      * XML solution uses endpoint-description.xml in WEB-INF by context, DB
-     * expects to find attributes in ex_corpus_desc_item table.
+     * expects to find attributes in ex_corpus_desc_item table. The DB
+     * description is rebuilt every explainRefresh seconds in background.
      */
     @Override
     protected EndpointDescription createEndpointDescription(ServletContext
@@ -93,58 +197,19 @@ public class HZSKSRUSearchEngine extends SimpleEndpointSearchEngineBase {
             return descr;
         }
         // else parse DB
+        connectCorpusDB(context);
+        long refresh = DEFAULT_EXPLAIN_REFRESH;
+        String refreshParam = params.get(PARAM_EXPLAIN_REFRESH);
+        if (refreshParam != null) {
+            try {
+                refresh = Long.parseLong(refreshParam);
+            } catch (NumberFormatException nfe) {
+                throw new SRUConfigException("Broken " +
+                        PARAM_EXPLAIN_REFRESH + ": " + refreshParam, nfe);
+            }
+        }
         try {
-            DBDescriptionResult resources =
-                corpusDB.getResourceInfos(HZSK_MAX_CORPORA_IN_DB);
-            List<ResourceInfo> entries = new ArrayList<ResourceInfo>();
-            // Using the same stuff for
-            List<Layer> commonLayers = new ArrayList<Layer>();
-            List<DataView> commonDataviews = new ArrayList<DataView>();
-            for (int resourceIndex = 0; resourceIndex < resources.getLength();
-                    ++resourceIndex) {
-                DBDescriptionResult.Record r =
-                    resources.getRecordAt(resourceIndex);
-                String pid = r.getPid();
-                Map<String, String> title = r.getTitle();
-                Map<String, String> description = r.getDescription();
-                URI landingPageURI = r.getLandingPageURI();
-                List<String> languages = r.getLanguages();
-
-                // common for all of ours (don't know why repeated)
-                List<Layer> layers = new ArrayList<Layer>();
-                layers.add(new Layer("layer1",
-                        new URI("http://www.corpora.uni-hamburg.de/layers/orth1"),
-                        "orth"));
-                List<DataView> dataviews = new ArrayList<DataView>();
-                dataviews.add(new DataView("kwic_dataview",
-                            "application/x-clarin-fcs-kwic+xml",
-                            DataView.DeliveryPolicy.SEND_BY_DEFAULT));
-                dataviews.add(new DataView("hits_dataview",
-                            "application/x-clarin-fcs-hits+xml",
-                            DataView.DeliveryPolicy.SEND_BY_DEFAULT));
-                List<ResourceInfo> subResources = null;
-                ResourceInfo ri = new ResourceInfo(pid, title, description,
-                        landingPageURI.toString(), languages, dataviews, layers,
-                        subResources);
-                entries.add(ri);
-            }
-            List<URI> capabilities = new ArrayList<URI>();
-            commonLayers.add(new Layer("layer1",
-                    new URI("http://www.corpora.uni-hamburg.de/layers/orth1"),
-                    "orth"));
-            commonDataviews.add(new DataView("kwic_dataview",
-                        "application/x-clarin-fcs-kwic+xml",
-                        DataView.DeliveryPolicy.SEND_BY_DEFAULT));
-            commonDataviews.add(new DataView("hits_dataview",
-                        "application/x-clarin-fcs-hits+xml",
-                        DataView.DeliveryPolicy.SEND_BY_DEFAULT));
-            capabilities.add(new
-                    URI("http://clarin.eu/fcs/capability/basic-search"));
-            SimpleEndpointDescription resourceInfos =
-                new SimpleEndpointDescription(capabilities, commonDataviews,
-                        commonLayers,
-                        entries, false);
-            return resourceInfos;
+            descr = createDBEndpointDescription();
         } catch (SQLException e) {
             logger.error("error processing query", e);
             throw new SRUConfigException(
@@ -157,6 +222,114 @@ public class HZSKSRUSearchEngine extends SimpleEndpointSearchEngineBase {
             throw new SRUConfigException("Configurations broken in HZSK stuff",
                     use);
         }
+        if (refresh <= 0) {
+            return descr;
+        }
+        final RefreshableEndpointDescription refreshable =
+            new RefreshableEndpointDescription(descr);
+        explainRefresher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HZSK explain refresher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        explainRefresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    EndpointDescription fresh = createDBEndpointDescription();
+                    if (fresh.getResourceList(
+                                EndpointDescription.PID_ROOT).isEmpty()) {
+                        // DB errors give empty descriptions
+                        logger.warn("no resources in DB, keeping old " +
+                                "endpoint description");
+                        return;
+                    }
+                    refreshable.swap(fresh);
+                    explainCache.invalidate();
+                    refreshTranscriptions();
+                } catch (Exception e) {
+                    logger.error("refreshing endpoint description failed, " +
+                            "keeping old", e);
+                }
+            }
+        }, refresh, refresh, TimeUnit.SECONDS);
+        return refreshable;
+    }
+
+    /** Create endpoint description from corpora in DB. */
+    private EndpointDescription createDBEndpointDescription()
+            throws SQLException, java.net.URISyntaxException {
+        DBDescriptionResult resources =
+            corpusDB.getResourceInfos(HZSK_MAX_CORPORA_IN_DB);
+        List<ResourceInfo> entries = new ArrayList<ResourceInfo>();
+        // Using the same stuff for
+        List<Layer> commonLayers = new ArrayList<Layer>();
+        List<DataView> commonDataviews = new ArrayList<DataView>();
+        for (int resourceIndex = 0; resourceIndex < resources.getLength();
+                ++resourceIndex) {
+            DBDescriptionResult.Record r =
+                resources.getRecordAt(resourceIndex);
+            String pid = r.getPid();
+            Map<String, String> title = r.getTitle();
+            Map<String, String> description = r.getDescription();
+            URI landingPageURI = r.getLandingPageURI();
+            List<String> languages = r.getLanguages();
+
+            // common for all of ours (don't know why repeated)
+            List<Layer> layers = new ArrayList<Layer>();
+            layers.add(new Layer("layer1",
+                    new URI("http://www.corpora.uni-hamburg.de/layers/orth1"),
+                    "orth"));
+            List<DataView> dataviews = new ArrayList<DataView>();
+            dataviews.add(new DataView("kwic_dataview",
+                        "application/x-clarin-fcs-kwic+xml",
+                        DataView.DeliveryPolicy.SEND_BY_DEFAULT));
+            dataviews.add(new DataView("hits_dataview",
+                        "application/x-clarin-fcs-hits+xml",
+                        DataView.DeliveryPolicy.SEND_BY_DEFAULT));
+            List<ResourceInfo> subResources = null;
+            ResourceInfo ri = new ResourceInfo(pid, title, description,
+                    landingPageURI.toString(), languages, dataviews, layers,
+                    subResources);
+            entries.add(ri);
+        }
+        List<URI> capabilities = new ArrayList<URI>();
+        commonLayers.add(new Layer("layer1",
+                new URI("http://www.corpora.uni-hamburg.de/layers/orth1"),
+                "orth"));
+        commonDataviews.add(new DataView("kwic_dataview",
+                    "application/x-clarin-fcs-kwic+xml",
+                    DataView.DeliveryPolicy.SEND_BY_DEFAULT));
+        commonDataviews.add(new DataView("hits_dataview",
+                    "application/x-clarin-fcs-hits+xml",
+                    DataView.DeliveryPolicy.SEND_BY_DEFAULT));
+        capabilities.add(new
+                URI("http://clarin.eu/fcs/capability/basic-search"));
+        SimpleEndpointDescription resourceInfos =
+            new SimpleEndpointDescription(capabilities, commonDataviews,
+                    commonLayers,
+                    entries, false);
+        return resourceInfos;
+    }
+
+    /** Connect to corpus DB unless already done for endpoint description.
+     *  Uses the DataSource in context attribute DATA_SOURCE_ATTRIBUTE if
+     *  there is one, otherwise jdbc/corpora from JNDI.
+     */
+    private void connectCorpusDB(ServletContext context) {
+        if (corpusDB != null) {
+            return;
+        }
+        Object dataSource = context.getAttribute(DATA_SOURCE_ATTRIBUTE);
+        if (dataSource instanceof DataSource) {
+            corpusDB = new SQLCorpusConnection((DataSource) dataSource);
+        } else {
+            corpusDB = new SQLCorpusConnection();
+        }
     }
 
     /** Initialise database connection. */
@@ -164,7 +337,578 @@ public class HZSKSRUSearchEngine extends SimpleEndpointSearchEngineBase {
     protected void doInit(ServletContext context, SRUServerConfig config,
             Builder builder, Map<String, String> params)
     throws SRUConfigException {
-        corpusDB = new SQLCorpusConnection();
+        connectCorpusDB(context);
+        if ("false".equals(params.get(PARAM_FULLTEXT))) {
+            corpusDB.setUseFulltext(false);
+        }
+        String highlightParam = params.get(PARAM_HIGHLIGHT);
+        if (highlightParam != null) {
+            int modes = 0;
+            for (String mode : highlightParam.split("[ ,]+")) {
+                if (mode.equals("casefold")) {
+                    modes |= Highlighter.CASE_FOLDING;
+                } else if (mode.equals("words")) {
+                    modes |= Highlighter.WORD_BOUNDARIES;
+                } else if (!mode.equals("exact") && !mode.isEmpty()) {
+                    throw new SRUConfigException("Unknown " +
+                            PARAM_HIGHLIGHT + ": " + mode +
+                            " (exact, casefold or words)");
+                }
+            }
+            corpusDB.setHighlightModes(modes);
+        }
+        int timelines = (int) numberParam(params, PARAM_TIMELINE_CACHE,
+                SQLCorpusConnection.DEFAULT_TIMELINES);
+        corpusDB.setTimelineCache(new TimelineCache(timelines));
+        String snapshotParam = params.get(PARAM_CORPUS_SNAPSHOT);
+        if (snapshotParam != null) {
+            snapshotFile = new File(snapshotParam);
+            try {
+                snapshotModified = snapshotFile.lastModified();
+                CorpusSnapshot snapshot = CorpusSnapshot.open(snapshotFile);
+                corpusDB.setSnapshot(snapshot);
+                snapshots.swap(snapshots.create(snapshot, null));
+                logger.info("serving records from {}", snapshot);
+            } catch (IOException ioe) {
+                throw new SRUConfigException("Cannot open " +
+                        PARAM_CORPUS_SNAPSHOT + ": " + snapshotParam, ioe);
+            }
+        }
+        refreshTranscriptions();
+        String countParam = params.get(PARAM_HIT_COUNT);
+        if (countParam == null) {
+            countParam = "count";
+        }
+        if (countParam.equals("count")) {
+            hitCounter = new HitCounter(corpusDB, HitCounter.Strategy.COUNT);
+        } else if (countParam.equals("estimate")) {
+            hitCounter = new HitCounter(corpusDB,
+                    HitCounter.Strategy.ESTIMATE);
+        } else if (countParam.equals("cached")) {
+            hitCounter = new HitCounter(corpusDB, HitCounter.Strategy.CACHED);
+        } else if (!countParam.equals("none")) {
+            throw new SRUConfigException("Unknown " + PARAM_HIT_COUNT +
+                    ": " + countParam + " (count, estimate, cached or none)");
+        }
+        String timeoutParam = params.get(PARAM_HIT_COUNT_TIMEOUT);
+        if (timeoutParam != null) {
+            try {
+                hitCountTimeout = Long.parseLong(timeoutParam);
+            } catch (NumberFormatException nfe) {
+                throw new SRUConfigException("Broken " +
+                        PARAM_HIT_COUNT_TIMEOUT + ": " + timeoutParam, nfe);
+            }
+        }
+        String queryTimeoutParam = params.get(PARAM_QUERY_TIMEOUT);
+        if (queryTimeoutParam != null) {
+            try {
+                queryTimeout = Long.parseLong(queryTimeoutParam);
+            } catch (NumberFormatException nfe) {
+                throw new SRUConfigException("Broken " +
+                        PARAM_QUERY_TIMEOUT + ": " + queryTimeoutParam, nfe);
+            }
+        }
+        String partitionsParam = params.get(PARAM_PARTITIONS);
+        if (partitionsParam != null) {
+            int partitions;
+            try {
+                partitions = Integer.parseInt(partitionsParam);
+            } catch (NumberFormatException nfe) {
+                throw new SRUConfigException("Broken " + PARAM_PARTITIONS +
+                        ": " + partitionsParam, nfe);
+            }
+            if (partitions > 1) {
+                partitionedSearch = new PartitionedSearch(corpusDB,
+                        partitions);
+            }
+        }
+        streaming = "true".equals(params.get(PARAM_STREAMING));
+        String cacheParam = params.get(PARAM_RESULT_CACHE_MB);
+        if (cacheParam != null) {
+            long cacheMB;
+            int cacheTTL = DEFAULT_RESULT_CACHE_TTL;
+            String ttlParam = params.get(PARAM_RESULT_CACHE_TTL);
+            try {
+                cacheMB = Long.parseLong(cacheParam);
+                if (ttlParam != null) {
+                    cacheTTL = Integer.parseInt(ttlParam);
+                }
+            } catch (NumberFormatException nfe) {
+                throw new SRUConfigException("Broken " +
+                        PARAM_RESULT_CACHE_MB + " or " +
+                        PARAM_RESULT_CACHE_TTL + ": " + cacheParam + ", " +
+                        ttlParam, nfe);
+            }
+            if ((cacheMB > 0) && (cacheTTL > 0)) {
+                resultCache = new ResultCache(cacheMB * 1024 * 1024,
+                        cacheTTL);
+            }
+        }
+        String setsParam = params.get(PARAM_RESULT_SETS_MB);
+        if (setsParam != null) {
+            long setsMB;
+            int setTTL = DEFAULT_RESULT_SET_TTL;
+            String ttlParam = params.get(PARAM_RESULT_SET_TTL);
+            try {
+                setsMB = Long.parseLong(setsParam);
+                if (ttlParam != null) {
+                    setTTL = Integer.parseInt(ttlParam);
+                }
+            } catch (NumberFormatException nfe) {
+                throw new SRUConfigException("Broken " +
+                        PARAM_RESULT_SETS_MB + " or " +
+                        PARAM_RESULT_SET_TTL + ": " + setsParam + ", " +
+                        ttlParam, nfe);
+            }
+            if ((setsMB > 0) && (setTTL > 0)) {
+                resultSets = new ResultSetStore(setsMB * 1024 * 1024, setTTL,
+                        RESULT_SET_MAX_IDS);
+            }
+        }
+        initAdmission(params);
+        String indexParam = params.get(PARAM_INDEX);
+        if ("memory".equals(indexParam)) {
+            indexed = true;
+            String indexSnapshot = params.get(PARAM_INDEX_SNAPSHOT);
+            if (indexSnapshot != null) {
+                indexSnapshotFile = new File(indexSnapshot);
+            }
+        } else if ((indexParam != null) && !indexParam.equals("none")) {
+            throw new SRUConfigException("Unknown " + PARAM_INDEX +
+                    ": " + indexParam + " (memory or none)");
+        }
+        startSnapshotLoader((long) numberParam(params, PARAM_SNAPSHOT_CHECK,
+                    DEFAULT_SNAPSHOT_CHECK));
+        initMetrics();
+    }
+
+    /** Add gauges of the caches and admission control to the metrics and
+     *  register them and the admin MBean in JMX.
+     */
+    private void initMetrics() {
+        if (resultCache != null) {
+            Metrics.gauge("result_cache_entries", "Pages in result cache",
+                    false, new Metrics.Gauge() {
+                        @Override
+                        public long getValue() {
+                            return resultCache.size();
+                        }
+                    });
+            Metrics.gauge("result_cache_bytes", "Estimated result cache size",
+                    false, new Metrics.Gauge() {
+                        @Override
+                        public long getValue() {
+                            return resultCache.getBytes();
+                        }
+                    });
+            Metrics.gauge("result_cache_hits", "Result cache hits", true,
+                    new Metrics.Gauge() {
+                        @Override
+                        public long getValue() {
+                            return resultCache.getHits();
+                        }
+                    });
+            Metrics.gauge("result_cache_misses", "Result cache misses", true,
+                    new Metrics.Gauge() {
+                        @Override
+                        public long getValue() {
+                            return resultCache.getMisses();
+                        }
+                    });
+        }
+        if (resultSets != null) {
+            Metrics.gauge("result_sets", "Stored result sets", false,
+                    new Metrics.Gauge() {
+                        @Override
+                        public long getValue() {
+                            return resultSets.size();
+                        }
+                    });
+            Metrics.gauge("result_sets_bytes", "Estimated result set size",
+                    false, new Metrics.Gauge() {
+                        @Override
+                        public long getValue() {
+                            return resultSets.getBytes();
+                        }
+                    });
+        }
+        final StatementCatalog catalog = corpusDB.getStatementCatalog();
+        Metrics.gauge("statement_catalog_hits",
+                "Queries with a cataloged statement", true,
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return catalog.getHits();
+                    }
+                });
+        Metrics.gauge("statement_catalog_misses",
+                "Queries that needed new SQL", true, new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return catalog.getMisses();
+                    }
+                });
+        final TimelineCache timelines = corpusDB.getTimelineCache();
+        Metrics.gauge("timeline_cache_transcriptions",
+                "Transcriptions in timeline cache", false,
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return timelines.size();
+                    }
+                });
+        Metrics.gauge("timeline_cache_hits", "Timeline cache hits", true,
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return timelines.getHits();
+                    }
+                });
+        Metrics.gauge("timeline_cache_misses", "Timeline cache misses", true,
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return timelines.getMisses();
+                    }
+                });
+        final TranscriptionCache transcriptions =
+            corpusDB.getTranscriptionCache();
+        Metrics.gauge("transcription_cache_transcriptions",
+                "Transcriptions in transcription cache", false,
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return transcriptions.size();
+                    }
+                });
+        Metrics.gauge("transcription_cache_misses",
+                "Transcription cache misses", true,
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return transcriptions.getMisses();
+                    }
+                });
+        Metrics.gauge("snapshot_version", "Version of corpus snapshot and " +
+                "index in use", false, new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        SnapshotManager.Version version =
+                            snapshots.getCurrent();
+                        return (version != null) ? version.getNumber() : 0;
+                    }
+                });
+        Metrics.gauge("snapshot_created_ms", "Time the data of the version " +
+                "in use is from", false, new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        SnapshotManager.Version version =
+                            snapshots.getCurrent();
+                        return (version != null) ? version.getCreated() : 0;
+                    }
+                });
+        Metrics.gauge("snapshot_swaps", "Versions swapped in", true,
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return snapshots.getSwaps();
+                    }
+                });
+        Metrics.gauge("snapshot_retiring", "Old versions still held by " +
+                "searches", false, new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return snapshots.getRetiring();
+                    }
+                });
+        if (admission != null) {
+            for (AdmissionController.Operation op :
+                    AdmissionController.Operation.values()) {
+                final AdmissionController.Gate gate = admission.getGate(op);
+                if (gate == null) {
+                    continue;
+                }
+                String name = op.toString().toLowerCase();
+                Metrics.gauge(name + "_active", "Running " + name +
+                        " requests", false, new Metrics.Gauge() {
+                            @Override
+                            public long getValue() {
+                                return gate.getActive();
+                            }
+                        });
+                Metrics.gauge(name + "_queued", "Queued " + name +
+                        " requests", false, new Metrics.Gauge() {
+                            @Override
+                            public long getValue() {
+                                return gate.getQueued();
+                            }
+                        });
+                Metrics.gauge(name + "_rejected", "Rejected " + name +
+                        " requests", true, new Metrics.Gauge() {
+                            @Override
+                            public long getValue() {
+                                return gate.getRejectedBusy() +
+                                    gate.getRejectedRate();
+                            }
+                        });
+            }
+        }
+        Metrics.registerMBeans();
+        Metrics.registerMBean("Endpoint", "HZSKSRU",
+                new EndpointAdminMBean() {
+                    @Override
+                    public void invalidateCaches() {
+                        HZSKSRUSearchEngine.this.invalidateCaches();
+                    }
+
+                    @Override
+                    public String getResultCache() {
+                        return String.valueOf(resultCache);
+                    }
+
+                    @Override
+                    public String getResultSets() {
+                        return String.valueOf(resultSets);
+                    }
+
+                    @Override
+                    public String getAdmission() {
+                        return String.valueOf(admission);
+                    }
+
+                    @Override
+                    public String getStatementCatalog() {
+                        return String.valueOf(catalog);
+                    }
+
+                    @Override
+                    public String getIndex() {
+                        SnapshotManager.Version version =
+                            snapshots.getCurrent();
+                        return String.valueOf((version != null) ?
+                                version.getIndex() : null);
+                    }
+
+                    @Override
+                    public String getSnapshot() {
+                        return String.valueOf(snapshots);
+                    }
+
+                    @Override
+                    public void reloadSnapshot() {
+                        HZSKSRUSearchEngine.this.reloadSnapshot();
+                    }
+
+                    @Override
+                    public String getTimelineCache() {
+                        return String.valueOf(timelines);
+                    }
+
+                    @Override
+                    public String getTranscriptionCache() {
+                        return String.valueOf(transcriptions);
+                    }
+                }, EndpointAdminMBean.class);
+    }
+
+    /** Set up admission control if any operation is limited.
+     *  maxSearches, maxScans and maxExplains limit concurrent requests,
+     *  others wait up to admissionWait ms in a queue of admissionQueue, and
+     *  each client may send clientRate requests per second with bursts of
+     *  clientBurst.
+     */
+    private void initAdmission(Map<String, String> params)
+            throws SRUConfigException {
+        int maxSearches = (int) numberParam(params, PARAM_MAX_SEARCHES, 0);
+        int maxScans = (int) numberParam(params, PARAM_MAX_SCANS, 0);
+        int maxExplains = (int) numberParam(params, PARAM_MAX_EXPLAINS, 0);
+        if ((maxSearches <= 0) && (maxScans <= 0) && (maxExplains <= 0)) {
+            return;
+        }
+        admission = new AdmissionController(
+                (long) numberParam(params, PARAM_ADMISSION_WAIT,
+                    DEFAULT_ADMISSION_WAIT),
+                (int) numberParam(params, PARAM_ADMISSION_QUEUE,
+                    DEFAULT_ADMISSION_QUEUE),
+                numberParam(params, PARAM_CLIENT_RATE, 0),
+                numberParam(params, PARAM_CLIENT_BURST,
+                    DEFAULT_CLIENT_BURST));
+        admission.setLimit(AdmissionController.Operation.SEARCH,
+                maxSearches);
+        admission.setLimit(AdmissionController.Operation.SCAN, maxScans);
+        admission.setLimit(AdmissionController.Operation.EXPLAIN,
+                maxExplains);
+    }
+
+    private static double numberParam(Map<String, String> params,
+            String name, double defaultValue) throws SRUConfigException {
+        String param = params.get(name);
+        if (param == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(param);
+        } catch (NumberFormatException nfe) {
+            throw new SRUConfigException("Broken " + name + ": " + param,
+                    nfe);
+        }
+    }
+
+    /** Get admission control of requests, or null if not limited. */
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    /** Wait for a slot for a request, if the operation is limited.
+     *  @return permit to release when done, or null.
+     */
+    private AdmissionController.Permit admit(
+            AdmissionController.Operation operation) throws SRUException {
+        if (admission == null) {
+            return null;
+        }
+        return admission.admit(operation);
+    }
+
+    private static void release(AdmissionController.Permit permit) {
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    /** Start loading versions of snapshot and index in background.
+     *  Searches go to SQL until there is an index, and the corpus snapshot
+     *  is checked for changes every check seconds.
+     */
+    private void startSnapshotLoader(long check) {
+        if (!indexed && (snapshotFile == null)) {
+            return;
+        }
+        snapshotLoader = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HZSK snapshot loader");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        if (indexed) {
+            snapshotLoader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadVersion(false);
+                }
+            });
+        }
+        if ((snapshotFile != null) && (check > 0)) {
+            snapshotLoader.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    long modified = snapshotFile.lastModified();
+                    // 0 while the exporter is renaming it in place
+                    if ((modified != 0) && (modified != snapshotModified)) {
+                        loadVersion(true);
+                    }
+                }
+            }, check, check, TimeUnit.SECONDS);
+        }
+    }
+
+    /** Load new version of corpus snapshot and index in background, e.g.
+     *  after a new snapshot was exported or the corpus DB reloaded.
+     *  Searches use the current version until the new one is swapped in.
+     */
+    public void reloadSnapshot() {
+        if (snapshotLoader == null) {
+            logger.warn("no snapshot or index to reload");
+            return;
+        }
+        snapshotLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadVersion(true);
+            }
+        });
+    }
+
+    /** Load, warm and swap in a new version. Runs in the loader thread.
+     *  On failure the current version is kept.
+     *  @param reload false at startup, when the snapshot opened by doInit
+     *      is used and an existing index snapshot file is loaded.
+     */
+    private void loadVersion(boolean reload) {
+        long started = System.currentTimeMillis();
+        try {
+            CorpusSnapshot snapshot = null;
+            long modified = snapshotModified;
+            if (snapshotFile != null) {
+                SnapshotManager.Version current = snapshots.getCurrent();
+                if (!reload && (current != null)) {
+                    snapshot = current.getSnapshot();
+                } else {
+                    modified = snapshotFile.lastModified();
+                    snapshot = CorpusSnapshot.open(snapshotFile);
+                }
+                snapshot.warm();
+            }
+            InvertedIndex loaded = null;
+            if (indexed) {
+                loaded = loadIndex(snapshot, reload);
+            }
+            SnapshotManager.Version fresh =
+                snapshots.create(snapshot, loaded);
+            corpusDB.setSnapshot(snapshot);
+            snapshots.swap(fresh);
+            snapshotModified = modified;
+            // keys have the version, this only frees the old entries
+            if (resultCache != null) {
+                resultCache.invalidate();
+            }
+            if (resultSets != null) {
+                resultSets.invalidate();
+            }
+            if (partitionedSearch != null) {
+                // balance the partitions again for the new utterances
+                partitionedSearch.invalidate();
+            }
+            logger.info("{} ready in {} ms", fresh,
+                    System.currentTimeMillis() - started);
+        } catch (SQLException sqle) {
+            logger.error("building index failed, keeping " +
+                    snapshots.getCurrent(), sqle);
+        } catch (IOException ioe) {
+            logger.error("loading snapshot failed, keeping " +
+                    snapshots.getCurrent(), ioe);
+        }
+    }
+
+    /** Load index from index snapshot file if it is there and not older
+     *  than the corpus snapshot, otherwise build it and save it to the
+     *  file. Without corpus snapshot, the file is only loaded at startup,
+     *  and reloads build the index from DB.
+     */
+    private InvertedIndex loadIndex(CorpusSnapshot snapshot, boolean reload)
+            throws SQLException, IOException {
+        if ((indexSnapshotFile != null) && indexSnapshotFile.exists()) {
+            boolean current = (snapshotFile != null) ?
+                (indexSnapshotFile.lastModified() >=
+                 snapshotFile.lastModified()) : !reload;
+            if (current) {
+                return InvertedIndex.load(indexSnapshotFile);
+            }
+        }
+        InvertedIndex.Builder builder = new InvertedIndex.Builder();
+        if (snapshot != null) {
+            snapshot.buildIndex(builder);
+        } else {
+            corpusDB.buildIndex(builder);
+        }
+        InvertedIndex built = builder.build();
+        if (indexSnapshotFile != null) {
+            built.save(indexSnapshotFile);
+        }
+        return built;
     }
 
     /** Just blurt out a term on a specific search.
@@ -176,23 +920,57 @@ public class HZSKSRUSearchEngine extends SimpleEndpointSearchEngineBase {
                     SRURequest request,
                     SRUDiagnosticList diagnostics)
                     throws SRUException {
-        CQLNode scan = request.getScanClause();
-        if (scan.toCQL().equals("fcs.resource = root")) {
-            HZSKSRUScanResultSet rv =  new HZSKSRUScanResultSet(diagnostics);
-            return rv;
-        } else {
-            diagnostics.addDiagnostic("info:srw/diagnostic/1/16",
-                    scan.toCQL(), "Scan operation on specified index is not "
-                    + "supported.");
-            return null;
+        AdmissionController.Permit permit =
+            admit(AdmissionController.Operation.SCAN);
+        try {
+            CQLNode scan = request.getScanClause();
+            if (scan.toCQL().equals("fcs.resource = root")) {
+                HZSKSRUScanResultSet rv =
+                    new HZSKSRUScanResultSet(diagnostics);
+                return rv;
+            } else {
+                diagnostics.addDiagnostic("info:srw/diagnostic/1/16",
+                        scan.toCQL(), "Scan operation on specified index " +
+                        "is not supported.");
+                return null;
+            }
+        } finally {
+            release(permit);
         }
     }
 
-    /** Query database for matches. */
+    /** Query database for matches.
+     *  With admission control the slot of the request is held until the
+     *  SRU server closes the result set, as streamed records are read while
+     *  the response is written.
+     */
     @Override
     public SRUSearchResultSet search(SRUServerConfig config,
             SRURequest request, SRUDiagnosticList diagnostics)
             throws SRUException {
+        AdmissionController.Permit permit =
+            admit(AdmissionController.Operation.SEARCH);
+        // held until the response is written
+        SnapshotManager.Version version = snapshots.acquire();
+        try {
+            HZSKSRUSearchResultSet rv = searchAdmitted(request, diagnostics,
+                    version);
+            rv.setPermit(permit);
+            permit = null;
+            rv.setVersion(version);
+            version = null;
+            return rv;
+        } finally {
+            release(permit);
+            if (version != null) {
+                version.release();
+            }
+        }
+    }
+
+    private HZSKSRUSearchResultSet searchAdmitted(SRURequest request,
+            SRUDiagnosticList diagnostics, SnapshotManager.Version version)
+            throws SRUException {
         /*
          * sanity check: make sure we are asked to return stuff
          * in CLARIN FCS format if a recordSchema is specified.
@@ -226,7 +1004,10 @@ public class HZSKSRUSearchEngine extends SimpleEndpointSearchEngineBase {
          * stuff
          */
         HZSKQuery hzskQuery = new HZSKQuery();
+        long parseStarted = System.nanoTime();
         hzskQuery.initialise(request);
+        Metrics.QUERY_PARSE.recordSince(parseStarted);
+        hzskQuery.setTimePositions(isTimePositions(request));
 
         // perform queries
         int startRecord = request.getStartRecord();
@@ -234,11 +1015,169 @@ public class HZSKSRUSearchEngine extends SimpleEndpointSearchEngineBase {
         if (startRecord > 0) {
             startRecord--;
         }
+        ResultSetStore.StoredResultSet stored = null;
+        if (hzskQuery.getResultSetId() != null) {
+            String id = hzskQuery.getResultSetId();
+            if (resultSets != null) {
+                stored = resultSets.get(id);
+            }
+            if (stored == null) {
+                throw new SRUException(
+                        SRUConstants.SRU_RESULT_SET_DOES_NOT_EXIST, id,
+                        "Result set \"" + id + "\" does not exist or has " +
+                        "expired.");
+            }
+            hzskQuery = stored.getQuery();
+        } else if ((resultSets != null) && (corpusDB != null)) {
+            stored = resultSets.register(hzskQuery, context,
+                    versionNumber(version));
+        }
+        // deep pages can continue from last segment of previous page
+        int afterSegmentId = -1;
+        String token = request.getExtraRequestData(HZSK_CONTINUATION);
+        if (token != null) {
+            PagingContinuation continuation = PagingContinuation.parse(token);
+            if (continuation == null) {
+                throw new SRUException(
+                        SRUConstants.SRU_UNSUPPORTED_PARAMETER_VALUE,
+                        token, "The value of the parameter \""
+                        + HZSK_CONTINUATION
+                        + "\" is not a continuation of this endpoint.");
+            }
+            if (continuation.continues(hzskQuery, startRecord)) {
+                afterSegmentId = continuation.getLastSegmentId();
+            }
+        }
+        Deadline deadline = createDeadline(request);
+        HZSKSRUSearchResultSet rv = searchPage(hzskQuery, context, stored,
+                diagnostics, request, startRecord, maximumRecords,
+                afterSegmentId, deadline, version);
+        rv.setDeadline(deadline);
+        if (deadline.wasStopped()) {
+            diagnostics.addDiagnostic(SRUConstants
+                    .SRU_RESULT_SET_CREATED_WITH_VALID_PARTIAL_RESULTS_AVAILABLE,
+                    null, "Search took too long, only the records found " +
+                    "in time are returned.");
+        }
+        if (stored != null) {
+            rv.setResultSetId(stored.getId());
+            rv.setResultSetTTL(resultSets.getTTL());
+        }
+        return rv;
+    }
+
+    /** Check whether request wants results positioned in time.
+     *  x-hzsk-positions is time for milliseconds of the timeline, or chars
+     *  for characters of the transcription text, which is the default.
+     */
+    private boolean isTimePositions(SRURequest request)
+            throws SRUException {
+        String param = request.getExtraRequestData(HZSK_POSITIONS);
+        if ((param == null) || param.equals("chars")) {
+            return false;
+        } else if (param.equals("time")) {
+            return true;
+        }
+        throw new SRUException(
+                SRUConstants.SRU_UNSUPPORTED_PARAMETER_VALUE,
+                param, "The value of the parameter \""
+                + HZSK_POSITIONS
+                + "\" is not time or chars.");
+    }
+
+    /** Create deadline of a search request.
+     *  The configured queryTimeout, in milliseconds, can be shortened by
+     *  the x-hzsk-timeout parameter of the request.
+     */
+    private Deadline createDeadline(SRURequest request) throws SRUException {
+        long timeout = queryTimeout;
+        String param = request.getExtraRequestData(HZSK_TIMEOUT);
+        if (param != null) {
+            long requested;
+            try {
+                requested = Long.parseLong(param);
+            } catch (NumberFormatException nfe) {
+                requested = -1;
+            }
+            if (requested <= 0) {
+                throw new SRUException(
+                        SRUConstants.SRU_UNSUPPORTED_PARAMETER_VALUE,
+                        param, "The value of the parameter \""
+                        + HZSK_TIMEOUT
+                        + "\" is not a positive number of milliseconds.");
+            }
+            if ((timeout <= 0) || (requested < timeout)) {
+                timeout = requested;
+            }
+        }
+        if (timeout <= 0) {
+            return Deadline.none();
+        }
+        return Deadline.after(timeout);
+    }
+
+    /** Number of version for cache keys, 0 if there is none. */
+    private static int versionNumber(SnapshotManager.Version version) {
+        return (version != null) ? version.getNumber() : 0;
+    }
+
+    /** Find a page of results from caches, index or DB.
+     *  If the deadline passes, the page has the records found in time, the
+     *  deadline is marked stopped and the page is not cached.
+     *  @param stored result set of the query or null.
+     *  @param version snapshot and index to search or null.
+     */
+    private HZSKSRUSearchResultSet searchPage(HZSKQuery hzskQuery,
+            String context, ResultSetStore.StoredResultSet stored,
+            SRUDiagnosticList diagnostics, SRURequest request,
+            int startRecord, int maximumRecords, int afterSegmentId,
+            Deadline deadline, SnapshotManager.Version version)
+            throws SRUException {
+        String cacheKey = null;
+        if (resultCache != null) {
+            cacheKey = ResultCache.key(hzskQuery, context,
+                    versionNumber(version), startRecord, maximumRecords,
+                    afterSegmentId);
+            ResultCache.Entry cached = resultCache.get(cacheKey);
+            if (cached != null) {
+                return searchCached(cached, hzskQuery, diagnostics, request,
+                        startRecord, maximumRecords, deadline);
+            }
+        }
+        if ((version != null) && (version.getIndex() != null) &&
+                (corpusDB != null) &&
+                version.getIndex().canAnswer(hzskQuery)) {
+            return searchIndex(version, hzskQuery, diagnostics, request,
+                    startRecord, maximumRecords, cacheKey);
+        }
+        if ((stored != null) && stored.covers(startRecord, maximumRecords)) {
+            return searchStored(stored, diagnostics, request, startRecord,
+                    maximumRecords, cacheKey);
+        }
+        if ((stored != null) && hzskQuery.hasTextSearch()) {
+            fillResultSet(stored);
+        }
+        // count concurrently with the page query
+        Future<HitCounter.HitCount> futureCount = startCount(hzskQuery,
+                deadline);
+        if (streaming && (corpusDB != null)) {
+            return searchStreaming(hzskQuery, futureCount, diagnostics,
+                    request, startRecord, maximumRecords, afterSegmentId,
+                    cacheKey, deadline);
+        }
         AdvancedSearchResultSet dBresult = null;
         if (corpusDB != null) {
             try {
-                dBresult = corpusDB.query(hzskQuery,
-                        startRecord, maximumRecords);
+                if ((partitionedSearch != null) &&
+                        hzskQuery.hasTextSearch()) {
+                    dBresult = partitionedSearch.query(hzskQuery,
+                            startRecord, maximumRecords, afterSegmentId,
+                            deadline);
+                } else {
+                    dBresult = corpusDB.query(hzskQuery,
+                            startRecord, maximumRecords, afterSegmentId,
+                            deadline);
+                }
             } catch (Exception e) {
                 logger.error("error processing query", e);
                 throw new SRUException(
@@ -248,16 +1187,481 @@ public class HZSKSRUSearchEngine extends SimpleEndpointSearchEngineBase {
                         e);
             }
         }
-        return new HZSKSRUSearchResultSet(diagnostics,
+        HZSKSRUSearchResultSet rv = new HZSKSRUSearchResultSet(diagnostics,
                 dBresult,
-                request);
+                request, hzskQuery, startRecord);
+        HitCounter.HitCount count = getHitCount(hzskQuery, futureCount,
+                    (dBresult != null) ? dBresult.getLength() : -1,
+                    startRecord, maximumRecords, deadline);
+        rv.setHitCount(count);
+        if ((cacheKey != null) && (dBresult != null) &&
+                !deadline.wasStopped()) {
+            resultCache.put(cacheKey, dBresult, exactOnly(count));
+        }
+        return withResultSetTTL(rv);
+
+    }
+
+    /** Answer query by slicing the ids of a stored result set.
+     *  Only the records of the page are read from DB.
+     */
+    private HZSKSRUSearchResultSet searchStored(
+            ResultSetStore.StoredResultSet stored,
+            SRUDiagnosticList diagnostics, SRURequest request,
+            int startRecord, int maximumRecords, String cacheKey)
+            throws SRUException {
+        HZSKQuery hzskQuery = stored.getQuery();
+        int[] ids = stored.slice(startRecord, maximumRecords);
+        HitCounter.HitCount count = new HitCounter.HitCount(
+                stored.getIds().length, stored.isTruncated() ?
+                SRUResultCountPrecision.MINIMUM :
+                SRUResultCountPrecision.EXACT);
+        HZSKSRUSearchResultSet rv;
+        try {
+            if (streaming) {
+                ResultCursor cursor = corpusDB.openCursor(hzskQuery, ids,
+                        null);
+                if (cacheKey != null) {
+                    cursor.cacheAs(resultCache, cacheKey, count.getCount(),
+                            exactOnly(count));
+                }
+                rv = new HZSKSRUSearchResultSet(diagnostics, cursor,
+                        request, hzskQuery, startRecord);
+            } else {
+                AdvancedSearchResultSet dBresult =
+                    corpusDB.queryByIds(hzskQuery, ids);
+                dBresult.setTotalLength(count.getCount());
+                rv = new HZSKSRUSearchResultSet(diagnostics, dBresult,
+                        request, hzskQuery, startRecord);
+                if (cacheKey != null) {
+                    resultCache.put(cacheKey, dBresult, exactOnly(count));
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("error processing query", e);
+            throw new SRUException(
+                    SRUConstants.SRU_CANNOT_PROCESS_QUERY_REASON_UNKNOWN,
+                    "Error processing query " + e + ": " + e.getMessage() +
+                    "\r\n" + e.getStackTrace()[0],
+                    e);
+        }
+        rv.setHitCount(count);
+        return withResultSetTTL(rv);
+    }
+
+    /** Search all ids of the result set in the background. */
+    private void fillResultSet(ResultSetStore.StoredResultSet stored) {
+        final HZSKQuery query = stored.getQuery();
+        final int limit = resultSets.getMaxIds() + 1;
+        resultSets.fill(stored, new Callable<int[]>() {
+            @Override
+            public int[] call() throws SQLException {
+                Deadline deadline = (queryTimeout > 0) ?
+                    Deadline.after(queryTimeout) : Deadline.none();
+                int[] ids;
+                if (partitionedSearch != null) {
+                    ids = partitionedSearch.queryIds(query, 0, limit, -1,
+                            deadline);
+                } else {
+                    ids = corpusDB.queryPageIds(query, 0, limit, -1,
+                            deadline);
+                }
+                if (deadline.wasStopped()) {
+                    // partial ids would look like all of them
+                    throw new SQLTimeoutException("Result set of " +
+                            query.toCanonicalString() + " not found in " +
+                            queryTimeout + " ms");
+                }
+                return ids;
+            }
+        });
+    }
+
+    /** Answer query from a cached page.
+     *  Hit count is counted again unless it was exact when cached; the
+     *  counter has its own cache for that.
+     */
+    private HZSKSRUSearchResultSet searchCached(ResultCache.Entry cached,
+            HZSKQuery hzskQuery, SRUDiagnosticList diagnostics,
+            SRURequest request, int startRecord, int maximumRecords,
+            Deadline deadline) {
+        AdvancedSearchResultSet page = cached.getPage();
+        HZSKSRUSearchResultSet rv = new HZSKSRUSearchResultSet(diagnostics,
+                page, request, hzskQuery, startRecord);
+        HitCounter.HitCount count = cached.getHitCount();
+        if (count == null) {
+            Future<HitCounter.HitCount> futureCount = startCount(hzskQuery,
+                    deadline);
+            count = getHitCount(hzskQuery, futureCount, page.getLength(),
+                    startRecord, maximumRecords, deadline);
+        }
+        rv.setHitCount(count);
+        return withResultSetTTL(rv);
+    }
+
+    /** Only exact counts are cached with pages, others may get better. */
+    private static HitCounter.HitCount exactOnly(HitCounter.HitCount count) {
+        if ((count != null) &&
+                (count.getPrecision() == SRUResultCountPrecision.EXACT)) {
+            return count;
+        }
+        return null;
+    }
+
+    /** Tell how long results are cached, if they are. */
+    private HZSKSRUSearchResultSet withResultSetTTL(
+            HZSKSRUSearchResultSet rv) {
+        if (resultCache != null) {
+            rv.setResultSetTTL(resultCache.getTTL());
+        }
+        return rv;
+    }
+
+    /** Forget everything cached about the corpus.
+     *  Call when the corpus DB has been reloaded.
+     */
+    public void invalidateCaches() {
+        if (resultCache != null) {
+            resultCache.invalidate();
+        }
+        if (resultSets != null) {
+            resultSets.invalidate();
+        }
+        if (hitCounter != null) {
+            hitCounter.invalidate();
+        }
+        if (partitionedSearch != null) {
+            partitionedSearch.invalidate();
+        }
+        if (corpusDB != null) {
+            corpusDB.getTimelineCache().invalidate();
+            refreshTranscriptions();
+        }
+        if (indexed && (snapshotFile == null)) {
+            // index is from DB
+            reloadSnapshot();
+        }
+    }
+
+    /** Read transcription metadata of corpus DB again. Without it they are
+     *  read one at a time by the searches, so failing here isn't fatal.
+     */
+    private void refreshTranscriptions() {
+        if (corpusDB.getSnapshot() != null) {
+            return;
+        }
+        try {
+            corpusDB.refreshTranscriptions();
+        } catch (SQLException sqle) {
+            logger.warn("reading transcriptions failed, reading them " +
+                    "when needed", sqle);
+        }
+    }
+
+    /** Explain with endpoint description from pre-rendered cache.
+     *  The description is rendered by the FCS base class only on first
+     *  request per SRU version and after the description was refreshed.
+     */
+    @Override
+    public SRUExplainResult explain(SRUServerConfig config,
+            SRURequest request, SRUDiagnosticList diagnostics)
+            throws SRUException {
+        AdmissionController.Permit permit =
+            admit(AdmissionController.Operation.EXPLAIN);
+        try {
+            return explainCached(config, request, diagnostics);
+        } finally {
+            release(permit);
+        }
+    }
+
+    private SRUExplainResult explainCached(SRUServerConfig config,
+            SRURequest request, SRUDiagnosticList diagnostics)
+            throws SRUException {
+        if (!"true".equalsIgnoreCase(
+                    request.getExtraRequestData(X_FCS_ENDPOINT_DESCRIPTION))) {
+            return withSnapshotVersion(super.explain(config, request,
+                        diagnostics), diagnostics);
+        }
+        ExplainCache.Rendered cached = explainCache.get(request.getVersion());
+        if (cached == null) {
+            SRUExplainResult result = super.explain(config, request,
+                    diagnostics);
+            if ((result == null) || !result.hasExtraResponseData()) {
+                return withSnapshotVersion(result, diagnostics);
+            }
+            try {
+                cached = explainCache.render(request.getVersion(), result);
+            } catch (XMLStreamException xse) {
+                logger.error("rendering endpoint description failed", xse);
+                return withSnapshotVersion(result, diagnostics);
+            }
+        }
+        final ExplainCache.Rendered rendered = cached;
+        return new SRUExplainResult(diagnostics) {
+            @Override
+            public boolean hasExtraResponseData() {
+                return true;
+            }
+
+            @Override
+            public void writeExtraResponseData(XMLStreamWriter writer)
+                    throws XMLStreamException {
+                rendered.writeTo(writer);
+                writeSnapshotVersion(writer);
+            }
+        };
+    }
+
+    /** Add the snapshot version to extra response data of explain. */
+    private SRUExplainResult withSnapshotVersion(
+            final SRUExplainResult result, SRUDiagnosticList diagnostics) {
+        if (snapshots.getCurrent() == null) {
+            return result;
+        }
+        return new SRUExplainResult(diagnostics) {
+            @Override
+            public boolean hasExtraResponseData() {
+                return true;
+            }
+
+            @Override
+            public void writeExtraResponseData(XMLStreamWriter writer)
+                    throws XMLStreamException {
+                if ((result != null) && result.hasExtraResponseData()) {
+                    result.writeExtraResponseData(writer);
+                }
+                writeSnapshotVersion(writer);
+            }
+
+            @Override
+            public void close() {
+                if (result != null) {
+                    result.close();
+                }
+                super.close();
+            }
+        };
+    }
+
+    /** Write hzsk:snapshot element with version number and creation time
+     *  of the snapshot and index in use, if any.
+     */
+    private void writeSnapshotVersion(XMLStreamWriter writer)
+            throws XMLStreamException {
+        SnapshotManager.Version version = snapshots.getCurrent();
+        if (version == null) {
+            return;
+        }
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        writer.setPrefix(HZSK_PREFIX, HZSK_NS);
+        writer.writeStartElement(HZSK_PREFIX, "snapshot", HZSK_NS);
+        writer.writeNamespace(HZSK_PREFIX, HZSK_NS);
+        writer.writeAttribute("version",
+                Integer.toString(version.getNumber()));
+        writer.writeAttribute("created",
+                iso.format(new Date(version.getCreated())));
+        writer.writeEndElement();
+    }
+
+    /** Search a page of text results and stream its records.
+     *  Only the segment_ids of the page are searched here, the records are
+     *  read from a cursor while the response is written.
+     */
+    private HZSKSRUSearchResultSet searchStreaming(HZSKQuery hzskQuery,
+            Future<HitCounter.HitCount> futureCount,
+            SRUDiagnosticList diagnostics, SRURequest request,
+            int startRecord, int maximumRecords, int afterSegmentId,
+            String cacheKey, Deadline deadline) throws SRUException {
+        ResultCursor cursor = null;
+        try {
+            int[] ids;
+            // partitions only split text searches, like in searchPage()
+            if ((partitionedSearch != null) && hzskQuery.hasTextSearch()) {
+                ids = partitionedSearch.queryIds(hzskQuery, startRecord,
+                        maximumRecords, afterSegmentId, deadline);
+            } else {
+                ids = corpusDB.queryPageIds(hzskQuery, startRecord,
+                        maximumRecords, afterSegmentId, deadline);
+            }
+            cursor = corpusDB.openCursor(hzskQuery, ids, null);
+        } catch (SQLException e) {
+            if (futureCount != null) {
+                futureCount.cancel(true);
+            }
+            logger.error("error processing query", e);
+            throw new SRUException(
+                    SRUConstants.SRU_CANNOT_PROCESS_QUERY_REASON_UNKNOWN,
+                    "Error processing query " + e + ": " + e.getMessage() +
+                    "\r\n" + e.getStackTrace()[0],
+                    e);
+        }
+        HZSKSRUSearchResultSet rv = new HZSKSRUSearchResultSet(diagnostics,
+                cursor, request, hzskQuery, startRecord);
+        HitCounter.HitCount count = getHitCount(hzskQuery, futureCount,
+                cursor.getLength(), startRecord, maximumRecords, deadline);
+        rv.setHitCount(count);
+        if ((cacheKey != null) && !deadline.wasStopped()) {
+            cursor.cacheAs(resultCache, cacheKey,
+                    startRecord + cursor.getLength(), exactOnly(count));
+        }
+        return withResultSetTTL(rv);
+    }
+
+
+    /** Answer query from the inverted index.
+     *  All hits are known from the postings, so the count is exact and the
+     *  database is only asked for the records of the page, or they are read
+     *  from the snapshot of the same version.
+     */
+    private HZSKSRUSearchResultSet searchIndex(
+            SnapshotManager.Version version, HZSKQuery hzskQuery,
+            SRUDiagnosticList diagnostics, SRURequest request,
+            int startRecord, int maximumRecords, String cacheKey)
+            throws SRUException {
+        InvertedIndex currentIndex = version.getIndex();
+        InvertedIndex.Hits hits = currentIndex.search(hzskQuery);
+        int[] ids = currentIndex.getUtteranceIds(hits, startRecord,
+                maximumRecords);
+        int[][] hitOffsets = currentIndex.getHitOffsets(hits, startRecord,
+                maximumRecords);
+        AdvancedSearchResultSet dBresult = null;
+        HZSKSRUSearchResultSet rv = null;
+        HitCounter.HitCount count = new HitCounter.HitCount(hits.size(),
+                SRUResultCountPrecision.EXACT);
+        try {
+            if (streaming) {
+                ResultCursor cursor = corpusDB.openCursor(
+                        version.getSnapshot(), hzskQuery, ids, hitOffsets);
+                if (cacheKey != null) {
+                    cursor.cacheAs(resultCache, cacheKey, hits.size(), count);
+                }
+                // no continuation, index pages by position anyway
+                rv = new HZSKSRUSearchResultSet(diagnostics, cursor,
+                        request, null, startRecord);
+            } else {
+                dBresult = corpusDB.queryByIds(version.getSnapshot(),
+                        hzskQuery, ids, hitOffsets);
+            }
+        } catch (SQLException e) {
+            logger.error("error processing query", e);
+            throw new SRUException(
+                    SRUConstants.SRU_CANNOT_PROCESS_QUERY_REASON_UNKNOWN,
+                    "Error processing query " + e + ": " + e.getMessage() +
+                    "\r\n" + e.getStackTrace()[0],
+                    e);
+        }
+        if (rv == null) {
+            dBresult.setTotalLength(hits.size());
+            rv = new HZSKSRUSearchResultSet(diagnostics, dBresult, request);
+            if (cacheKey != null) {
+                resultCache.put(cacheKey, dBresult, count);
+            }
+        }
+        rv.setHitCount(count);
+        return withResultSetTTL(rv);
+    }
 
+    /** Start counting hits in background, under a deadline that ends
+     *  when the request stops waiting for the count.
+     *  @return future count or null.
+     */
+    private Future<HitCounter.HitCount> startCount(HZSKQuery query,
+            Deadline deadline) {
+        if (hitCounter == null) {
+            return null;
+        }
+        return hitCounter.count(query, Deadline.after(Math.min(
+                        hitCountTimeout, deadline.remainingMillis())));
     }
 
+    /** Get total hits of query from counter or the page itself.
+     *  A last page of a search tells the exact count without waiting for
+     *  the counter, otherwise the count is waited for a while.
+     *  A page cut short by the deadline tells nothing of the count, and the
+     *  counter is not waited for past the deadline.
+     *  @param pageLength records on the page, or -1 if there's no page.
+     *  @return count or null if no count is available in time.
+     */
+    private HitCounter.HitCount getHitCount(HZSKQuery query,
+            Future<HitCounter.HitCount> futureCount,
+            int pageLength, int startRecord, int maximumRecords,
+            Deadline deadline) {
+        if (pageLength == -1) {
+            return null;
+        }
+        if (deadline.wasStopped()) {
+            if (futureCount != null) {
+                futureCount.cancel(true);
+            }
+            return null;
+        }
+        int atLeast = startRecord + pageLength;
+        if ((pageLength < maximumRecords) &&
+                ((pageLength > 0) || (startRecord == 0))) {
+            if (futureCount != null) {
+                futureCount.cancel(true);
+            }
+            if (hitCounter != null) {
+                hitCounter.putExactCount(query, atLeast);
+            }
+            return new HitCounter.HitCount(atLeast,
+                    SRUResultCountPrecision.EXACT);
+        }
+        if (futureCount == null) {
+            return null;
+        }
+        try {
+            HitCounter.HitCount count = futureCount.get(
+                    Math.min(hitCountTimeout, deadline.remainingMillis()),
+                    TimeUnit.MILLISECONDS);
+            if ((count != null) && (count.getCount() < atLeast)) {
+                // estimates can be off, but we've seen these already
+                return new HitCounter.HitCount(atLeast,
+                        count.getPrecision());
+            }
+            return count;
+        } catch (TimeoutException te) {
+            logger.warn("hit count timed out for {}", query.toCanonicalString());
+            futureCount.cancel(true);
+        } catch (ExecutionException ee) {
+            logger.error("error counting hits", ee.getCause());
+        } catch (InterruptedException ie) {
+            futureCount.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
 
     /** Terminate database connection. */
     @Override
     public void doDestroy() {
+        if (hitCounter != null) {
+            hitCounter.close();
+        }
+        if (partitionedSearch != null) {
+            partitionedSearch.close();
+        }
+        if (explainRefresher != null) {
+            explainRefresher.shutdownNow();
+        }
+        if (snapshotLoader != null) {
+            snapshotLoader.shutdownNow();
+        }
+        logger.info("{}", snapshots);
+        if (resultCache != null) {
+            logger.info("{}", resultCache);
+        }
+        if (resultSets != null) {
+            logger.info("{}", resultSets);
+            resultSets.close();
+        }
+        if (admission != null) {
+            logger.info("{}", admission);
+        }
+        logger.info("{}", corpusDB.getStatementCatalog());
+        Metrics.unregisterMBeans();
         corpusDB.close();
     }
 } // class SRUSearchEngine
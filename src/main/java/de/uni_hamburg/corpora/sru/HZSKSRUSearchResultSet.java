@@ -10,11 +10,13 @@ import eu.clarin.sru.server.SRUResultCountPrecision;
 import eu.clarin.sru.server.SRUException;
 import eu.clarin.sru.server.SRUDiagnosticList;
 import eu.clarin.sru.server.SRUDiagnostic;
+import eu.clarin.sru.server.SRUConstants;
 import eu.clarin.sru.server.SRURequest;
 import eu.clarin.sru.server.SRUVersion;
 import eu.clarin.sru.server.fcs.XMLStreamWriterHelper;
 import eu.clarin.sru.server.fcs.AdvancedDataViewWriter;
 
+import java.sql.SQLException;
 import java.util.NoSuchElementException;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +38,8 @@ public class HZSKSRUSearchResultSet extends SRUSearchResultSet {
 
     private static final String FCS_NS = "http://clarin.eu/fcs/resource";
     private static final String CLARIN_FCS_RECORD_SCHEMA = FCS_NS;
+    private static final String HZSK_NS = "http://corpora.uni-hamburg.de/sru";
+    private static final String HZSK_PREFIX = "hzsk";
 
     private int pos = -1;
     private AdvancedSearchResultSet advancedResult = null;
@@ -43,6 +47,16 @@ public class HZSKSRUSearchResultSet extends SRUSearchResultSet {
     private boolean sru12 = false;
     private boolean sru11 = false;
     private boolean sru10 = false;
+    private PagingContinuation continuation = null;
+    private HitCounter.HitCount hitCount = null;
+    private ResultCursor cursor = null;
+    private AdvancedSearchResult current = null;
+    private int streamedTotal = 0;
+    private int resultSetTTL = -1;
+    private String resultSetId = null;
+    private Deadline deadline = null;
+    private AdmissionController.Permit permit = null;
+    private SnapshotManager.Version version = null;
 
     /** Create HZSK SRU search results passing diagnostics up. */
     public HZSKSRUSearchResultSet(SRUDiagnosticList diagnostics) {
@@ -69,18 +83,102 @@ public class HZSKSRUSearchResultSet extends SRUSearchResultSet {
         }
     }
 
-    /** @todo I'm sure db has me a TTL, but. */
+    /** Create a result set that can be continued from its last record.
+     *  @param startRecord zero-based position of first record in dbsr.
+     */
+    public HZSKSRUSearchResultSet(SRUDiagnosticList diagnostics,
+            AdvancedSearchResultSet dbsr,
+            SRURequest req, HZSKQuery query, int startRecord) {
+        this(diagnostics, dbsr, req);
+        if ((dbsr != null) && (dbsr.getLength() > 0) &&
+                (dbsr.getLength() >= req.getMaximumRecords())) {
+            int lastId = dbsr.getRecordAt(dbsr.getLength() - 1).getSegmentId();
+            if (lastId != -1) {
+                continuation = new PagingContinuation(query,
+                        startRecord + dbsr.getLength(), lastId);
+            }
+        }
+    }
+
+    /** Create a result set streaming records from a cursor.
+     *  Records are read from DB only as they are written out, the cursor is
+     *  closed after the last one or when the SRU server closes this.
+     *  @param query query to continue from last record, or null if the
+     *      result set can't be continued.
+     *  @param startRecord zero-based position of first record of cursor.
+     */
+    public HZSKSRUSearchResultSet(SRUDiagnosticList diagnostics,
+            ResultCursor cursor, SRURequest req, HZSKQuery query,
+            int startRecord) {
+        this(diagnostics, (AdvancedSearchResultSet) null, req);
+        this.cursor = cursor;
+        // at least this many, only the page was counted
+        this.streamedTotal = startRecord + cursor.getLength();
+        if ((query != null) && (cursor.getLength() > 0) &&
+                (cursor.getLength() >= req.getMaximumRecords())) {
+            continuation = new PagingContinuation(query,
+                    startRecord + cursor.getLength(),
+                    cursor.getLastSegmentId());
+        }
+    }
+
+    /** Get token for fetching next page in keyset mode, if any. */
+    public PagingContinuation getContinuation() {
+        return continuation;
+    }
+
+    /** Seconds the results are cached for, or -1 if not cached. */
     @Override
     public int getResultSetTTL() {
-        return -1;
+        return resultSetTTL;
+    }
+
+    public void setResultSetTTL(int resultSetTTL) {
+        this.resultSetTTL = resultSetTTL;
+    }
+
+    /** Id of server side result set for cql.resultSetId, or null. */
+    @Override
+    public String getResultSetId() {
+        return resultSetId;
+    }
+
+    public void setResultSetId(String resultSetId) {
+        this.resultSetId = resultSetId;
+    }
+
+    /** Set deadline of the request, cancelled when this is closed. */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /** Set admission slot of the request, released when this is closed. */
+    public void setPermit(AdmissionController.Permit permit) {
+        this.permit = permit;
+    }
+
+    /** Set snapshot version the records are read from, released when
+     *  this is closed.
+     */
+    public void setVersion(SnapshotManager.Version version) {
+        this.version = version;
+    }
+
+    /** Set total hits counted separately from the records. */
+    public void setHitCount(HitCounter.HitCount hitCount) {
+        this.hitCount = hitCount;
     }
 
     /**
-     * Default implementation gives upper bound of result count.
+     * Precision of the hit counter if counted, otherwise the records seen so
+     * far are a lower bound.
      */
     @Override
     public SRUResultCountPrecision getResultCountPrecision() {
-        return SRUResultCountPrecision.MAXIMUM;
+        if (hitCount != null) {
+            return hitCount.getPrecision();
+        }
+        return SRUResultCountPrecision.MINIMUM;
     }
 
 
@@ -96,15 +194,24 @@ public class HZSKSRUSearchResultSet extends SRUSearchResultSet {
 
 
 
-    /** Get size of db. */
+    /** Get number of all hits to query. */
     @Override
     public int getTotalRecordCount() {
+        if (hitCount != null) {
+            return hitCount.getCount();
+        }
+        if (cursor != null) {
+            return streamedTotal;
+        }
         return advancedResult.getTotalLength();
     }
 
     /** Get size of db query results. */
     @Override
     public int getRecordCount() {
+        if (cursor != null) {
+            return cursor.getLength();
+        }
         return advancedResult.getLength();
     }
 
@@ -119,15 +226,51 @@ public class HZSKSRUSearchResultSet extends SRUSearchResultSet {
      * @sideeffect advances DB pointer.
      */
     @Override
-    public boolean nextRecord() {
+    public boolean nextRecord() throws SRUException {
         ++pos;
+        if (cursor != null) {
+            try {
+                current = cursor.next();
+            } catch (SQLException sqle) {
+                cursor.close();
+                throw new SRUException(SRUConstants.SRU_GENERAL_SYSTEM_ERROR,
+                        "Reading result records failed", sqle);
+            }
+            return current != null;
+        }
         if (pos < advancedResult.getLength()) {
+            current = advancedResult.getRecordAt(pos);
             return true;
         } else {
+            current = null;
             return false;
         }
     }
 
+    /** Release the DB connection of a streaming result set.
+     *  Also cancels whatever still runs for the request, e.g. when the
+     *  client went away and writing the response failed, and gives the
+     *  admission slot of the request to the next one and the snapshot
+     *  version back.
+     */
+    @Override
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+        }
+        if (deadline != null) {
+            deadline.cancel();
+        }
+        if (permit != null) {
+            permit.release();
+        }
+        if (version != null) {
+            version.release();
+            version = null;
+        }
+        super.close();
+    }
+
 
     /** No surrogate diagnostics. */
     @Override
@@ -141,8 +284,9 @@ public class HZSKSRUSearchResultSet extends SRUSearchResultSet {
     @Override
     public void writeRecord(XMLStreamWriter writer)
             throws XMLStreamException {
-        final AdvancedSearchResult rec =
-            advancedResult.getRecordAt(pos);
+        long started = System.nanoTime();
+        final AdvancedSearchResult rec = current;
+        int segmentCount = 0;
         // advanced_
         XMLStreamWriterHelper.writeStartResource(writer, rec.getPID(),
                 null);
@@ -169,6 +313,7 @@ public class HZSKSRUSearchResultSet extends SRUSearchResultSet {
             String name = entry.getKey();
             List<AdvancedSearchResultSegment> segments =
                 entry.getValue();
+            segmentCount += segments.size();
             URI layer = null;
             try {
                 // words and stuff
@@ -210,41 +355,44 @@ public class HZSKSRUSearchResultSet extends SRUSearchResultSet {
                 System.out.println("Some config error with HZSK and URIs: " +
                         use.getStackTrace());
             }
+            // records may be cached, so merged annotations of segments with
+            // same span are collected here instead of into the segment
             AdvancedSearchResultSegment previousSegments = null;
+            String previousAnnotation = null;
             for (AdvancedSearchResultSegment segment : segments) {
                 if (previousSegments == null) {
                     previousSegments = segment;
+                    previousAnnotation = segment.getAnnotation();
                 }
                 else if ((previousSegments.getStart() < 0) ||
                         (previousSegments.getEnd() < 0)) {
                     // FIXME: should interpolate;
                     previousSegments = segment;
+                    previousAnnotation = segment.getAnnotation();
                     continue;
                 }
                 else if (((int)Math.round(previousSegments.getStart()) ==
                             (int)Math.round(segment.getStart())) &&
                         ((int)Math.round(previousSegments.getEnd()) ==
                          (int)Math.round(segment.getEnd()))) {
-                    previousSegments.setText(previousSegments.getText() +
-                            "||" + segment.getText());
-                    previousSegments.setAnnotation(
-                            previousSegments.getAnnotation() + "||" +
-                            segment.getAnnotation());
+                    previousAnnotation = previousAnnotation + "||" +
+                            segment.getAnnotation();
                 } else {
                     if (name.equals("pos") || (name.equals("pos-sup"))) {
                        helper.addSpan(layer,
                                 Math.round(previousSegments.getStart()),
                                 Math.round(previousSegments.getEnd()),
                                 STTS2UDConverter.fromSTTS(
-                                    previousSegments.getAnnotation()),
-                                previousSegments.getAnnotation());
+                                    previousAnnotation),
+                                previousAnnotation);
                     } else {
                         helper.addSpan(layer,
                                 Math.round(previousSegments.getStart()),
                                 Math.round(previousSegments.getEnd()),
-                                previousSegments.getAnnotation());
+                                previousAnnotation);
                     }
                     previousSegments = segment;
+                    previousAnnotation = segment.getAnnotation();
                 }
             }
             if (previousSegments != null) {
@@ -255,13 +403,13 @@ public class HZSKSRUSearchResultSet extends SRUSearchResultSet {
                                 Math.round(previousSegments.getStart()),
                                 Math.round(previousSegments.getEnd()),
                                 STTS2UDConverter.fromSTTS(
-                                    previousSegments.getAnnotation()),
-                                previousSegments.getAnnotation());
+                                    previousAnnotation),
+                                previousAnnotation);
                     } else {
                         helper.addSpan(layer,
                                 Math.round(previousSegments.getStart()),
                                 Math.round(previousSegments.getEnd()),
-                                previousSegments.getAnnotation());
+                                previousAnnotation);
                     }
                }
             }
@@ -270,6 +418,28 @@ public class HZSKSRUSearchResultSet extends SRUSearchResultSet {
         helper.writeAdvancedDataView(writer);
         XMLStreamWriterHelper.writeEndResourceFragment(writer);
         XMLStreamWriterHelper.writeEndResource(writer);
+        Metrics.SERIALIZE.recordSince(started);
+        Metrics.RECORDS_RETURNED.increment();
+        Metrics.SEGMENTS_PER_RECORD.record(segmentCount);
+    }
+
+    /** Paging continuation goes to extra response data if there's more. */
+    @Override
+    public boolean hasExtraResponseData() {
+        return continuation != null;
+    }
+
+    /** Write paging continuation for next page. */
+    @Override
+    public void writeExtraResponseData(XMLStreamWriter writer)
+            throws XMLStreamException {
+        writer.setPrefix(HZSK_PREFIX, HZSK_NS);
+        writer.writeStartElement(HZSK_PREFIX, "continuation", HZSK_NS);
+        writer.writeNamespace(HZSK_PREFIX, HZSK_NS);
+        writer.writeAttribute("nextRecordPosition",
+                Integer.toString(continuation.getNextRecord() + 1));
+        writer.writeCharacters(continuation.toString());
+        writer.writeEndElement();
     }
 
     /** Has none. */
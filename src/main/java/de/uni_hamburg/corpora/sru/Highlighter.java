@@ -0,0 +1,271 @@
+/**
+ * @file Highlighter.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits utterance texts into hits of text searches and the rest between.
+ * Compiled once per query and shared by all records of its pages, instead
+ * of compiling a regex for every record. Literal terms are matched all at
+ * once with an Aho-Corasick automaton; only terms of regex searches that
+ * really use regex syntax go to a Pattern, which is compiled here.
+ * Overlapping hits are resolved leftmost-longest, over literals and regexes
+ * alike. Immutable, so any number of threads can use one.
+ * @author tpirinen
+ */
+public class Highlighter {
+
+    /** Mode: match case-insensitively, like the MySQL collation does. */
+    public static final int CASE_FOLDING = 1;
+    /** Mode: only highlight hits that are whole words. */
+    public static final int WORD_BOUNDARIES = 2;
+
+    private static final char[] NO_CHARS = new char[0];
+    private static final int[] NO_STATES = new int[0];
+    private static final String NOT_WORD_BEFORE = "(?<![\\p{L}\\p{Nd}])";
+    private static final String NOT_WORD_AFTER = "(?![\\p{L}\\p{Nd}])";
+
+    private final int modes;
+    // automaton, state 0 is the root; labels of each state are sorted
+    private final char[][] labels;
+    private final int[][] targets;
+    private final int[] fail;
+    // length of term ending in state or 0, and next state via fail links
+    // that ends a term
+    private final int[] termLength;
+    private final int[] outputLink;
+    private final Pattern pattern;
+
+    /** Compile highlighter for the text searches of query.
+     *  Terms of regex searches without regex syntax count as literals.
+     *  @param modes CASE_FOLDING and WORD_BOUNDARIES or'd together, or 0.
+     */
+    public Highlighter(HZSKQuery query, int modes) {
+        this.modes = modes;
+        List<String> literals = new ArrayList<String>();
+        StringBuilder regex = new StringBuilder();
+        for (String term : query.getTextSearches()) {
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (query.isRegexSearch() && !HZSKQuery.isLiteral(term)) {
+                if (regex.length() > 0) {
+                    regex.append('|');
+                }
+                regex.append(term);
+            } else {
+                literals.add(fold(term));
+            }
+        }
+        if (regex.length() == 0) {
+            pattern = null;
+        } else {
+            String alternatives = "(?:" + regex + ")";
+            if ((modes & WORD_BOUNDARIES) != 0) {
+                alternatives = NOT_WORD_BEFORE + alternatives + NOT_WORD_AFTER;
+            }
+            int flags = 0;
+            if ((modes & CASE_FOLDING) != 0) {
+                flags = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+            }
+            pattern = Pattern.compile(alternatives, flags);
+        }
+        // trie of literals
+        List<Map<Character, Integer>> trie =
+            new ArrayList<Map<Character, Integer>>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        trie.add(new HashMap<Character, Integer>());
+        lengths.add(0);
+        for (String literal : literals) {
+            int state = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                Integer next = trie.get(state).get(literal.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new HashMap<Character, Integer>());
+                    lengths.add(0);
+                    trie.get(state).put(literal.charAt(i), next);
+                }
+                state = next;
+            }
+            lengths.set(state, literal.length());
+        }
+        int states = trie.size();
+        labels = new char[states][];
+        targets = new int[states][];
+        termLength = new int[states];
+        for (int state = 0; state < states; state++) {
+            Map<Character, Integer> edges = trie.get(state);
+            char[] chars = NO_CHARS;
+            int[] nexts = NO_STATES;
+            if (!edges.isEmpty()) {
+                chars = new char[edges.size()];
+                nexts = new int[edges.size()];
+                int i = 0;
+                for (Character c : edges.keySet()) {
+                    chars[i] = c;
+                    i++;
+                }
+                Arrays.sort(chars);
+                for (i = 0; i < chars.length; i++) {
+                    nexts[i] = edges.get(chars[i]);
+                }
+            }
+            labels[state] = chars;
+            targets[state] = nexts;
+            termLength[state] = lengths.get(state);
+        }
+        // fail and output links breadth first, parents before children
+        fail = new int[states];
+        outputLink = new int[states];
+        IntList queue = new IntList(states);
+        for (int child : targets[0]) {
+            queue.add(child);
+        }
+        for (int q = 0; q < queue.size(); q++) {
+            int state = queue.get(q);
+            int failure = fail[state];
+            outputLink[state] = (termLength[failure] > 0) ? failure :
+                outputLink[failure];
+            for (int i = 0; i < labels[state].length; i++) {
+                int child = targets[state][i];
+                int back = failure;
+                int next = step(back, labels[state][i]);
+                while ((next < 0) && (back != 0)) {
+                    back = fail[back];
+                    next = step(back, labels[state][i]);
+                }
+                fail[child] = (next < 0) ? 0 : next;
+                queue.add(child);
+            }
+        }
+    }
+
+    /** Follow edge c from state, or -1 if there's none. */
+    private int step(int state, char c) {
+        int i = Arrays.binarySearch(labels[state], c);
+        return (i < 0) ? -1 : targets[state][i];
+    }
+
+    private char fold(char c) {
+        if ((modes & CASE_FOLDING) != 0) {
+            return Character.toLowerCase(Character.toUpperCase(c));
+        }
+        return c;
+    }
+
+    private String fold(String s) {
+        if ((modes & CASE_FOLDING) == 0) {
+            return s;
+        }
+        char[] folded = s.toCharArray();
+        for (int i = 0; i < folded.length; i++) {
+            folded[i] = fold(folded[i]);
+        }
+        return new String(folded);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+
+    public int getModes() {
+        return modes;
+    }
+
+    /** Split text into segments at hits, hits are set highlighted.
+     *  Segment positions count from text start in characters.
+     */
+    public List<AdvancedSearchResultSegment>
+        highlight(AdvancedSearchResultSegment text) {
+        String fulltext = text.getText();
+        int length = fulltext.length();
+        // end of longest hit starting at each position, 0 if none
+        int[] hitEnds = null;
+        int hits = 0;
+        if (labels[0].length > 0) {
+            boolean words = (modes & WORD_BOUNDARIES) != 0;
+            int state = 0;
+            for (int i = 0; i < length; i++) {
+                char c = fold(fulltext.charAt(i));
+                int next = step(state, c);
+                while ((next < 0) && (state != 0)) {
+                    state = fail[state];
+                    next = step(state, c);
+                }
+                state = (next < 0) ? 0 : next;
+                int out = (termLength[state] > 0) ? state : outputLink[state];
+                while (out != 0) {
+                    int end = i + 1;
+                    int start = end - termLength[out];
+                    out = outputLink[out];
+                    if (words && (((start > 0) &&
+                                    isWordChar(fulltext.charAt(start - 1))) ||
+                                ((end < length) &&
+                                 isWordChar(fulltext.charAt(end))))) {
+                        continue;
+                    }
+                    if (hitEnds == null) {
+                        hitEnds = new int[length];
+                    }
+                    if (hitEnds[start] == 0) {
+                        hits++;
+                    }
+                    hitEnds[start] = Math.max(hitEnds[start], end);
+                }
+            }
+        }
+        if (pattern != null) {
+            Matcher matcher = pattern.matcher(fulltext);
+            while (matcher.find()) {
+                if (matcher.end() == matcher.start()) {
+                    continue;
+                }
+                if (hitEnds == null) {
+                    hitEnds = new int[length];
+                }
+                if (hitEnds[matcher.start()] == 0) {
+                    hits++;
+                }
+                hitEnds[matcher.start()] = Math.max(hitEnds[matcher.start()],
+                        matcher.end());
+            }
+        }
+        List<AdvancedSearchResultSegment> highlights = new
+            ArrayList<AdvancedSearchResultSegment>(2 * hits + 1);
+        int previousEnd = 0;
+        for (int start = 0; (hitEnds != null) && (start < length); start++) {
+            int end = hitEnds[start];
+            if ((end == 0) || (start < previousEnd)) {
+                continue;
+            }
+            if (previousEnd < start) {
+                highlights.add(new AdvancedSearchResultSegment(
+                            fulltext.substring(previousEnd, start),
+                            text.getStart() + previousEnd,
+                            text.getStart() + start));
+            }
+            AdvancedSearchResultSegment hit = new AdvancedSearchResultSegment(
+                    fulltext.substring(start, end), text.getStart() + start,
+                    text.getStart() + end);
+            hit.setHighlighted(true);
+            highlights.add(hit);
+            previousEnd = end;
+        }
+        if (previousEnd < length) {
+            highlights.add(new AdvancedSearchResultSegment(
+                        fulltext.substring(previousEnd),
+                        text.getStart() + previousEnd, text.getEnd()));
+        }
+        return highlights;
+    }
+}
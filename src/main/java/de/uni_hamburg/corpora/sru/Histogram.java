@@ -0,0 +1,141 @@
+/**
+ * @file Histogram.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values in power of two buckets.
+ * Recording is a few atomic adds, so it can be done in every request;
+ * quantiles are only as precise as the buckets, i.e. within a factor of
+ * two, which is enough to tell which phase of a search takes the time.
+ * Latencies are recorded in microseconds.
+ * @author tpirinen
+ */
+public class Histogram implements HistogramMBean {
+
+    private static final int BUCKETS = 64;
+
+    private final String name;
+    private final String help;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /** Record a value, negative ones count as 0. */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        // bucket i has values below 2^i and at least 2^(i - 1)
+        int bucket = Math.min(BUCKETS - 1,
+                BUCKETS - Long.numberOfLeadingZeros(value));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long seen = max.get();
+        while ((value > seen) && !max.compareAndSet(seen, value)) {
+            seen = max.get();
+        }
+    }
+
+    /** Record microseconds since a System.nanoTime(). */
+    public void recordSince(long startedNanos) {
+        record((System.nanoTime() - startedNanos) / 1000);
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getSum() {
+        return sum.get();
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.get();
+        return (n > 0) ? (double) sum.get() / n : 0;
+    }
+
+    /** Estimate a quantile as the upper bound of its bucket.
+     *  @param q quantile between 0 and 1.
+     */
+    public long getQuantile(double q) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if ((seen >= rank) && (counts[i] > 0)) {
+                long upper = (i == 0) ? 0 : (1L << i) - 1;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public long get50thPercentile() {
+        return getQuantile(0.5);
+    }
+
+    @Override
+    public long get95thPercentile() {
+        return getQuantile(0.95);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return getQuantile(0.99);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getCount() + " values, mean " +
+            Math.round(getMean()) + ", p50 " + get50thPercentile() + ", p99 " +
+            get99thPercentile() + ", max " + getMax();
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * @file HistogramMBean.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+/**
+ * JMX view of a Histogram.
+ * @author tpirinen
+ */
+public interface HistogramMBean {
+
+    long getCount();
+
+    long getSum();
+
+    long getMax();
+
+    double getMean();
+
+    long get50thPercentile();
+
+    long get95thPercentile();
+
+    long get99thPercentile();
+
+    /** Start counting from zero. */
+    void reset();
+}
@@ -0,0 +1,171 @@
+/**
+ * @file HitCounter.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import eu.clarin.sru.server.SRUResultCountPrecision;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts total hits of queries next to the page fetch.
+ * There are three strategies: COUNT runs a separate COUNT(*) query,
+ * ESTIMATE asks database optimiser for row estimate and CACHED runs exact
+ * counts but remembers them per normalised query. Counting is started
+ * before the page query and runs on its own connection, so it never needs
+ * the page results. Counts run under a deadline of their own, so that a
+ * count the request stopped waiting for doesn't hold its connection.
+ * @author tpirinen
+ */
+public class HitCounter {
+
+    /** How to get the total hit count. */
+    public enum Strategy {COUNT, ESTIMATE, CACHED};
+
+    /** Simple struct holding a count and how precise it is. */
+    public static class HitCount {
+        private int count;
+        private SRUResultCountPrecision precision;
+
+        public HitCount(int count, SRUResultCountPrecision precision) {
+            this.count = count;
+            this.precision = precision;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public SRUResultCountPrecision getPrecision() {
+            return precision;
+        }
+    }
+
+    private static final int COUNT_THREADS = 4;
+    private static final int COUNT_QUEUE = 64;
+    private static final int MAX_CACHED_COUNTS = 10000;
+
+    private final SQLCorpusConnection corpus;
+    private final Strategy strategy;
+    private final ExecutorService executor;
+    private final Map<String, Integer> exactCounts;
+
+    /** Create a counter for queries of given corpus. */
+    public HitCounter(SQLCorpusConnection corpus, Strategy strategy) {
+        this.corpus = corpus;
+        this.strategy = strategy;
+        this.executor = new ThreadPoolExecutor(COUNT_THREADS, COUNT_THREADS,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(COUNT_QUEUE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HZSK hit counter");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.exactCounts = Collections.synchronizedMap(
+                new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, Integer> eldest) {
+                        return size() > MAX_CACHED_COUNTS;
+                    }
+                });
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /** Start counting hits of the query.
+     *  Cancelling the future cancels the count statement too.
+     *  @param deadline time limit of the count.
+     *  @return future count, or null if counter is too busy.
+     */
+    public Future<HitCount> count(final HZSKQuery query,
+            final Deadline deadline) {
+        final String key = query.toCanonicalString();
+        if (strategy == Strategy.CACHED) {
+            final Integer cached = exactCounts.get(key);
+            if (cached != null) {
+                FutureTask<HitCount> done = new FutureTask<HitCount>(
+                        new Callable<HitCount>() {
+                            @Override
+                            public HitCount call() {
+                                return new HitCount(cached,
+                                    SRUResultCountPrecision.EXACT);
+                            }
+                        });
+                done.run();
+                return done;
+            }
+        }
+        Callable<HitCount> counting = new Callable<HitCount>() {
+            @Override
+            public HitCount call() throws Exception {
+                if (strategy == Strategy.ESTIMATE) {
+                    int estimate = corpus.estimateHits(query, deadline);
+                    if (estimate < 0) {
+                        return null;
+                    }
+                    return new HitCount(estimate,
+                            SRUResultCountPrecision.ESTIMATE);
+                }
+                int count = corpus.countHits(query, deadline);
+                if (strategy == Strategy.CACHED) {
+                    exactCounts.put(key, count);
+                }
+                return new HitCount(count, SRUResultCountPrecision.EXACT);
+            }
+        };
+        FutureTask<HitCount> task = new FutureTask<HitCount>(counting) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // JDBC drivers don't stop statements on interrupt
+                deadline.cancel();
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        try {
+            executor.execute(task);
+            return task;
+        } catch (RejectedExecutionException ree) {
+            Logger.getLogger(HitCounter.class.getName())
+                .log(Level.WARNING, "COUNT: too many counts running", ree);
+            return null;
+        }
+    }
+
+    /** Remember an exact count found some other way, e.g. from last page. */
+    public void putExactCount(HZSKQuery query, int count) {
+        if (strategy == Strategy.CACHED) {
+            exactCounts.put(query.toCanonicalString(), count);
+        }
+    }
+
+    /** Forget cached counts, e.g. when corpus DB is reloaded. */
+    public void invalidate() {
+        exactCounts.clear();
+    }
+
+    /** Stop counting threads. */
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * @file IntList.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints.
+ * Posting lists and id lists get big, so boxing them all to Integers isn't
+ * an option.
+ * @author tpirinen
+ */
+public class IntList {
+
+    private int[] values;
+    private int size;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+        size = 0;
+    }
+
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        size++;
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        }
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Get last added value, or -1 if empty. */
+    public int last() {
+        if (size == 0) {
+            return -1;
+        }
+        return values[size - 1];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** Copy the values to an array of exactly right size. */
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,770 @@
+/**
+ * @file InvertedIndex.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * In-memory inverted index of the utterances in corpus DB.
+ * Word forms, lemmas and POS tags of the tokens are mapped to posting lists
+ * of utterances with token positions, so that text, lemma and pos searches
+ * of HZSKQuery can be answered by looking up and intersecting the lists
+ * without SQL; the DB is only needed for the display data of result page.
+ * Utterances are numbered densely in segment_id order, so the results come
+ * in the same order as from SQL paging.
+ * Word forms and lemmas are matched case-insensitively as whole tokens,
+ * tags as they are. Other text searches, substrings and regular
+ * expressions, are matched case-insensitively like in the DB against the
+ * utterance texts, narrowed down by a TrigramIndex. FCS-QL sequences are
+ * matched token by token with the positions, so they give exact hits.
+ * The index is built from
+ * DB by SQLCorpusConnection.buildIndex() or loaded from a snapshot file
+ * written by save().
+ * @author tpirinen
+ */
+public class InvertedIndex {
+
+    public static final String LAYER_WORD = "word";
+    public static final String LAYER_LEMMA = "lemma";
+    public static final String LAYER_POS = "pos";
+
+    private static final int SNAPSHOT_MAGIC = 0x485a5349; // HZSI
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int[] NO_DOCS = new int[0];
+    private static final Postings NO_POSTINGS =
+        new Postings(NO_DOCS, new int[]{0}, NO_DOCS);
+
+    /** Text searches that can be answered from word postings. */
+    private static final Pattern INDEXED_WORDS =
+        Pattern.compile("[\\p{L}\\p{N}]+( [\\p{L}\\p{N}]+)*");
+
+    /** Posting list of one term.
+     *  For each utterance number in docs, the token positions of the term
+     *  are in positions from offsets[i] until offsets[i + 1].
+     */
+    static class Postings {
+        final int[] docs;
+        final int[] offsets;
+        final int[] positions;
+
+        Postings(int[] docs, int[] offsets, int[] positions) {
+            this.docs = docs;
+            this.offsets = offsets;
+            this.positions = positions;
+        }
+
+        /** Check if term is at position in i:th utterance of the list. */
+        boolean hasPosition(int i, int position) {
+            return Arrays.binarySearch(positions, offsets[i], offsets[i + 1],
+                    position) >= 0;
+        }
+    }
+
+    /** Result of a search: matching utterances and for sequences the token
+     *  positions where the hits start.
+     */
+    public static class Hits {
+        private final int[] docs;
+        private final Postings starts;
+        private final int length;
+
+        Hits(int[] docs) {
+            this.docs = docs;
+            this.starts = null;
+            this.length = 0;
+        }
+
+        Hits(Postings starts, int length) {
+            this.docs = starts.docs;
+            this.starts = starts;
+            this.length = length;
+        }
+
+        /** Number of matching utterances. */
+        public int size() {
+            return docs.length;
+        }
+    }
+
+    /** Collects posting lists of one term while building. */
+    private static class PostingsBuilder {
+        final IntList docs = new IntList(4);
+        final IntList offsets = new IntList(4);
+        final IntList positions = new IntList(4);
+
+        void add(int doc, int position) {
+            if (docs.last() != doc) {
+                docs.add(doc);
+                offsets.add(positions.size());
+            }
+            positions.add(position);
+        }
+
+        Postings build() {
+            offsets.add(positions.size());
+            return new Postings(docs.toArray(), offsets.toArray(),
+                    positions.toArray());
+        }
+    }
+
+    /** Builds an index from utterances and their tokens.
+     *  Call addUtterance() for all utterances, then addToken() for each
+     *  token and annotate() for each annotation of the last added token,
+     *  both in utterance and text order, then build().
+     */
+    public static class Builder {
+        private final IntList utteranceIds = new IntList(1024);
+        private final List<String> texts = new ArrayList<String>(1024);
+        private final TrigramIndex.Builder trigrams =
+            new TrigramIndex.Builder();
+        private final IntList tokenOffsets = new IntList(1024);
+        private final IntList tokenStarts = new IntList(8192);
+        private final IntList tokenEnds = new IntList(8192);
+        private final Map<String, PostingsBuilder> words =
+            new HashMap<String, PostingsBuilder>();
+        private final Map<String, PostingsBuilder> lemmas =
+            new HashMap<String, PostingsBuilder>();
+        private final Map<String, PostingsBuilder> tags =
+            new HashMap<String, PostingsBuilder>();
+        private int tokenDoc = -1;
+        private int position = -1;
+
+        /** Add next utterance.
+         *  @param utteranceId segment_id of the utterance, ascending.
+         *  @param text utterance text.
+         */
+        public void addUtterance(int utteranceId, String text) {
+            int last = utteranceIds.last();
+            if (utteranceId <= last) {
+                throw new IllegalArgumentException("Utterance " +
+                        utteranceId + " added after " + last);
+            }
+            if (text == null) {
+                text = "";
+            }
+            trigrams.add(utteranceIds.size(), text);
+            utteranceIds.add(utteranceId);
+            texts.add(text);
+        }
+
+        /** Add next token of an utterance.
+         *  Tokens of utterances that were not added are ignored.
+         *  @param utteranceId segment_id of the utterance, ascending.
+         *  @param word token text.
+         *  @param charS start of token in text.
+         *  @param charE end of token in text.
+         */
+        public void addToken(int utteranceId, String word, int charS,
+                int charE) {
+            if ((tokenDoc == -1) ||
+                    (utteranceIds.get(tokenDoc) != utteranceId)) {
+                if ((tokenDoc != -1) &&
+                        (utteranceId < utteranceIds.get(tokenDoc))) {
+                    throw new IllegalArgumentException("Token of " +
+                            utteranceId + " added after " +
+                            utteranceIds.get(tokenDoc));
+                }
+                int doc = tokenDoc + 1;
+                while ((doc < utteranceIds.size()) &&
+                        (utteranceIds.get(doc) < utteranceId)) {
+                    doc++;
+                }
+                if ((doc == utteranceIds.size()) ||
+                        (utteranceIds.get(doc) != utteranceId)) {
+                    position = -1;
+                    return;
+                }
+                while (tokenOffsets.size() <= doc) {
+                    tokenOffsets.add(tokenStarts.size());
+                }
+                tokenDoc = doc;
+                position = -1;
+            }
+            position++;
+            tokenStarts.add(charS);
+            tokenEnds.add(charE);
+            if (word != null) {
+                add(words, normalise(word));
+            }
+        }
+
+        /** Add an annotation to the last added token.
+         *  Layers other than lemma and pos are not indexed.
+         */
+        public void annotate(String layer, String value) {
+            if ((value == null) || (position == -1)) {
+                return;
+            }
+            if (LAYER_LEMMA.equals(layer)) {
+                add(lemmas, normalise(value));
+            } else if (LAYER_POS.equals(layer)) {
+                add(tags, value.trim());
+            }
+        }
+
+        private void add(Map<String, PostingsBuilder> layer, String term) {
+            if (term.isEmpty()) {
+                return;
+            }
+            PostingsBuilder postings = layer.get(term);
+            if (postings == null) {
+                postings = new PostingsBuilder();
+                layer.put(term, postings);
+            }
+            postings.add(tokenDoc, position);
+        }
+
+        public InvertedIndex build() {
+            while (tokenOffsets.size() <= utteranceIds.size()) {
+                tokenOffsets.add(tokenStarts.size());
+            }
+            return new InvertedIndex(utteranceIds.toArray(),
+                    texts.toArray(new String[texts.size()]),
+                    trigrams.build(),
+                    tokenOffsets.toArray(), tokenStarts.toArray(),
+                    tokenEnds.toArray(), buildLayer(words),
+                    buildLayer(lemmas), buildLayer(tags));
+        }
+
+        private static Map<String, Postings> buildLayer(
+                Map<String, PostingsBuilder> layer) {
+            Map<String, Postings> built =
+                new HashMap<String, Postings>(layer.size() * 2);
+            for (Map.Entry<String, PostingsBuilder> entry : layer.entrySet()) {
+                built.put(entry.getKey(), entry.getValue().build());
+            }
+            return built;
+        }
+    }
+
+    private final int[] utteranceIds;
+    private final String[] texts;
+    private final TrigramIndex trigrams;
+    private final int[] tokenOffsets;
+    private final int[] tokenStarts;
+    private final int[] tokenEnds;
+    private final Map<String, Postings> words;
+    private final Map<String, Postings> lemmas;
+    private final Map<String, Postings> tags;
+
+    private InvertedIndex(int[] utteranceIds, String[] texts,
+            TrigramIndex trigrams, int[] tokenOffsets,
+            int[] tokenStarts, int[] tokenEnds, Map<String, Postings> words,
+            Map<String, Postings> lemmas, Map<String, Postings> tags) {
+        this.utteranceIds = utteranceIds;
+        this.texts = texts;
+        this.trigrams = trigrams;
+        this.tokenOffsets = tokenOffsets;
+        this.tokenStarts = tokenStarts;
+        this.tokenEnds = tokenEnds;
+        this.words = words;
+        this.lemmas = lemmas;
+        this.tags = tags;
+    }
+
+    /** Normalise word forms and lemmas for case-insensitive lookup. */
+    static String normalise(String term) {
+        return term.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /** Check if all searches of the query can be answered from the index.
+     *  Everything can, as long as regular expressions are valid, also
+     *  those of the items of a sequence.
+     */
+    public boolean canAnswer(HZSKQuery query) {
+        if (query.isSequence()) {
+            for (HZSKQuery item : query.getSequence()) {
+                if (!canAnswer(item)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (!query.isUsable()) {
+            return false;
+        }
+        if (query.isRegexSearch()) {
+            for (String term : textTerms(query)) {
+                try {
+                    Pattern.compile(term);
+                } catch (PatternSyntaxException pse) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Find utterances matching the query.
+     *  Text terms are phrases of consecutive tokens combined by the query's
+     *  combinator; pos and lemma searches must match some token of the
+     *  utterance too. Sequences must match consecutive tokens.
+     *  @return hits in ascending utterance numbers.
+     */
+    public Hits search(HZSKQuery query) {
+        if (query.isSequence()) {
+            return new Hits(sequence(query.getSequence()),
+                    query.getSequence().size());
+        }
+        int[] docs = null;
+        if (query.hasTextSearch()) {
+            for (String term : textTerms(query)) {
+                int[] termDocs;
+                if (INDEXED_WORDS.matcher(term.trim()).matches()) {
+                    termDocs = phrase(term.trim().split(" +"));
+                } else {
+                    termDocs = matchTexts(term, query.isRegexSearch());
+                }
+                if (docs == null) {
+                    docs = termDocs;
+                } else if (query.getCombinator() == HZSKQuery.ComboType.OR) {
+                    docs = union(docs, termDocs);
+                } else {
+                    docs = intersect(docs, termDocs);
+                }
+            }
+        }
+        if (query.hasPosSearch()) {
+            for (String pos : query.getPosSearches()) {
+                int[] posDocs = NO_DOCS;
+                for (String tag : StatementCatalog.posTags(pos)) {
+                    posDocs = union(posDocs, docsOf(tags.get(tag.trim())));
+                }
+                docs = (docs == null) ? posDocs : intersect(docs, posDocs);
+            }
+        }
+        if (query.hasLemmaSearch()) {
+            for (String lemma : query.getLemmaSearches()) {
+                int[] lemmaDocs = docsOf(lemmas.get(normalise(lemma)));
+                docs = (docs == null) ? lemmaDocs :
+                    intersect(docs, lemmaDocs);
+            }
+        }
+        return new Hits((docs == null) ? NO_DOCS : docs);
+    }
+
+    /** Find where a sequence of token queries matches consecutive tokens.
+     *  @return postings of the first tokens of the matches.
+     */
+    private Postings sequence(List<HZSKQuery> items) {
+        Postings starts = null;
+        for (int i = 0; i < items.size(); i++) {
+            Postings tokens = tokensMatching(items.get(i));
+            starts = (starts == null) ? tokens : follow(starts, tokens, i);
+            if (starts.docs.length == 0) {
+                break;
+            }
+        }
+        return (starts == null) ? NO_POSTINGS : starts;
+    }
+
+    /** Get postings of the tokens matching a single token query.
+     *  Regular expressions of words are matched as whole tokens against
+     *  all words. Pos and lemma values are literal like in search() and in
+     *  SQL, pos values being UD or STTS tags.
+     */
+    private Postings tokensMatching(HZSKQuery item) {
+        if (item.hasTextSearch()) {
+            String term = item.getTextSearch().trim();
+            if (!item.isRegexSearch() || HZSKQuery.isLiteral(term)) {
+                return orEmpty(words.get(normalise(term)));
+            }
+            return termsMatching(words, Pattern.compile(term,
+                        Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+        } else if (item.hasPosSearch()) {
+            List<Postings> tagPostings = new ArrayList<Postings>();
+            for (String tag : StatementCatalog.posTags(item.getPosSearch())) {
+                tagPostings.add(orEmpty(tags.get(tag.trim())));
+            }
+            return unionPostings(tagPostings);
+        } else if (item.hasLemmaSearch()) {
+            return orEmpty(lemmas.get(normalise(item.getLemmaSearch())));
+        }
+        return NO_POSTINGS;
+    }
+
+    /** Merge postings of all terms of layer fully matching pattern. */
+    private static Postings termsMatching(Map<String, Postings> layer,
+            Pattern pattern) {
+        List<Postings> matching = new ArrayList<Postings>();
+        for (Map.Entry<String, Postings> entry : layer.entrySet()) {
+            if (pattern.matcher(entry.getKey()).matches()) {
+                matching.add(entry.getValue());
+            }
+        }
+        return unionPostings(matching);
+    }
+
+    /** Keep the start positions that have next tokens offset after them. */
+    private static Postings follow(Postings starts, Postings next,
+            int offset) {
+        IntList docs = new IntList();
+        IntList offsets = new IntList();
+        IntList positions = new IntList();
+        int i = 0;
+        int j = 0;
+        while ((i < starts.docs.length) && (j < next.docs.length)) {
+            if (starts.docs[i] < next.docs[j]) {
+                i++;
+            } else if (starts.docs[i] > next.docs[j]) {
+                j++;
+            } else {
+                int before = positions.size();
+                for (int p = starts.offsets[i]; p < starts.offsets[i + 1];
+                        p++) {
+                    if (next.hasPosition(j, starts.positions[p] + offset)) {
+                        positions.add(starts.positions[p]);
+                    }
+                }
+                if (positions.size() > before) {
+                    docs.add(starts.docs[i]);
+                    offsets.add(before);
+                }
+                i++;
+                j++;
+            }
+        }
+        offsets.add(positions.size());
+        return new Postings(docs.toArray(), offsets.toArray(),
+                positions.toArray());
+    }
+
+    /** Merge postings of many terms into one. */
+    private static Postings unionPostings(List<Postings> postings) {
+        if (postings.isEmpty()) {
+            return NO_POSTINGS;
+        } else if (postings.size() == 1) {
+            return postings.get(0);
+        }
+        int size = 0;
+        for (Postings p : postings) {
+            size += p.positions.length;
+        }
+        long[] tokens = new long[size];
+        int t = 0;
+        for (Postings p : postings) {
+            for (int i = 0; i < p.docs.length; i++) {
+                for (int k = p.offsets[i]; k < p.offsets[i + 1]; k++) {
+                    tokens[t] = ((long) p.docs[i] << 32) | p.positions[k];
+                    t++;
+                }
+            }
+        }
+        Arrays.sort(tokens);
+        PostingsBuilder merged = new PostingsBuilder();
+        long previous = -1;
+        for (long token : tokens) {
+            if (token != previous) {
+                merged.add((int) (token >>> 32), (int) token);
+                previous = token;
+            }
+        }
+        return merged.build();
+    }
+
+    private static Postings orEmpty(Postings postings) {
+        return (postings == null) ? NO_POSTINGS : postings;
+    }
+
+    /** Get the strings to match as phrases, like SQL matches them. */
+    private static List<String> textTerms(HZSKQuery query) {
+        if (query.getCombinator() == HZSKQuery.ComboType.WHATEVER) {
+            String singleQ = "";
+            String delim = "";
+            for (String s : query.getTextSearches()) {
+                singleQ += delim;
+                singleQ += s.trim();
+                delim = " ";
+            }
+            return Collections.singletonList(singleQ);
+        }
+        return query.getTextSearches();
+    }
+
+    /** Find utterances with the words in consecutive tokens. */
+    private int[] phrase(String[] phraseWords) {
+        Postings starts = null;
+        for (int i = 0; i < phraseWords.length; i++) {
+            Postings postings = words.get(normalise(phraseWords[i]));
+            if (postings == null) {
+                return NO_DOCS;
+            }
+            starts = (starts == null) ? postings :
+                follow(starts, postings, i);
+        }
+        return starts.docs;
+    }
+
+    /** Find utterances whose text contains the term.
+     *  Only candidates from the trigram index are checked, unless the term
+     *  has nothing to look up.
+     */
+    private int[] matchTexts(String term, boolean regex) {
+        Pattern pattern;
+        int[] candidates;
+        if (regex) {
+            pattern = Pattern.compile(term,
+                    Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            candidates = trigrams.candidatesForRegex(term);
+        } else {
+            pattern = Pattern.compile(Pattern.quote(term),
+                    Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            candidates = trigrams.candidatesForLiteral(term);
+        }
+        IntList matching = new IntList();
+        if (candidates == null) {
+            for (int doc = 0; doc < texts.length; doc++) {
+                if (pattern.matcher(texts[doc]).find()) {
+                    matching.add(doc);
+                }
+            }
+        } else {
+            for (int doc : candidates) {
+                if (pattern.matcher(texts[doc]).find()) {
+                    matching.add(doc);
+                }
+            }
+        }
+        return matching.toArray();
+    }
+
+    private static int[] docsOf(Postings postings) {
+        return (postings == null) ? NO_DOCS : postings.docs;
+    }
+
+    /** Intersect two ascending lists. */
+    static int[] intersect(int[] lhs, int[] rhs) {
+        IntList both = new IntList(Math.min(lhs.length, rhs.length));
+        int i = 0;
+        int j = 0;
+        while ((i < lhs.length) && (j < rhs.length)) {
+            if (lhs[i] < rhs[j]) {
+                i++;
+            } else if (lhs[i] > rhs[j]) {
+                j++;
+            } else {
+                both.add(lhs[i]);
+                i++;
+                j++;
+            }
+        }
+        return both.toArray();
+    }
+
+    /** Merge two ascending lists without duplicates. */
+    static int[] union(int[] lhs, int[] rhs) {
+        if (lhs.length == 0) {
+            return rhs;
+        } else if (rhs.length == 0) {
+            return lhs;
+        }
+        IntList either = new IntList(lhs.length + rhs.length);
+        int i = 0;
+        int j = 0;
+        while ((i < lhs.length) || (j < rhs.length)) {
+            if ((j == rhs.length) || ((i < lhs.length) && (lhs[i] < rhs[j]))) {
+                either.add(lhs[i]);
+                i++;
+            } else if ((i == lhs.length) || (rhs[j] < lhs[i])) {
+                either.add(rhs[j]);
+                j++;
+            } else {
+                either.add(lhs[i]);
+                i++;
+                j++;
+            }
+        }
+        return either.toArray();
+    }
+
+    /** Get segment_id of an utterance number from search(). */
+    public int getUtteranceId(int doc) {
+        return utteranceIds[doc];
+    }
+
+    /** Get segment_ids of a page of search results.
+     *  @param hits results of search().
+     *  @param start index of first result on page.
+     *  @param max maximum results on page.
+     */
+    public int[] getUtteranceIds(Hits hits, int start, int max) {
+        int[] docs = hits.docs;
+        int from = Math.min(Math.max(start, 0), docs.length);
+        int to = Math.min(from + max, docs.length);
+        int[] ids = new int[to - from];
+        for (int i = from; i < to; i++) {
+            ids[i - from] = utteranceIds[docs[i]];
+        }
+        return ids;
+    }
+
+    /** Get character positions of the hits in a page of search results.
+     *  Only sequences know exactly where they matched, for other searches
+     *  the highlights are found from text.
+     *  @return for each result on page start and end pairs of its hits, or
+     *      null if not known.
+     */
+    public int[][] getHitOffsets(Hits hits, int start, int max) {
+        int from = Math.min(Math.max(start, 0), hits.docs.length);
+        int to = Math.min(from + max, hits.docs.length);
+        int[][] offsets = new int[to - from][];
+        if (hits.starts == null) {
+            return offsets;
+        }
+        for (int i = from; i < to; i++) {
+            int first = tokenOffsets[hits.docs[i]];
+            int[] ranges = new int[2 * (hits.starts.offsets[i + 1] -
+                    hits.starts.offsets[i])];
+            int r = 0;
+            for (int p = hits.starts.offsets[i];
+                    p < hits.starts.offsets[i + 1]; p++) {
+                int token = first + hits.starts.positions[p];
+                ranges[r] = tokenStarts[token];
+                ranges[r + 1] = tokenEnds[token + hits.length - 1];
+                r += 2;
+            }
+            offsets[i - from] = ranges;
+        }
+        return offsets;
+    }
+
+    /** Number of utterances in the index. */
+    public int getUtteranceCount() {
+        return utteranceIds.length;
+    }
+
+    /** Number of tokens in the index. */
+    public int getTokenCount() {
+        return tokenStarts.length;
+    }
+
+    /** Number of distinct word forms, lemmas and tags. */
+    public int getTermCount() {
+        return words.size() + lemmas.size() + tags.size();
+    }
+
+    /** Write the index to a snapshot file for fast startup. */
+    public void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            writeInts(out, utteranceIds);
+            for (String text : texts) {
+                byte[] utf8 = text.getBytes("UTF-8");
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+            trigrams.write(out);
+            writeInts(out, tokenOffsets);
+            writeInts(out, tokenStarts);
+            writeInts(out, tokenEnds);
+            writeLayer(out, words);
+            writeLayer(out, lemmas);
+            writeLayer(out, tags);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Read an index from snapshot file written by save(). */
+    public static InvertedIndex load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException(file + " is not an index snapshot");
+            }
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException(file + " has snapshot version " +
+                        version + ", expected " + SNAPSHOT_VERSION);
+            }
+            int[] utteranceIds = readInts(in);
+            String[] texts = new String[utteranceIds.length];
+            for (int i = 0; i < texts.length; i++) {
+                byte[] utf8 = new byte[in.readInt()];
+                in.readFully(utf8);
+                texts[i] = new String(utf8, "UTF-8");
+            }
+            TrigramIndex trigrams = TrigramIndex.read(in);
+            int[] tokenOffsets = readInts(in);
+            int[] tokenStarts = readInts(in);
+            int[] tokenEnds = readInts(in);
+            Map<String, Postings> words = readLayer(in);
+            Map<String, Postings> lemmas = readLayer(in);
+            Map<String, Postings> tags = readLayer(in);
+            return new InvertedIndex(utteranceIds, texts, trigrams,
+                    tokenOffsets, tokenStarts,
+                    tokenEnds, words, lemmas, tags);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values)
+            throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeLayer(DataOutputStream out,
+            Map<String, Postings> layer) throws IOException {
+        out.writeInt(layer.size());
+        for (Map.Entry<String, Postings> entry : layer.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeInts(out, entry.getValue().docs);
+            writeInts(out, entry.getValue().offsets);
+            writeInts(out, entry.getValue().positions);
+        }
+    }
+
+    private static Map<String, Postings> readLayer(DataInputStream in)
+            throws IOException {
+        int size = in.readInt();
+        Map<String, Postings> layer = new HashMap<String, Postings>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String term = in.readUTF();
+            layer.put(term, new Postings(readInts(in), readInts(in),
+                        readInts(in)));
+        }
+        return layer;
+    }
+
+    @Override
+    public String toString() {
+        return "InvertedIndex: " + getUtteranceCount() + " utterances, " +
+            getTokenCount() + " tokens, " + words.size() + " words, " +
+            lemmas.size() + " lemmas, " + tags.size() + " tags, " +
+            trigrams.size() + " trigrams";
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * @file Metrics.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Latencies of search phases and counters of the endpoint.
+ * The histograms and counters are static so that any class can record into
+ * them without passing them around; recording is lock-free. Other
+ * components add gauges reading their own statistics. Everything is
+ * registered as JMX MBeans under de.uni_hamburg.corpora.sru and written as
+ * plain text for scraping by MetricsServlet.
+ * @author tpirinen
+ */
+public final class Metrics {
+
+    /** JMX view of a Counter. */
+    public interface CounterMBean {
+        long getCount();
+    }
+
+    /** Monotonic counter. */
+    public static class Counter implements CounterMBean {
+        private final String name;
+        private final String help;
+        private final AtomicLong count = new AtomicLong();
+
+        Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        public void add(long n) {
+            count.addAndGet(n);
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    /** Value read from a component when asked. */
+    public interface Gauge {
+        long getValue();
+    }
+
+    /** JMX view of a Gauge. */
+    public interface GaugeMBean {
+        long getValue();
+    }
+
+    private static class NamedGauge implements GaugeMBean {
+        private final String name;
+        private final String help;
+        private final boolean cumulative;
+        private final Gauge gauge;
+
+        NamedGauge(String name, String help, boolean cumulative,
+                Gauge gauge) {
+            this.name = name;
+            this.help = help;
+            this.cumulative = cumulative;
+            this.gauge = gauge;
+        }
+
+        @Override
+        public long getValue() {
+            return gauge.getValue();
+        }
+    }
+
+    private static final String DOMAIN = "de.uni_hamburg.corpora.sru";
+    private static final String PREFIX = "hzsk_sru_";
+
+    private static final List<Histogram> histograms =
+        new CopyOnWriteArrayList<Histogram>();
+    private static final List<Counter> counters =
+        new CopyOnWriteArrayList<Counter>();
+    private static final Map<String, NamedGauge> gauges =
+        new ConcurrentHashMap<String, NamedGauge>();
+    private static final List<ObjectName> registered =
+        new ArrayList<ObjectName>();
+
+    public static final Histogram QUERY_PARSE = histogram("query_parse",
+            "Parsing CQL or FCS-QL query of a request (us)");
+    public static final Histogram TEXT_SQL = histogram("text_sql",
+            "Text and segment_id queries until first row (us)");
+    public static final Histogram SEGMENT_SQL = histogram("segment_sql",
+            "Segment and annotation queries until first row (us)");
+    public static final Histogram HIGHLIGHT = histogram("highlight",
+            "Finding hits to highlight in an utterance (us)");
+    public static final Histogram LAYERS = histogram("layers",
+            "Reading segments into layers of a batch of records (us)");
+    public static final Histogram SERIALIZE = histogram("serialize",
+            "Writing one record as XML (us)");
+    public static final Histogram SEGMENTS_PER_RECORD = histogram(
+            "segments_per_record", "Segments in all layers of a record");
+    public static final Counter ROWS_SCANNED = counter("rows_scanned",
+            "Rows read from the corpus DB by searches");
+    public static final Counter RECORDS_RETURNED = counter(
+            "records_returned", "Records written to responses");
+
+    private Metrics() {
+    }
+
+    private static Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram(name, help);
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    private static Counter counter(String name, String help) {
+        Counter counter = new Counter(name, help);
+        counters.add(counter);
+        return counter;
+    }
+
+    /** Add or replace a gauge.
+     *  @param cumulative whether the value only grows, like a count of
+     *      cache hits.
+     */
+    public static void gauge(String name, String help, boolean cumulative,
+            Gauge gauge) {
+        gauges.put(name, new NamedGauge(name, help, cumulative, gauge));
+    }
+
+    /** Register all metrics in the platform MBean server. */
+    public static synchronized void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Histogram histogram : histograms) {
+            register(server, "Histogram", histogram.getName(), histogram,
+                    HistogramMBean.class);
+        }
+        for (Counter counter : counters) {
+            register(server, "Counter", counter.name, counter,
+                    CounterMBean.class);
+        }
+        for (NamedGauge gauge : gauges.values()) {
+            register(server, "Gauge", gauge.name, gauge, GaugeMBean.class);
+        }
+    }
+
+    /** Register another MBean of the endpoint, e.g. for management. */
+    public static synchronized <T> void registerMBean(String type,
+            String name, T mbean, Class<T> mbeanInterface) {
+        register(ManagementFactory.getPlatformMBeanServer(), type, name,
+                mbean, mbeanInterface);
+    }
+
+    private static <T> void register(MBeanServer server, String type,
+            String name, T mbean, Class<T> mbeanInterface) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type +
+                    ",name=" + name);
+            if (server.isRegistered(objectName)) {
+                // left over from a previous deployment
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new StandardMBean(mbean, mbeanInterface),
+                    objectName);
+            registered.add(objectName);
+        } catch (JMException jme) {
+            Logger.getLogger(Metrics.class.getName())
+                .log(Level.WARNING, "JMX: can't register " + name, jme);
+        }
+    }
+
+    /** Unregister the MBeans, e.g. when the servlet is destroyed. */
+    public static synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException jme) {
+                // gone already
+            }
+        }
+        registered.clear();
+    }
+
+    /** Write all metrics in Prometheus text format. */
+    public static void writeText(PrintWriter out) {
+        for (Histogram histogram : histograms) {
+            String name = PREFIX + histogram.getName();
+            out.println("# HELP " + name + " " + histogram.getHelp());
+            out.println("# TYPE " + name + " summary");
+            for (double q : new double[]{0.5, 0.95, 0.99}) {
+                out.println(name + "{quantile=\"" + q + "\"} " +
+                        histogram.getQuantile(q));
+            }
+            out.println(name + "_sum " + histogram.getSum());
+            out.println(name + "_count " + histogram.getCount());
+            out.println("# TYPE " + name + "_max gauge");
+            out.println(name + "_max " + histogram.getMax());
+        }
+        for (Counter counter : counters) {
+            String name = PREFIX + counter.name + "_total";
+            out.println("# HELP " + name + " " + counter.help);
+            out.println("# TYPE " + name + " counter");
+            out.println(name + " " + counter.getCount());
+        }
+        for (NamedGauge gauge : gauges.values()) {
+            String name = PREFIX + gauge.name;
+            out.println("# HELP " + name + " " + gauge.help);
+            out.println("# TYPE " + name + " " +
+                    (gauge.cumulative ? "counter" : "gauge"));
+            out.println(name + " " + gauge.getValue());
+        }
+    }
+}
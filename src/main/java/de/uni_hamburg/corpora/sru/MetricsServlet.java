@@ -0,0 +1,50 @@
+/**
+ * @file MetricsServlet.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Plain text metrics for scraping, e.g. by Prometheus.
+ * Only answers to addresses matching init-param allowFrom, localhost by
+ * default.
+ * @author tpirinen
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final String DEFAULT_ALLOW_FROM =
+        "127\\.0\\.0\\.1|0:0:0:0:0:0:0:1|::1";
+
+    private Pattern allowFrom;
+
+    @Override
+    public void init() throws ServletException {
+        String allow = getInitParameter("allowFrom");
+        allowFrom = Pattern.compile((allow != null) ? allow :
+                DEFAULT_ALLOW_FROM);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        if (!allowFrom.matcher(request.getRemoteAddr()).matches()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        Metrics.writeText(out);
+        out.flush();
+    }
+}
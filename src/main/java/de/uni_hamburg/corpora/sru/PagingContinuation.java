@@ -0,0 +1,85 @@
+/**
+ * @file PagingContinuation.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+/**
+ * Opaque token for fetching the next page of a search in keyset mode.
+ * The token remembers the last segment_id of a page, the record position
+ * after it and a hash of the query, so that deep pages can be queried with
+ * segment_id &gt; lastSeen instead of making the database skip all the
+ * previous rows. Clients get it in extra response data and send it back in
+ * the x-hzsk-continuation parameter.
+ * @author tpirinen
+ */
+public class PagingContinuation {
+
+    private static final String VERSION = "k1";
+    private static final int RADIX = 36;
+
+    private int nextRecord;
+    private int lastSegmentId;
+    private int queryHash;
+
+    /** Create continuation for a page ending at lastSegmentId.
+     *  @param nextRecord zero-based position of the first record of next page
+     */
+    public PagingContinuation(HZSKQuery query, int nextRecord,
+            int lastSegmentId) {
+        this.nextRecord = nextRecord;
+        this.lastSegmentId = lastSegmentId;
+        this.queryHash = queryHash(query);
+    }
+
+    private PagingContinuation(int nextRecord, int lastSegmentId,
+            int queryHash) {
+        this.nextRecord = nextRecord;
+        this.lastSegmentId = lastSegmentId;
+        this.queryHash = queryHash;
+    }
+
+    /** Parse a token made by toString().
+     *  @return the continuation or null if token is not one of ours.
+     */
+    public static PagingContinuation parse(String token) {
+        if (token == null) {
+            return null;
+        }
+        String[] parts = token.split("\\.");
+        if ((parts.length != 4) || !parts[0].equals(VERSION)) {
+            return null;
+        }
+        try {
+            return new PagingContinuation(Integer.parseInt(parts[1], RADIX),
+                    Integer.parseInt(parts[2], RADIX),
+                    Integer.parseInt(parts[3], RADIX));
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /** Check if this continues given query at given record position. */
+    public boolean continues(HZSKQuery query, int startRecord) {
+        return (startRecord == nextRecord) && (queryHash == queryHash(query));
+    }
+
+    public int getNextRecord() {
+        return nextRecord;
+    }
+
+    public int getLastSegmentId() {
+        return lastSegmentId;
+    }
+
+    @Override
+    public String toString() {
+        return VERSION + "." + Integer.toString(nextRecord, RADIX) + "." +
+            Integer.toString(lastSegmentId, RADIX) + "." +
+            Integer.toString(queryHash, RADIX);
+    }
+
+    private static int queryHash(HZSKQuery query) {
+        return query.toCanonicalString().hashCode();
+    }
+}
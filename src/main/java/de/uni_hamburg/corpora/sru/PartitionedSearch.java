@@ -0,0 +1,242 @@
+/**
+ * @file PartitionedSearch.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Searches text in partitions of utterances in parallel.
+ * The utterances are split into ranges of segment_id, each searched on its
+ * own pooled connection. Results are in segment_id order like in
+ * SQLCorpusConnection, so the ranges are simply concatenated in order, and
+ * the ranges after the ones that already fill the page are cancelled. Each
+ * range runs under a child deadline of the request, so that cancelling it
+ * cancels its statement too. Only ids are searched in partitions; the page
+ * itself is fetched with SQLCorpusConnection.queryByIds().
+ * @author tpirinen
+ */
+public class PartitionedSearch {
+
+    private final SQLCorpusConnection corpus;
+    private final int partitions;
+    private final ExecutorService executor;
+    private volatile int[] bounds;
+
+    /** Create a search of given number of partitions.
+     *  Executor has two threads per partition, so that a couple of
+     *  searches can run at the same time; when all are busy partitions run
+     *  in the request's thread.
+     */
+    public PartitionedSearch(SQLCorpusConnection corpus, int partitions) {
+        this.corpus = corpus;
+        this.partitions = partitions;
+        this.executor = new ThreadPoolExecutor(partitions, partitions * 2,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(partitions * 4),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HZSK partition search");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /** Get partition boundaries, computing them on first search.
+     *  Partition i has segment_ids after bounds[i] up to bounds[i + 1].
+     *  The last partition is open-ended, so that utterances imported later
+     *  are found too. Bounds of an empty DB are not kept.
+     */
+    private int[] getBounds() throws SQLException {
+        int[] current = bounds;
+        if (current != null) {
+            return current;
+        }
+        int[] range = corpus.getUtteranceIdRange();
+        if (range == null) {
+            return new int[]{-1, Integer.MAX_VALUE};
+        }
+        long width = (long) range[1] - range[0] + 1;
+        current = new int[partitions + 1];
+        current[0] = range[0] - 1;
+        for (int i = 1; i < partitions; i++) {
+            current[i] = (int) (range[0] - 1 + width * i / partitions);
+        }
+        current[partitions] = Integer.MAX_VALUE;
+        bounds = current;
+        return current;
+    }
+
+    /** Forget partition boundaries, e.g. when corpus DB is reloaded. */
+    public void invalidate() {
+        bounds = null;
+    }
+
+    /** Retrieve a page of text search results.
+     *  @param afterSegmentId last segment_id of previous page or -1, like in
+     *      SQLCorpusConnection.query().
+     */
+    public AdvancedSearchResultSet query(HZSKQuery query,
+            int startRecord, int maximumRecords, int afterSegmentId)
+            throws SQLException {
+        return query(query, startRecord, maximumRecords, afterSegmentId,
+                Deadline.none());
+    }
+
+    /** Retrieve a page of text search results within a deadline.
+     *  @see #queryIds(HZSKQuery, int, int, int, Deadline)
+     */
+    public AdvancedSearchResultSet query(HZSKQuery query,
+            int startRecord, int maximumRecords, int afterSegmentId,
+            Deadline deadline) throws SQLException {
+        int[] page = queryIds(query, startRecord, maximumRecords,
+                afterSegmentId, deadline);
+        AdvancedSearchResultSet sr = corpus.queryByIds(query, page, null,
+                deadline);
+        // at least this many, only the page was counted
+        sr.setTotalLength(startRecord + sr.getLength());
+        return sr;
+    }
+
+    /** Find segment_ids of a page of text search results.
+     *  @see #query(HZSKQuery, int, int, int)
+     *  @return ascending segment_ids of the page.
+     */
+    public int[] queryIds(HZSKQuery query, int startRecord,
+            int maximumRecords, int afterSegmentId) throws SQLException {
+        return queryIds(query, startRecord, maximumRecords, afterSegmentId,
+                Deadline.none());
+    }
+
+    /** Find segment_ids of a page within a deadline.
+     *  When the deadline passes, the ids of the partitions finished so far
+     *  and the ones found in time in the first unfinished partition make
+     *  the page, and the deadline is marked stopped.
+     */
+    public int[] queryIds(final HZSKQuery query, int startRecord,
+            int maximumRecords, int afterSegmentId, final Deadline deadline)
+            throws SQLException {
+        int[] current = getBounds();
+        // without keyset all of the skipped records are needed too
+        final int needed = (afterSegmentId != -1) ? maximumRecords :
+            startRecord + maximumRecords;
+        List<Future<int[]>> parts = new ArrayList<Future<int[]>>();
+        List<Deadline> partDeadlines = new ArrayList<Deadline>();
+        for (int i = 0; i + 1 < current.length; i++) {
+            if (afterSegmentId >= current[i + 1]) {
+                continue;
+            }
+            final int after = Math.max(current[i], afterSegmentId);
+            final int last = current[i + 1];
+            final Deadline partDeadline = deadline.child();
+            FutureTask<int[]> part = new FutureTask<int[]>(
+                    new Callable<int[]>() {
+                        @Override
+                        public int[] call() throws SQLException {
+                            if (Thread.currentThread().isInterrupted()) {
+                                return new int[0];
+                            }
+                            return corpus.queryIdRange(query, after, last,
+                                    needed, partDeadline);
+                        }
+                    }) {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    // JDBC drivers don't stop statements on interrupt
+                    partDeadline.cancel();
+                    return super.cancel(mayInterruptIfRunning);
+                }
+            };
+            executor.execute(part);
+            parts.add(part);
+            partDeadlines.add(partDeadline);
+        }
+        IntList ids = new IntList(needed);
+        try {
+            for (int i = 0; i < parts.size(); i++) {
+                if (ids.size() >= needed) {
+                    parts.get(i).cancel(true);
+                    continue;
+                }
+                if (deadline.wasStopped()) {
+                    // later ranges would leave a gap after the cut one
+                    parts.get(i).cancel(true);
+                    continue;
+                }
+                int[] part;
+                long wait = deadline.remainingMillis();
+                if (wait == Long.MAX_VALUE) {
+                    part = parts.get(i).get();
+                } else {
+                    try {
+                        // the statements time out by themselves, give them
+                        // a moment to return what they found
+                        part = parts.get(i).get(wait + 1000,
+                                TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException te) {
+                        deadline.stopped();
+                        parts.get(i).cancel(true);
+                        continue;
+                    }
+                }
+                if (partDeadlines.get(i).wasStopped()) {
+                    deadline.stopped();
+                }
+                // if this one was cut, its ids are still the next in order
+                for (int id : part) {
+                    ids.add(id);
+                }
+            }
+        } catch (ExecutionException ee) {
+            cancelAll(parts);
+            if (ee.getCause() instanceof SQLException) {
+                throw (SQLException) ee.getCause();
+            }
+            throw new SQLException("Partition search failed", ee.getCause());
+        } catch (InterruptedException ie) {
+            cancelAll(parts);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Partition search interrupted", ie);
+        }
+        int skip = (afterSegmentId != -1) ? 0 : startRecord;
+        int from = Math.min(skip, ids.size());
+        int to = Math.min(skip + maximumRecords, ids.size());
+        int[] page = new int[to - from];
+        for (int i = from; i < to; i++) {
+            page[i - from] = ids.get(i);
+        }
+        return page;
+    }
+
+    /** Cancel partitions and their statements. */
+    private static void cancelAll(List<Future<int[]>> parts) {
+        for (Future<int[]> part : parts) {
+            part.cancel(true);
+        }
+    }
+
+    /** Stop partition threads. */
+    public void close() {
+        executor.shutdownNow();
+    }
+}
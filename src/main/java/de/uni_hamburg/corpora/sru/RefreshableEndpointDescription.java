@@ -0,0 +1,68 @@
+/**
+ * @file RefreshableEndpointDescription.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import eu.clarin.sru.server.SRUException;
+import eu.clarin.sru.server.fcs.DataView;
+import eu.clarin.sru.server.fcs.EndpointDescription;
+import eu.clarin.sru.server.fcs.Layer;
+import eu.clarin.sru.server.fcs.ResourceInfo;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Endpoint description that can be replaced while the endpoint runs.
+ * The FCS base class keeps the description it got at init, so this passes
+ * everything to the current one, which a background thread swaps when the
+ * description is rebuilt from DB.
+ * @author tpirinen
+ */
+public class RefreshableEndpointDescription implements EndpointDescription {
+
+    private volatile EndpointDescription current;
+
+    public RefreshableEndpointDescription(EndpointDescription initial) {
+        this.current = initial;
+    }
+
+    /** Replace the description, destroying the old one. */
+    public void swap(EndpointDescription replacement) {
+        EndpointDescription old = current;
+        current = replacement;
+        old.destroy();
+    }
+
+    @Override
+    public int getVersion() {
+        return current.getVersion();
+    }
+
+    @Override
+    public List<URI> getCapabilities() {
+        return current.getCapabilities();
+    }
+
+    @Override
+    public List<DataView> getSupportedDataViews() {
+        return current.getSupportedDataViews();
+    }
+
+    @Override
+    public List<Layer> getSupportedLayers() {
+        return current.getSupportedLayers();
+    }
+
+    @Override
+    public List<ResourceInfo> getResourceList(String pid)
+            throws SRUException {
+        return current.getResourceList(pid);
+    }
+
+    @Override
+    public void destroy() {
+        current.destroy();
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * @file ResultCache.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Caches result pages of repeated queries.
+ * Aggregators and the web UI send the same few queries over and over, so
+ * whole pages are kept here keyed by the normalised query, the context and
+ * the position of the page. Entries expire after a TTL and the least
+ * recently used ones are evicted when the estimated size of all pages goes
+ * over the limit. Cached pages are shared between requests and must not be
+ * modified after put().
+ * @author tpirinen
+ */
+public class ResultCache {
+
+    /** A cached page and its hit count if known. */
+    public static class Entry {
+        private final AdvancedSearchResultSet page;
+        private final HitCounter.HitCount hitCount;
+        private final long bytes;
+        private final long expires;
+
+        Entry(AdvancedSearchResultSet page, HitCounter.HitCount hitCount,
+                long bytes, long expires) {
+            this.page = page;
+            this.hitCount = hitCount;
+            this.bytes = bytes;
+            this.expires = expires;
+        }
+
+        public AdvancedSearchResultSet getPage() {
+            return page;
+        }
+
+        /** Hit count found with the page, or null. */
+        public HitCounter.HitCount getHitCount() {
+            return hitCount;
+        }
+    }
+
+    // rough sizes of objects and strings, enough for bounding the cache
+    private static final long PAGE_BYTES = 64;
+    private static final long RECORD_BYTES = 160;
+    private static final long SEGMENT_BYTES = 64;
+
+    private final long maxBytes;
+    private final int ttlSeconds;
+    private final LinkedHashMap<String, Entry> entries;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+
+    /** Create a cache of given size.
+     *  @param maxBytes upper limit for estimated size of cached pages.
+     *  @param ttlSeconds how long pages are kept.
+     */
+    public ResultCache(long maxBytes, int ttlSeconds) {
+        this.maxBytes = maxBytes;
+        this.ttlSeconds = ttlSeconds;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /** Create key of a page of query results.
+     *  @param context the x-cmd-context of the request or null.
+     *  @param version number of the snapshot version searched, so that
+     *  searches still on a swapped out version don't cache pages for the
+     *  current one.
+     */
+    public static String key(HZSKQuery query, String context, int version,
+            int startRecord, int maximumRecords, int afterSegmentId) {
+        return query.toCanonicalString() + "|ctx=" + context + "|v=" +
+            version + "|" +
+            startRecord + "+" + maximumRecords + "|after=" + afterSegmentId +
+            (query.isTimePositions() ? "|time" : "");
+    }
+
+    /** How long pages are kept. */
+    public int getTTL() {
+        return ttlSeconds;
+    }
+
+    /** Get page if cached and not yet expired. */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            bytes -= entry.bytes;
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry;
+    }
+
+    /** Cache a page.
+     *  Pages bigger than the whole cache are not cached.
+     *  @param hitCount hit count of query if known, or null.
+     */
+    public synchronized void put(String key, AdvancedSearchResultSet page,
+            HitCounter.HitCount hitCount) {
+        long pageBytes = estimateBytes(page);
+        if (pageBytes > maxBytes) {
+            return;
+        }
+        Entry entry = new Entry(page, hitCount, pageBytes,
+                System.currentTimeMillis() + ttlSeconds * 1000L);
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += pageBytes;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while ((bytes > maxBytes) && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            bytes -= evicted.bytes;
+            evictions++;
+        }
+    }
+
+    /** Forget all pages, e.g. when corpus DB is reloaded. */
+    public synchronized void invalidate() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /** Estimate heap used by the records of a page. */
+    static long estimateBytes(AdvancedSearchResultSet page) {
+        long size = PAGE_BYTES;
+        for (int i = 0; i < page.getLength(); i++) {
+            AdvancedSearchResult rec = page.getRecordAt(i);
+            size += RECORD_BYTES + segmentBytes(rec.getResultText());
+            if (rec.getResultHighlights() != null) {
+                for (AdvancedSearchResultSegment seg :
+                        rec.getResultHighlights()) {
+                    size += segmentBytes(seg);
+                }
+            }
+            for (List<AdvancedSearchResultSegment> layer :
+                    rec.getChildLayers().values()) {
+                for (AdvancedSearchResultSegment seg : layer) {
+                    size += segmentBytes(seg);
+                }
+            }
+        }
+        return size;
+    }
+
+    private static long segmentBytes(AdvancedSearchResultSegment seg) {
+        if (seg == null) {
+            return 0;
+        }
+        long size = SEGMENT_BYTES;
+        if (seg.getText() != null) {
+            size += 2L * seg.getText().length();
+        }
+        if (seg.getAnnotation() != null) {
+            size += 2L * seg.getAnnotation().length();
+        }
+        return size;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResultCache: " + entries.size() + " pages, " + bytes +
+            "/" + maxBytes + " bytes, " + hits + " hits, " + misses +
+            " misses, " + evictions + " evicted, " + expirations +
+            " expired";
+    }
+}
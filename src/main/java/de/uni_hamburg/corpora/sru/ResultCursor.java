@@ -0,0 +1,138 @@
+/**
+ * @file ResultCursor.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the records of a result page lazily while they are written out.
+ * The segment_ids of the page are known beforehand, so the record count is
+ * exact, but texts and child layers are read only a small batch at a time
+ * on a connection held by the cursor. This way only one batch of records is
+ * on the heap per request instead of the whole page. The connection is
+ * given back when the last record is read or the cursor is closed,
+ * whichever comes first. Records from a CorpusSnapshot need no connection.
+ * @author tpirinen
+ */
+public class ResultCursor {
+
+    /** Records read from DB in one go. */
+    static final int BATCH_SIZE = 16;
+
+    private final SQLCorpusConnection corpus;
+    private final HZSKQuery query;
+    private final int[] ids;
+    private final int[][] hitOffsets;
+    private Connection conn;
+    private final CorpusSnapshot snapshot;
+    private boolean closed;
+    private int fetched;
+    private AdvancedSearchResultSet batch;
+    private int batchPos;
+    private ResultCache cache;
+    private String cacheKey;
+    private HitCounter.HitCount cacheCount;
+    private AdvancedSearchResultSet read;
+
+    ResultCursor(SQLCorpusConnection corpus, Connection conn,
+            CorpusSnapshot snapshot, HZSKQuery query, int[] ids,
+            int[][] hitOffsets) {
+        this.corpus = corpus;
+        this.conn = conn;
+        this.snapshot = snapshot;
+        this.closed = (ids.length == 0);
+        this.query = query;
+        this.ids = ids;
+        this.hitOffsets = hitOffsets;
+        this.fetched = 0;
+        this.batch = null;
+        this.batchPos = 0;
+    }
+
+    /** Number of utterances on the page. */
+    public int getLength() {
+        return ids.length;
+    }
+
+    /** segment_id of the last utterance of the page or -1 if empty. */
+    public int getLastSegmentId() {
+        if (ids.length == 0) {
+            return -1;
+        }
+        return ids[ids.length - 1];
+    }
+
+    /** Put the page to cache once all of it has been read.
+     *  @param totalLength total length of the cached page.
+     *  @param hitCount hit count to cache with the page or null.
+     */
+    public void cacheAs(ResultCache cache, String key, int totalLength,
+            HitCounter.HitCount hitCount) {
+        this.cache = cache;
+        this.cacheKey = key;
+        this.cacheCount = hitCount;
+        this.read = new AdvancedSearchResultSet(ids.length);
+        this.read.setTotalLength(totalLength);
+    }
+
+    /** Read next record.
+     *  @return next record or null when all have been read.
+     */
+    public AdvancedSearchResult next() throws SQLException {
+        while ((batch == null) || (batchPos >= batch.getLength())) {
+            if ((fetched >= ids.length) && (cache != null) && !closed) {
+                cache.put(cacheKey, read, cacheCount);
+            }
+            if ((fetched >= ids.length) || closed) {
+                close();
+                return null;
+            }
+            int to = Math.min(fetched + BATCH_SIZE, ids.length);
+            int[][] offsets = null;
+            if (hitOffsets != null) {
+                offsets = Arrays.copyOfRange(hitOffsets, fetched, to);
+            }
+            if (snapshot != null) {
+                batch = corpus.readRecords(snapshot, query,
+                        Arrays.copyOfRange(ids, fetched, to), offsets);
+            } else {
+                batch = corpus.readRecords(conn, query,
+                        Arrays.copyOfRange(ids, fetched, to), offsets);
+            }
+            fetched = to;
+            batchPos = 0;
+        }
+        AdvancedSearchResult rec = batch.getRecordAt(batchPos);
+        batchPos++;
+        if (read != null) {
+            read.addRecord(rec);
+        }
+        return rec;
+    }
+
+    /** Give the connection back to the pool. Safe to call many times. */
+    public void close() {
+        batch = null;
+        read = null;
+        cache = null;
+        closed = true;
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.close();
+        } catch (SQLException sqle) {
+            Logger.getLogger(ResultCursor.class.getName())
+                .log(Level.SEVERE, "CURSOR: SQL state:" + sqle.getSQLState(),
+                        sqle);
+        } finally {
+            conn = null;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * @file ResultSetStore.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server side result sets of executed queries.
+ * Each query gets a generated result set id, and the segment_ids of all of
+ * its utterances are searched in the background after the first page. Once
+ * they are found, further pages of the query, whether asked for with the id
+ * or with the same query again, are sliced from the ids and only the
+ * records of the page are read from DB. The ids are kept as int arrays for
+ * a TTL, and a sweeper thread drops expired result sets; if the arrays get
+ * over the memory budget, the least recently used ones go first.
+ * @author tpirinen
+ */
+public class ResultSetStore {
+
+    /** A query and the segment_ids of its utterances once found. */
+    public static class StoredResultSet {
+        private final String id;
+        private final String key;
+        private final HZSKQuery query;
+        private volatile int[] ids;
+        private volatile boolean truncated;
+        private volatile long expires;
+        private boolean filling;
+
+        StoredResultSet(String id, String key, HZSKQuery query) {
+            this.id = id;
+            this.key = key;
+            this.query = query;
+            this.ids = null;
+            this.truncated = false;
+            this.filling = false;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public HZSKQuery getQuery() {
+            return query;
+        }
+
+        /** Get ascending segment_ids, or null if not found yet. */
+        public int[] getIds() {
+            return ids;
+        }
+
+        /** Whether there were more hits than the ids kept. */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /** Check whether a page can be sliced from the ids. */
+        public boolean covers(int startRecord, int maximumRecords) {
+            int[] current = ids;
+            if (current == null) {
+                return false;
+            }
+            return !truncated ||
+                ((long) startRecord + maximumRecords <= current.length);
+        }
+
+        /** Slice ids of a page. */
+        public int[] slice(int startRecord, int maximumRecords) {
+            int[] current = ids;
+            int from = Math.min(startRecord, current.length);
+            int to = (int) Math.min((long) from + maximumRecords,
+                    current.length);
+            int[] page = new int[to - from];
+            System.arraycopy(current, from, page, 0, page.length);
+            return page;
+        }
+
+        long getBytes() {
+            int[] current = ids;
+            return SET_BYTES + ((current != null) ? 4L * current.length : 0);
+        }
+    }
+
+    private static final long SET_BYTES = 256;
+    private static final int ID_BYTES = 9;
+
+    private final long maxBytes;
+    private final int ttlSeconds;
+    private final int maxIds;
+    private final LinkedHashMap<String, StoredResultSet> byId;
+    private final Map<String, StoredResultSet> byKey;
+    private final ScheduledExecutorService executor;
+    private final SecureRandom random = new SecureRandom();
+    private long bytes = 0;
+
+    /** Create a store and start its sweeper.
+     *  @param maxBytes memory budget for all id arrays.
+     *  @param ttlSeconds how long result sets are kept after last use.
+     *  @param maxIds most ids kept per result set.
+     */
+    public ResultSetStore(long maxBytes, int ttlSeconds, int maxIds) {
+        this.maxBytes = maxBytes;
+        this.ttlSeconds = ttlSeconds;
+        this.maxIds = maxIds;
+        this.byId = new LinkedHashMap<String, StoredResultSet>(16, 0.75f,
+                true);
+        this.byKey = new HashMap<String, StoredResultSet>();
+        this.executor = Executors.newScheduledThreadPool(2,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HZSK result sets");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        long sweep = Math.max(1, Math.min(ttlSeconds, 60));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, sweep, sweep, TimeUnit.SECONDS);
+    }
+
+    /** Create key of a query in a context on a snapshot version. */
+    public static String key(HZSKQuery query, String context, int version) {
+        return query.toCanonicalString() + "|ctx=" + context + "|v=" +
+            version +
+            (query.isTimePositions() ? "|time" : "");
+    }
+
+    public int getTTL() {
+        return ttlSeconds;
+    }
+
+    public int getMaxIds() {
+        return maxIds;
+    }
+
+    /** Get result set of the query, creating one if needed.
+     *  Using a result set keeps it alive for another TTL.
+     */
+    public synchronized StoredResultSet register(HZSKQuery query,
+            String context, int version) {
+        String key = key(query, context, version);
+        StoredResultSet set = byKey.get(key);
+        if (set != null) {
+            // touch for LRU order
+            byId.get(set.getId());
+        } else {
+            set = new StoredResultSet(newId(), key, query);
+            byId.put(set.getId(), set);
+            byKey.put(key, set);
+            bytes += set.getBytes();
+        }
+        set.expires = System.currentTimeMillis() + ttlSeconds * 1000L;
+        return set;
+    }
+
+    /** Get result set by id, or null if it has expired or never existed. */
+    public synchronized StoredResultSet get(String id) {
+        StoredResultSet set = byId.get(id);
+        if ((set == null) || (set.expires < System.currentTimeMillis())) {
+            return null;
+        }
+        set.expires = System.currentTimeMillis() + ttlSeconds * 1000L;
+        return set;
+    }
+
+    private String newId() {
+        String id;
+        do {
+            byte[] bits = new byte[ID_BYTES];
+            random.nextBytes(bits);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : bits) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            id = sb.toString();
+        } while (byId.containsKey(id));
+        return id;
+    }
+
+    /** Find the ids of a result set in the background, unless done already.
+     *  @param search finds ascending segment_ids, at most maxIds + 1 of
+     *      them.
+     */
+    public void fill(final StoredResultSet set, final Callable<int[]> search) {
+        synchronized (this) {
+            if (set.filling || (set.ids != null)) {
+                return;
+            }
+            set.filling = true;
+        }
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        complete(set, search.call());
+                    } catch (Exception e) {
+                        Logger.getLogger(ResultSetStore.class.getName())
+                            .log(Level.WARNING, "RESULTSET: search failed", e);
+                        synchronized (ResultSetStore.this) {
+                            set.filling = false;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            synchronized (this) {
+                set.filling = false;
+            }
+        }
+    }
+
+    /** Store found ids and evict least recently used over the budget. */
+    synchronized void complete(StoredResultSet set, int[] ids) {
+        if (byId.get(set.getId()) != set) {
+            // swept while searching
+            return;
+        }
+        bytes -= set.getBytes();
+        if (ids.length > maxIds) {
+            int[] kept = new int[maxIds];
+            System.arraycopy(ids, 0, kept, 0, maxIds);
+            set.truncated = true;
+            set.ids = kept;
+        } else {
+            set.ids = ids;
+        }
+        set.filling = false;
+        bytes += set.getBytes();
+        Iterator<StoredResultSet> eldest = byId.values().iterator();
+        while ((bytes > maxBytes) && eldest.hasNext()) {
+            StoredResultSet evicted = eldest.next();
+            if (evicted == set) {
+                continue;
+            }
+            eldest.remove();
+            byKey.remove(evicted.key);
+            bytes -= evicted.getBytes();
+        }
+        if (bytes > maxBytes) {
+            remove(set);
+        }
+    }
+
+    private void remove(StoredResultSet set) {
+        byId.remove(set.getId());
+        byKey.remove(set.key);
+        bytes -= set.getBytes();
+    }
+
+    /** Drop expired result sets. */
+    synchronized void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<StoredResultSet> sets = byId.values().iterator();
+        while (sets.hasNext()) {
+            StoredResultSet set = sets.next();
+            if (set.expires < now) {
+                sets.remove();
+                byKey.remove(set.key);
+                bytes -= set.getBytes();
+            }
+        }
+    }
+
+    /** Forget all result sets, e.g. when corpus DB is reloaded. */
+    public synchronized void invalidate() {
+        byId.clear();
+        byKey.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /** Stop the sweeper and searches. */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResultSetStore: " + byId.size() + " result sets, " + bytes +
+            "/" + maxBytes + " bytes";
+    }
+}
@@ -5,20 +5,23 @@
 package de.uni_hamburg.corpora.sru;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.List;
@@ -36,35 +39,152 @@ import java.net.URISyntaxException;
 public class SQLCorpusConnection {
 
     private final int MAX_LAYERS = 10; // don't query more layers under text
-    private final boolean USE_TLI = false; // use tli_{s,e} instead of char_{s,e}
     private final boolean USE_UTTERANCE_WORD = true; // which part of db...
-    private DataSource datasource;
+    private final DataSource datasource;
+    private volatile boolean batchSegments = true; // one parent IN (...) per page
+    private final StatementCatalog catalog = new StatementCatalog();
+    private volatile boolean useFulltext = true; // if FULLTEXT index is found
+    private volatile Boolean hasFulltext = null;
+    private volatile int highlightModes = 0; // Highlighter modes
+    // for queries positioned in time
+    private volatile TimelineCache timelines =
+        new TimelineCache(DEFAULT_TIMELINES);
 
-    private Connection conn;
+    private final TranscriptionCache transcriptions =
+        new TranscriptionCache();
+    // records and index from here instead of DB if set
+    private volatile CorpusSnapshot snapshot = null;
+
+    /** Transcriptions whose timelines are kept by default. */
+    public static final int DEFAULT_TIMELINES = 256;
+
+    /** Terms that can be searched from FULLTEXT index. */
+    private static final Pattern WHOLE_WORDS =
+        Pattern.compile("[\\p{L}\\p{N}]+( [\\p{L}\\p{N}]+)*");
+    /** innodb_ft_min_token_size, shorter words aren't in the index. */
+    private static final int FULLTEXT_MIN_TOKEN = 3;
+    /** InnoDB default stopwords, these aren't in the index either. */
+    private static final Set<String> FULLTEXT_STOPWORDS =
+        new HashSet<String>(Arrays.asList("a", "about", "an", "are", "as",
+                    "at", "be", "by", "com", "de", "en", "for", "from", "how",
+                    "i", "in", "is", "it", "la", "of", "on", "or", "that",
+                    "the", "this", "to", "was", "what", "when", "where",
+                    "who", "will", "with", "und", "www"));
 
     /** Initialise connection from context.
      *  The default context in public repo is empty user for localhost, change
      *  it when deploying.
+     *  The same object is shared by all requests of the endpoint: it holds
+     *  no connection itself, each search borrows one from the pool of the
+     *  data source and returns it before returning, or when its cursor is
+     *  closed.
      */
     public SQLCorpusConnection() {
+        this(lookupDataSource());
+    }
+
+    private static DataSource lookupDataSource() {
         try {
             Context initCtx = new InitialContext();
             Context envCtx = (Context) initCtx.lookup("java:comp/env");
-            DataSource ds = (DataSource) envCtx.lookup("jdbc/corpora");
-            datasource = ds;
+            return (DataSource) envCtx.lookup("jdbc/corpora");
         } catch (NamingException ex) {
             Logger.getLogger(SQLCorpusConnection.class.getName())
                 .log(Level.SEVERE, null, ex);
+            return null;
         }
     }
 
+    /** Initialise connection from a given data source.
+     *  Useful for tools and benchmarks that run outside of servlet container.
+     */
+    public SQLCorpusConnection(DataSource datasource) {
+        this.datasource = datasource;
+    }
+
+    /** Select whether child segments are fetched for whole page at once.
+     *  When false, each text hit will do its own segment query, which is
+     *  what older versions did.
+     */
+    public void setBatchSegments(boolean batchSegments) {
+        this.batchSegments = batchSegments;
+    }
+
+    public boolean isBatchSegments() {
+        return batchSegments;
+    }
+
+    /** Select whether whole word searches may use the FULLTEXT index.
+     *  The index is made by src/main/sql/ex_segment_fulltext.sql, and it is
+     *  only used if found in the database. Substring searches use LIKE.
+     */
+    public void setUseFulltext(boolean useFulltext) {
+        this.useFulltext = useFulltext;
+    }
+
+    /** Select how text hits are highlighted in records.
+     *  @param modes Highlighter.CASE_FOLDING and Highlighter.WORD_BOUNDARIES
+     *      or'd together, 0 highlights exact substrings.
+     */
+    public void setHighlightModes(int modes) {
+        this.highlightModes = modes;
+    }
+
+    /** Set cache of timelines used for results positioned in time. */
+    public void setTimelineCache(TimelineCache timelines) {
+        this.timelines = timelines;
+    }
+
+    public TimelineCache getTimelineCache() {
+        return timelines;
+    }
+
+    /** Read names and URLs of all transcriptions again.
+     *  Done at startup and when the corpus DB may have changed; until then
+     *  unknown transcriptions are read when first seen.
+     */
+    public void refreshTranscriptions() throws SQLException {
+        Connection refreshConn = null;
+        try {
+            refreshConn = datasource.getConnection();
+            transcriptions.refresh(refreshConn);
+        } finally {
+            if (refreshConn != null) {
+                refreshConn.close();
+            }
+        }
+    }
+
+    public TranscriptionCache getTranscriptionCache() {
+        return transcriptions;
+    }
+
+    /** Read records and build the index from a snapshot instead of DB.
+     *  Searches that the index can't answer still go to DB, and their
+     *  results that aren't in the snapshot are left out.
+     *  @param snapshot snapshot or null to use DB.
+     */
+    public void setSnapshot(CorpusSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public CorpusSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /** Get catalog of SQL by query shape, e.g. for its hit statistics. */
+    public StatementCatalog getStatementCatalog() {
+        return catalog;
+    }
+
     /** Retrieve explainable information from database. */
     public DBDescriptionResult getResourceInfos(int maximumRecords)
             throws SQLException {
         DBDescriptionResult sr = new DBDescriptionResult(maximumRecords);
-        this.conn = null;
+        // own connection, this is also called from a refresher thread
+        Connection descConn = null;
         try {
-            this.conn = datasource.getConnection();
+            descConn = datasource.getConnection();
             // XXX: this isn't ideal looping yet
             String descSQL = "SELECT name, corpus_location, " +
                 "ex_corpus.corpus_guid, " +
@@ -72,7 +192,7 @@ public class SQLCorpusConnection {
                 "corpora.ex_corpus_desc_item.value FROM ex_corpus " +
                 "INNER JOIN ex_corpus_desc_item ON " +
                 " ex_corpus_desc_item.corpus_guid = ex_corpus.corpus_guid;";
-            Statement stmt = conn.createStatement();
+            Statement stmt = descConn.createStatement();
             stmt.setFetchSize(maximumRecords);
             ResultSet rs = stmt.executeQuery(descSQL);
             int rscount = 0;
@@ -145,9 +265,8 @@ public class SQLCorpusConnection {
             Logger.getLogger(SQLCorpusConnection.class.getName())
                 .log(Level.SEVERE, null, use);
         } finally {
-            if (this.conn != null) {
-                this.conn.close();
-                this.conn = null;
+            if (descConn != null) {
+                descConn.close();
             }
         }
         return sr;
@@ -169,497 +288,1504 @@ public class SQLCorpusConnection {
     public AdvancedSearchResultSet query(HZSKQuery query,
             int startRecord, int maximumRecords)
             throws SQLException {
+        return query(query, startRecord, maximumRecords, -1);
+    }
+
+    /** Retrieve a page of advanced search results.
+     *  Text searches are paged in the database in the order of segment_id.
+     *  If afterSegmentId is given, the page starts after that utterance
+     *  instead of skipping startRecord rows, which is the keyset mode used
+     *  by paging continuations for deep pages.
+     *  @param afterSegmentId last segment_id of previous page or -1.
+     */
+    public AdvancedSearchResultSet query(HZSKQuery query,
+            int startRecord, int maximumRecords, int afterSegmentId)
+            throws SQLException {
+        return query(query, startRecord, maximumRecords, afterSegmentId,
+                Deadline.none());
+    }
+
+    /** Retrieve a page of advanced search results within a deadline.
+     *  If the deadline passes, the records found so far are returned and
+     *  the deadline is marked stopped.
+     *  @see #query(HZSKQuery, int, int, int)
+     */
+    public AdvancedSearchResultSet query(HZSKQuery query,
+            int startRecord, int maximumRecords, int afterSegmentId,
+            Deadline deadline) throws SQLException {
         AdvancedSearchResultSet sr = new
             AdvancedSearchResultSet(maximumRecords);
-        // holding on to
-        this.conn = null;
+        Connection c = null;
         PreparedStatement prepStmt = null;
         PreparedStatement segStmt = null;
-        PreparedStatement subsegStmt = null;
         ResultSet results = null;
         ResultSet segs = null;
-        ResultSet subsegs = null;
         try {
-            this.conn = datasource.getConnection();
-            if (query.hasTextSearch() &&
-                    !(query.hasPosSearch() || query.hasLemmaSearch())) {
-                // find text then all hanging segments
-                prepStmt = prepareTextQuery(query, -1);
-                prepStmt.setFetchSize(maximumRecords);
-                results = prepStmt.executeQuery();
-                int rsPos = 0;
-                // for each result of text search get child segments
-                while (results.next()) {
-                    int segment_id = results.getInt("segment_id");
-                    String searchString = results.getString("cdata");
-                    String source = results.getString("name");
-                    String pid = results.getString("file_url");
-                    String page = results.getString("avail_url");
-                    double start = 0;
-                    double end = 1;
-                    if (USE_TLI) {
-                        start = results.getDouble("start_time") * 1000;
-                        if (results.wasNull()) {
-                            start = -1;
-                        }
-                        end = results.getDouble("end_time") * 1000;
-                        if (results.wasNull()) {
-                            end = -1;
-                        }
-                    } else {
-                        start = results.getInt("char_s");
-                        end = results.getInt("char_e");
-                    }
-                    AdvancedSearchResultSegment whole = new
-                        AdvancedSearchResultSegment(searchString, start, end);
-                    List<AdvancedSearchResultSegment> highlights;
-                    if (USE_TLI) {
-                        highlights =
-                            AdvancedSearchResult.highlightSegments(whole, query);
-                    } else {
-                        highlights =
-                            AdvancedSearchResult.highlightSearch(whole, query);
-                    }
-                    // query subsegments then
-                    segStmt = prepareSegmentQuery(query, segment_id,
+            c = datasource.getConnection();
+            if (query.hasTextSearch()) {
+                // find text then all hanging segments, a batch of parents
+                // per segment query
+                boolean needsSegments = query.hasPosSearch() ||
+                    query.hasLemmaSearch();
+                if (afterSegmentId != -1) {
+                    prepStmt = prepareTextQuery(c, query, 0, afterSegmentId,
                             maximumRecords);
-                    segStmt.setFetchSize(MAX_LAYERS);
-                    segs = segStmt.executeQuery();
-                    AdvancedSearchResult rec = new
-                        AdvancedSearchResult(whole, highlights, source, pid,
-                                page, start, end);
-                    List<AdvancedSearchResultSegment> segments =
-                            new ArrayList<AdvancedSearchResultSegment>();
-                    String segtype = "";
-                    double last_e = -1;
-                    while (segs.next()) {
-                        String ann =
-                                segs.getString("ex_annotation_segment.cdata");
-                        String segtext = segs.getString("ex_segment.cdata");
-                        String newtype = segs.getString("name");
-                        double segstart = 0;
-                        double segend = 1;
-                        if (USE_TLI) {
-                            segstart = segs.getDouble("start_time") * 1000;
-                            if (segs.wasNull()) {
-                                segstart = -1;
-                            }
-                            segend = segs.getDouble("end_time") * 1000;
-                            if (segs.wasNull()) {
-                                segend = -1;
-                            }
-                        } else {
-                            segstart = segs.getInt("ex_segment.char_s");
-                            segend = segs.getInt("ex_segment.char_e");
-                        }
-                        if (segtype.equals("")) {
-                            segtype = newtype;
-                        } else if (!newtype.equals(segtype) ||
-                                (segstart < last_e)) {
-                            if (rec.getChildLayers().containsKey(segtype)) {
-                                List<AdvancedSearchResultSegment> ex_segments =
-                                    rec.getChildLayers().get(segtype);
-                                segments.addAll(ex_segments);
-                                Collections.sort(segments);
-                            }
-                            rec.addChildLayer(segtype, segments);
-                            segments = new
-                                ArrayList<AdvancedSearchResultSegment>();
-                            segtype = newtype;
-                        }
-                        segments.add(new AdvancedSearchResultSegment(ann,
-                                    segtext, segstart, segend));
-                        last_e = segend;
-                    }
-                    if (!segtype.equals("")) {
-                        if (rec.getChildLayers().containsKey(segtype)) {
-                            List<AdvancedSearchResultSegment>
-                                ex_segments = rec.getChildLayers().get(segtype);
-                            segments.addAll(ex_segments);
-                            Collections.sort(segments);
-                        }
-                        rec.addChildLayer(segtype, segments);
-                    }
-                    sr.addRecord(rec);
-                    rsPos++;
-                    if (rsPos >= maximumRecords) {
-                        break;
-                    }
-                } // while records in result
-                sr.setTotalLength(rsPos);
-            } else if (query.hasTextSearch() && (query.hasLemmaSearch() ||
-                        query.hasPosSearch())) {
-                // find text then all hanging segments
-                prepStmt = prepareTextQuery(query, -1);
+                } else {
+                    prepStmt = prepareTextQuery(c, query, startRecord, -1,
+                            maximumRecords);
+                }
                 prepStmt.setFetchSize(maximumRecords);
-                results = prepStmt.executeQuery();
+                deadline.start(prepStmt);
+                results = executeTimed(prepStmt, Metrics.TEXT_SQL);
                 int rsPos = 0;
-                // for each result of text search get child segments
-                while (results.next()) {
-                    int segment_id = results.getInt("segment_id");
-                    String searchString = results.getString("cdata");
-                    String source = results.getString("name");
-                    String pid = results.getString("file_url");
-                    String page = results.getString("avail_url");
-                    double start = 0;
-                    double end = 1;
-                    if (USE_TLI) {
-                        start = results.getDouble("start_time") * 1000;
-                        if (results.wasNull()) {
-                            start = -1;
-                        }
-                        end = results.getDouble("end_time") * 1000;
-                        if (results.wasNull()) {
-                            end = -1;
-                        }
-                    } else {
-                        start = results.getInt("char_s");
-                        end = results.getInt("char_e");
+                boolean moreResults = true;
+                while (moreResults && (rsPos < maximumRecords)) {
+                    if (deadline.isExpired()) {
+                        deadline.stopped();
+                        break;
                     }
-                    segStmt = prepareSegmentQuery(query, segment_id,
-                            maximumRecords);
-                    segStmt.setFetchSize(MAX_LAYERS);
-                    segs = segStmt.executeQuery();
-                    boolean hadSegments = false;
-                    // find text match highlights
-                    AdvancedSearchResultSegment whole = new
-                        AdvancedSearchResultSegment(searchString, start, end);
-                    List<AdvancedSearchResultSegment> highlights;
-                    if (USE_TLI) {
-                        highlights =
-                            AdvancedSearchResult.highlightSegments(whole,
-                                    query);
-                    } else {
-                        highlights =
-                            AdvancedSearchResult.highlightSearch(whole, query);
+                    int batchSize = maximumRecords - rsPos;
+                    if (!batchSegments) {
+                        batchSize = 1;
                     }
-                    // see if segments that match
-                    AdvancedSearchResult rec = new
-                        AdvancedSearchResult(whole, highlights, source, pid,
-                                page, start, end);
-                    List<AdvancedSearchResultSegment> segments =
-                        new ArrayList<AdvancedSearchResultSegment>();
-                    String segtype = "";
-                    double last_e = -1;
-                    while (segs.next()) {
-                        hadSegments = true;
-                        String ann =
-                            segs.getString("ex_annotation_segment.cdata");
-                        String segtext = segs.getString("ex_segment.cdata");
-                        String newtype = segs.getString("name");
-                        double segstart = 0;
-                        double segend = 1;
-                        if (USE_TLI) {
-                            segstart = segs.getInt("start_time");
-                            segend = segs.getInt("end_time");
-                        } else {
-                            segstart = segs.getInt("ex_segment.char_s");
-                            segend = segs.getInt("ex_segment.char_e");
+                    Map<Integer, AdvancedSearchResult> batch =
+                        new LinkedHashMap<Integer, AdvancedSearchResult>();
+                    while (batch.size() < batchSize) {
+                        if (!results.next()) {
+                            moreResults = false;
+                            break;
                         }
-                        if (segtype.equals("")) {
-                            segtype = newtype;
-                        } else if (!newtype.equals(segtype) ||
-                                (segstart < last_e)) {
-                            if (rec.getChildLayers().containsKey(segtype)) {
-                                List<AdvancedSearchResultSegment>
-                                    ex_segments =
-                                    rec.getChildLayers().get(segtype);
-                                segments.addAll(ex_segments);
-                                Collections.sort(segments);
-                            }
-                            rec.addChildLayer(segtype, segments);
-                            segments = new
-                                ArrayList<AdvancedSearchResultSegment>();
-                            segtype = newtype;
+                        AdvancedSearchResult rec =
+                            readTextRecord(c, results, query);
+                        if (rec != null) {
+                            batch.put(rec.getSegmentId(), rec);
                         }
-                        segments.add(new AdvancedSearchResultSegment(ann,
-                                    segtext, segstart, segend));
-                        last_e = segend;
                     }
-                    if (!hadSegments) {
-                        continue;
-                    }
-                    else if (!segtype.equals("")) {
-                        if (rec.getChildLayers().containsKey(segtype)) {
-                            List<AdvancedSearchResultSegment>
-                                ex_segments =
-                                rec.getChildLayers().get(segtype);
-                            segments.addAll(ex_segments);
-                            Collections.sort(segments);
-                        }
-                        rec.addChildLayer(segtype, segments);
-                    }
-                    sr.addRecord(rec);
-                    rsPos++;
-                    if (rsPos >= maximumRecords) {
+                    if (batch.isEmpty()) {
                         break;
                     }
-                } // while records in result
-                sr.setTotalLength(rsPos);
-
-            } else if (!query.hasTextSearch()) {
-                // actually this query keeps running out of memory :-/
-                // we have no main text search, start from segments up
-                segStmt = prepareSegmentQuery(query, -1, maximumRecords * 10);
-                segStmt.setFetchSize(maximumRecords);
-                segs = segStmt.executeQuery();
-                int rsPos = 0;
-                // for each result of segment search get parent layer
-                Set<String> usedIds = new HashSet<String>();
-                while (segs.next()) {
-                    int parentId = segs.getInt("parent");
-                    double matchstart = 0;
-                    double matchend = 1;
-                    if (USE_TLI) {
-                        matchstart = segs.getDouble("start_time") * 1000;
-                        if (segs.wasNull()) {
-                            matchstart = -1;
+                    segStmt = prepareSegmentQuery(c, query, batch.keySet());
+                    segStmt.setFetchSize(MAX_LAYERS * batch.size());
+                    deadline.start(segStmt);
+                    segs = executeTimed(segStmt, Metrics.SEGMENT_SQL);
+                    Set<Integer> hadSegments = addChildLayers(c, segs, batch, query);
+                    segs.close();
+                    segs = null;
+                    deadline.finished(segStmt);
+                    segStmt.close();
+                    segStmt = null;
+                    for (Map.Entry<Integer, AdvancedSearchResult> entry :
+                            batch.entrySet()) {
+                        if (needsSegments &&
+                                !hadSegments.contains(entry.getKey())) {
+                            continue;
                         }
-                        matchend = segs.getDouble("end_time") * 1000;
-                        if (segs.wasNull()) {
-                            matchend = -1;
+                        sr.addRecord(entry.getValue());
+                        rsPos++;
+                        if (rsPos >= maximumRecords) {
+                            break;
                         }
-                    } else {
-                        matchstart = segs.getInt("char_s");
-                        matchend = segs.getInt("char_e");
-                    }
-                    String ann =
-                        segs.getString("ex_annotation_segment.cdata");
-                    String segtext = segs.getString("ex_segment.cdata");
-                    String segtype = segs.getString("name");
-                    prepStmt = prepareTextQuery(parentId);
-                    prepStmt.setFetchSize(2);
-                    results = prepStmt.executeQuery();
-                    if (!results.next()) {
-                        System.out.println("DEBUG: Parentless segment");
-                        continue;
-                        // we couldn't find parent text segment :-(
-                    }
-                    int segment_id = results.getInt("segment_id");
-                    String searchString = results.getString("cdata");
-                    String source = results.getString("name");
-                    String pid = results.getString("file_url");
-                    String page = results.getString("avail_url");
-                    double start = 0;
-                    double end = 1;
-                    if (USE_TLI) {
-                        start = results.getInt("start_time");
-                        end = results.getInt("end_time");
-                    } else {
-                        start = results.getInt("char_s");
-                        end = results.getInt("char_e");
                     }
-                    if (usedIds.contains(pid)) {
-                        continue;
-                    } else {
-                        usedIds.add(pid);
-                    }
-                    AdvancedSearchResultSegment whole = new
-                        AdvancedSearchResultSegment(searchString, start, end);
-                    // find all sub-segments that match advanced search?
-                    //subsegStmt = prepareSegmentQuery(query, segment_id);
-                    //subsegs = subsegStmt.executeQuery();
-                    if (rsPos >= startRecord &&
-                            sr.getLength() < maximumRecords) {
-                        // XXX: match highlight to search terms
-                             List<AdvancedSearchResultSegment> highlights =
-                        AdvancedSearchResult.highlightSegments(whole, query);
-                        AdvancedSearchResult rec = new
-                            AdvancedSearchResult(whole, highlights,
-                                    source, pid, page, start, end);
-                        // XXX: and add segements
-                        sr.addRecord(rec);
-                    } // results less than max
-                    rsPos++;
-                } // while segs
-                sr.setTotalLength(rsPos);
+                } // while records in result
+                // at least this many, only the page was counted
+                sr.setTotalLength(startRecord + rsPos);
+            } else {
+                // no text search: distinct parents of matching annotations
+                // as a page of ids, then their utterances and segments in
+                // one query each
+                int[] ids = annotationPageIds(c, query, startRecord,
+                        afterSegmentId, maximumRecords, deadline);
+                if ((ids.length > 0) && !deadline.isExpired()) {
+                    sr = readRecords(c, query, ids, null, deadline);
+                } else if (ids.length > 0) {
+                    deadline.stopped();
+                }
+                // at least this many, only the page was counted
+                sr.setTotalLength(startRecord + sr.getLength());
             } // whether has text search
         } catch (SQLException sqle) {
-            String sqlState = sqle.getSQLState();
-            Logger.getLogger(SQLCorpusConnection.class.getName())
-                .log(Level.SEVERE, "ADV: SQL state:" + sqlState, sqle);
-            System.out.println("DEBUG: " + "ADV: SQL state:" + sqlState);
-            sqle.printStackTrace();
+            if (deadline.causedBy(sqle)) {
+                // keep what was found in time
+                deadline.stopped();
+                Logger.getLogger(SQLCorpusConnection.class.getName())
+                    .log(Level.INFO, "ADV: deadline passed after " +
+                            sr.getLength() + " records");
+            } else {
+                // a failed page must not look like a page without hits
+                Logger.getLogger(SQLCorpusConnection.class.getName())
+                    .log(Level.SEVERE, "ADV: SQL state:" +
+                            sqle.getSQLState(), sqle);
+                throw sqle;
+            }
         } finally {
-            if (this.conn != null) {
-                this.conn.close();
+            // results before their statements before the connection, which
+            // goes back to the pool for other requests
+            if (segs != null) {
+                segs.close();
             }
-            if (prepStmt != null) {
-                prepStmt.close();
+            if (segStmt != null) {
+                deadline.finished(segStmt);
+                segStmt.close();
             }
             if (results != null) {
                 results.close();
             }
-            if (segStmt != null) {
-                segStmt.close();
+            if (prepStmt != null) {
+                deadline.finished(prepStmt);
+                prepStmt.close();
+            }
+            if (c != null) {
+                c.close();
             }
+        }
+        return sr;
+    }
+
+    /** Retrieve display data of utterances found from the inverted index.
+     *  The records come in the order of the ids, with child segments like
+     *  for text search results.
+     *  @param segmentIds segment_ids of the utterances of a result page.
+     */
+    public AdvancedSearchResultSet queryByIds(HZSKQuery query,
+            int[] segmentIds) throws SQLException {
+        return queryByIds(query, segmentIds, null);
+    }
+
+    /** Retrieve display data of utterances with known hit positions.
+     *  @param hitOffsets for each id character start and end pairs of the
+     *      hits to highlight, or null to find highlights from text.
+     */
+    public AdvancedSearchResultSet queryByIds(HZSKQuery query,
+            int[] segmentIds, int[][] hitOffsets) throws SQLException {
+        return queryByIds(query, segmentIds, hitOffsets, Deadline.none());
+    }
+
+    /** Retrieve display data of utterances within a deadline.
+     *  If the deadline passes, the page is empty and the deadline is marked
+     *  stopped.
+     */
+    public AdvancedSearchResultSet queryByIds(HZSKQuery query,
+            int[] segmentIds, int[][] hitOffsets, Deadline deadline)
+            throws SQLException {
+        return queryByIds(snapshot, query, segmentIds, hitOffsets, deadline);
+    }
+
+    /** Retrieve display data of utterances from given snapshot, or from
+     *  DB if it is null, e.g. from the version of snapshot and index that
+     *  found them.
+     */
+    public AdvancedSearchResultSet queryByIds(CorpusSnapshot current,
+            HZSKQuery query, int[] segmentIds, int[][] hitOffsets)
+            throws SQLException {
+        return queryByIds(current, query, segmentIds, hitOffsets,
+                Deadline.none());
+    }
+
+    /** Retrieve display data of utterances from given snapshot or DB
+     *  within a deadline. Snapshots are read in memory, so only the DB
+     *  statements run under it.
+     */
+    public AdvancedSearchResultSet queryByIds(CorpusSnapshot current,
+            HZSKQuery query, int[] segmentIds, int[][] hitOffsets,
+            Deadline deadline) throws SQLException {
+        if (segmentIds.length == 0) {
+            return new AdvancedSearchResultSet(0);
+        }
+        if (current != null) {
+            return readRecords(current, query, segmentIds, hitOffsets);
+        }
+        Connection idsConn = null;
+        try {
+            idsConn = datasource.getConnection();
+            return readRecords(idsConn, query, segmentIds, hitOffsets,
+                    deadline);
+        } finally {
+            if (idsConn != null) {
+                idsConn.close();
+            }
+        }
+    }
+
+    /** Read records of utterances by ids on given connection.
+     *  Utterances that are no longer found are left out.
+     *  @see #queryByIds(HZSKQuery, int[], int[][])
+     */
+    AdvancedSearchResultSet readRecords(Connection c, HZSKQuery query,
+            int[] segmentIds, int[][] hitOffsets) throws SQLException {
+        return readRecords(c, query, segmentIds, hitOffsets,
+                Deadline.none());
+    }
+
+    /** Read records of utterances by ids within a deadline.
+     *  @see #queryByIds(HZSKQuery, int[], int[][], Deadline)
+     */
+    AdvancedSearchResultSet readRecords(Connection c, HZSKQuery query,
+            int[] segmentIds, int[][] hitOffsets, Deadline deadline)
+            throws SQLException {
+        CorpusSnapshot current = snapshot;
+        if (current != null) {
+            return readRecords(current, query, segmentIds, hitOffsets);
+        }
+        AdvancedSearchResultSet sr = new
+            AdvancedSearchResultSet(segmentIds.length);
+        if (segmentIds.length == 0) {
+            return sr;
+        }
+        Map<Integer, AdvancedSearchResult> batch =
+            new LinkedHashMap<Integer, AdvancedSearchResult>();
+        for (int id : segmentIds) {
+            batch.put(id, null);
+        }
+        PreparedStatement prepStmt = null;
+        PreparedStatement segStmt = null;
+        ResultSet results = null;
+        ResultSet segs = null;
+        try {
+            prepStmt = prepareTextQuery(c, batch.keySet());
+            deadline.start(prepStmt);
+            results = executeTimed(prepStmt, Metrics.TEXT_SQL);
+            while (results.next()) {
+                AdvancedSearchResult rec = readTextRecord(c, results, query);
+                if (rec != null) {
+                    batch.put(rec.getSegmentId(), rec);
+                }
+            }
+            highlightHits(batch, query, segmentIds, hitOffsets);
+            segStmt = prepareSegmentQuery(c, query, batch.keySet());
+            segStmt.setFetchSize(MAX_LAYERS * batch.size());
+            deadline.start(segStmt);
+            segs = executeTimed(segStmt, Metrics.SEGMENT_SQL);
+            addChildLayers(c, segs, batch, query);
+            for (AdvancedSearchResult rec : batch.values()) {
+                if ((rec != null) && (hitOffsets == null) &&
+                        !query.hasTextSearch() && !query.isTimePositions()) {
+                    highlightChildLayers(rec);
+                }
+                if (rec != null) {
+                    sr.addRecord(rec);
+                }
+            }
+        } catch (SQLException sqle) {
+            if (!deadline.causedBy(sqle)) {
+                throw sqle;
+            }
+            // none of the records, they would lack their segments
+            deadline.stopped();
+        } finally {
             if (segs != null) {
                 segs.close();
             }
-            if (subsegStmt != null) {
-                subsegStmt.close();
+            if (segStmt != null) {
+                deadline.finished(segStmt);
+                segStmt.close();
             }
-            if (subsegs != null) {
-                subsegs.close();
+            if (results != null) {
+                results.close();
+            }
+            if (prepStmt != null) {
+                deadline.finished(prepStmt);
+                prepStmt.close();
             }
         }
         return sr;
     }
 
-    // XXX: might need to verify and commit and stuff
-    /** Close database connections if needed. */
-    public void close() {
+    /** Read records of utterances by ids from snapshot, like from DB.
+     *  @see #readRecords(Connection, HZSKQuery, int[], int[][])
+     */
+    AdvancedSearchResultSet readRecords(CorpusSnapshot current,
+            HZSKQuery query, int[] segmentIds, int[][] hitOffsets) {
+        AdvancedSearchResultSet sr = new
+            AdvancedSearchResultSet(segmentIds.length);
+        Map<Integer, AdvancedSearchResult> batch =
+            new LinkedHashMap<Integer, AdvancedSearchResult>();
+        for (int id : segmentIds) {
+            int u = current.findUtterance(id);
+            TranscriptionCache.Transcription transcription = (u < 0) ? null :
+                current.getTranscription(u);
+            if (transcription == null) {
+                batch.put(id, null);
+                continue;
+            }
+            double start;
+            double end;
+            if (query.isTimePositions()) {
+                start = current.getMillisStart(u);
+                end = current.getMillisEnd(u);
+            } else {
+                start = current.getCharStart(u);
+                end = current.getCharEnd(u);
+            }
+            batch.put(id, createRecord(current.getText(u), start, end,
+                        transcription, id, query));
+        }
+        highlightHits(batch, query, segmentIds, hitOffsets);
+        long started = System.nanoTime();
+        int tiers = current.getTierCount();
+        LayerCollector layers = new LayerCollector();
+        for (AdvancedSearchResult rec : batch.values()) {
+            if (rec == null) {
+                continue;
+            }
+            int u = current.findUtterance(rec.getSegmentId());
+            layers.startRecord(rec);
+            // tiers are in name order like layers from DB
+            for (int t = 0; t < tiers; t++) {
+                String tier = current.getTierName(t);
+                for (int seg = current.getFirstSegment(u);
+                        seg < current.getSegmentEnd(u); seg++) {
+                    for (int a = current.getFirstAnnotation(t, seg);
+                            a < current.getAnnotationEnd(t, seg); a++) {
+                        String ann = current.getAnnotation(t, a);
+                        if (!matchesSegmentConditions(query, tier, ann)) {
+                            continue;
+                        }
+                        double segstart;
+                        double segend;
+                        if (query.isTimePositions()) {
+                            segstart = current.getSegmentMillisStart(u, seg);
+                            segend = current.getSegmentMillisEnd(u, seg);
+                        } else {
+                            segstart = current.getSegmentCharStart(seg);
+                            segend = current.getSegmentCharEnd(seg);
+                        }
+                        layers.add(tier, new AdvancedSearchResultSegment(ann,
+                                    current.getSegmentText(seg), segstart,
+                                    segend));
+                    }
+                }
+            }
+            layers.finish();
+            if ((hitOffsets == null) && !query.hasTextSearch() &&
+                    !query.isTimePositions()) {
+                highlightChildLayers(rec);
+            }
+            sr.addRecord(rec);
+        }
+        Metrics.LAYERS.recordSince(started);
+        return sr;
+    }
+
+    /** Highlight known hit positions of records. */
+    private static void highlightHits(Map<Integer, AdvancedSearchResult> batch,
+            HZSKQuery query, int[] segmentIds, int[][] hitOffsets) {
+        if ((hitOffsets == null) || query.isTimePositions()) {
+            return;
+        }
+        for (int i = 0; i < segmentIds.length; i++) {
+            AdvancedSearchResult rec = batch.get(segmentIds[i]);
+            if ((rec != null) && (hitOffsets[i] != null)) {
+                rec.setResultHighlights(
+                        AdvancedSearchResult.highlightRanges(
+                            rec.getResultText(), hitOffsets[i]));
+            }
+        }
+    }
+
+    /** Check an annotation against the conditions of segmentConditions(). */
+    private static boolean matchesSegmentConditions(HZSKQuery query,
+            String tier, String value) {
+        if (query.hasPosSearch()) {
+            if (!"pos".equals(tier)) {
+                return false;
+            }
+            for (String s : query.getPosSearches()) {
+                if (!StatementCatalog.posTags(s).contains(value)) {
+                    return false;
+                }
+            }
+        } else if (query.hasLemmaSearch()) {
+            if (!"lemma".equals(tier)) {
+                return false;
+            }
+            for (String s : query.getLemmaSearches()) {
+                if (!s.equalsIgnoreCase(value)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Open a cursor reading records of the ids lazily.
+     *  The cursor holds a pooled connection until it is read to the end or
+     *  closed.
+     *  @param hitOffsets like in queryByIds() or null.
+     */
+    public ResultCursor openCursor(HZSKQuery query, int[] segmentIds,
+            int[][] hitOffsets) throws SQLException {
+        return openCursor(snapshot, query, segmentIds, hitOffsets);
+    }
+
+    /** Open a cursor reading records from given snapshot, or from DB if it
+     *  is null.
+     */
+    public ResultCursor openCursor(CorpusSnapshot current, HZSKQuery query,
+            int[] segmentIds, int[][] hitOffsets) throws SQLException {
+        Connection cursorConn = null;
+        if ((segmentIds.length > 0) && (current == null)) {
+            cursorConn = datasource.getConnection();
+        }
+        return new ResultCursor(this, cursorConn, current, query, segmentIds,
+                hitOffsets);
+    }
+
+    /** Find segment_ids of a page of utterances matching text search.
+     *  Same page as query() would give, but without reading the texts, so
+     *  that the records can be read later with a cursor.
+     *  @param afterSegmentId last segment_id of previous page or -1.
+     *  @return ascending segment_ids.
+     */
+    public int[] queryPageIds(HZSKQuery query, int startRecord,
+            int maximumRecords, int afterSegmentId) throws SQLException {
+        return queryPageIds(query, startRecord, maximumRecords,
+                afterSegmentId, Deadline.none());
+    }
+
+    /** Find segment_ids of a page within a deadline.
+     *  If the deadline passes, the ids found so far are returned and the
+     *  deadline is marked stopped.
+     *  @see #queryPageIds(HZSKQuery, int, int, int)
+     */
+    public int[] queryPageIds(HZSKQuery query, int startRecord,
+            int maximumRecords, int afterSegmentId, Deadline deadline)
+            throws SQLException {
+        if (!query.hasTextSearch()) {
+            Connection pageConn = datasource.getConnection();
+            try {
+                return annotationPageIds(pageConn, query, startRecord,
+                        afterSegmentId, maximumRecords, deadline);
+            } finally {
+                pageConn.close();
+            }
+        }
+        int offset = (afterSegmentId != -1) ? 0 : startRecord;
+        String shape = textShape(query) + " ids page" +
+            ((afterSegmentId != -1) ? " keyset" : "") +
+            ((offset > 0) ? " offset" : "");
+        String pageSQL = catalog.lookup(shape);
+        if (pageSQL == null) {
+            pageSQL = "SELECT corpora.ex_segment.segment_id " +
+                "FROM corpora.ex_segment WHERE " + textConditions(query);
+            if (afterSegmentId != -1) {
+                pageSQL += " AND corpora.ex_segment.segment_id > ?";
+            }
+            pageSQL += " ORDER BY corpora.ex_segment.segment_id LIMIT ?";
+            if (offset > 0) {
+                pageSQL += " OFFSET ?";
+            }
+            catalog.register(shape, pageSQL);
+        }
+        Connection pageConn = null;
+        PreparedStatement pageStmt = null;
+        ResultSet ids = null;
+        IntList found = new IntList(maximumRecords);
         try {
-            if (this.conn != null) {
-                this.conn.close();
+            pageConn = datasource.getConnection();
+            pageStmt = pageConn.prepareStatement(pageSQL);
+            int qvar = bindTextConditions(pageStmt, query, 1);
+            if (afterSegmentId != -1) {
+                pageStmt.setInt(qvar, afterSegmentId);
+                qvar++;
             }
+            pageStmt.setInt(qvar, maximumRecords);
+            qvar++;
+            if (offset > 0) {
+                pageStmt.setInt(qvar, offset);
+                qvar++;
+            }
+            pageStmt.setFetchSize(maximumRecords);
+            deadline.start(pageStmt);
+            ids = executeTimed(pageStmt, Metrics.TEXT_SQL);
+            while (ids.next()) {
+                if (deadline.isExpired()) {
+                    deadline.stopped();
+                    break;
+                }
+                found.add(ids.getInt(1));
+            }
+            Metrics.ROWS_SCANNED.add(found.size());
+            return found.toArray();
         } catch (SQLException sqle) {
-            String sqlState = sqle.getSQLState();
-            Logger.getLogger(SQLCorpusConnection.class.getName())
-                .log(Level.SEVERE, "CLOSE: SQL state:" + sqlState, sqle);
+            if (!deadline.causedBy(sqle)) {
+                throw sqle;
+            }
+            deadline.stopped();
+            return found.toArray();
+        } finally {
+            if (ids != null) {
+                ids.close();
+            }
+            if (pageStmt != null) {
+                deadline.finished(pageStmt);
+                pageStmt.close();
+            }
+            if (pageConn != null) {
+                pageConn.close();
+            }
         }
     }
 
-    private PreparedStatement prepareTextQuery(int id)
+    /** Find a page of utterances having segments with matching annotations.
+     *  The matching annotations are grouped by parent in the database, so
+     *  only the ids of the page are read, however common the annotation.
+     *  @param afterId last segment_id of previous page or -1, then offset
+     *      isn't used.
+     *  @return ascending segment_ids.
+     */
+    private int[] annotationPageIds(Connection c, HZSKQuery query,
+            int offset, int afterId, int limit, Deadline deadline)
             throws SQLException {
-        String searchSQL = "SELECT " +
-            "segment_id, cdata, corpora.ex_segmented_transcription.name, " +
-            "avail_url, file_url, char_s, char_e, tli_s, tli_e, " +
-            "tli1.time AS start_time, tli2.time AS end_time " +
-            "FROM corpora.ex_segment INNER JOIN " +
-            "corpora.ex_segmented_transcription ON " +
-            "corpora.ex_segmented_transcription.transcription_guid = " +
-            "corpora.ex_segment.transcription_guid " +
-            "JOIN corpora.ex_timeline_item AS tli1 ON tli1.tli_id = tli_s " +
-            "JOIN corpora.ex_timeline_item AS tli2 ON tli2.tli_id = tli_e " +
-            "WHERE ";
-        if (USE_UTTERANCE_WORD) {
-            searchSQL += "corpora.ex_segment.name = 'HIAT:u' AND " +
-                "corpora.ex_segment.segmentation = 'SpeakerContribution_Utterance_Word'";
-        } else {
-            searchSQL += "corpora.ex_segment.name = 'sc' AND " +
-                "corpora.ex_segment.segmentation = 'SpeakerContribution_Event'";
+        if (afterId != -1) {
+            offset = 0;
         }
-        if (id != -1) {
-            searchSQL += " AND corpora.ex_segment.segment_id = ?";
+        String shape = StatementCatalog.shapeOf(query) + " parents page" +
+            ((afterId != -1) ? " keyset" : "") +
+            ((offset > 0) ? " offset" : "");
+        String pageSQL = catalog.lookup(shape);
+        if (pageSQL == null) {
+            pageSQL = "SELECT ex_segment.parent FROM " +
+                "ex_annotation_segment JOIN " +
+                "ex_segment_has_annotation ON " +
+                "ex_segment_has_annotation.annotation_id = " +
+                "ex_annotation_segment.annotation_id JOIN " +
+                "ex_segment ON ex_segment_has_annotation.segment_id = " +
+                "ex_segment.segment_id WHERE ";
+            String conditions = segmentConditions(query);
+            if (conditions.equals("")) {
+                conditions = "ex_segment.parent IS NOT NULL";
+            }
+            pageSQL += conditions;
+            if (afterId != -1) {
+                pageSQL += " AND ex_segment.parent > ?";
+            }
+            pageSQL += " GROUP BY ex_segment.parent " +
+                "ORDER BY ex_segment.parent LIMIT ?";
+            if (offset > 0) {
+                pageSQL += " OFFSET ?";
+            }
+            catalog.register(shape, pageSQL);
         }
-        PreparedStatement prepStmt = this.conn.prepareStatement(searchSQL);
-        int qvar = 1;
-        if (id != -1) {
-            prepStmt.setInt(qvar, id);
+        PreparedStatement pageStmt = null;
+        ResultSet ids = null;
+        IntList found = new IntList(limit);
+        try {
+            pageStmt = c.prepareStatement(pageSQL);
+            int qvar = bindSegmentConditions(pageStmt, query, 1);
+            if (afterId != -1) {
+                pageStmt.setInt(qvar, afterId);
+                qvar++;
+            }
+            pageStmt.setInt(qvar, limit);
             qvar++;
+            if (offset > 0) {
+                pageStmt.setInt(qvar, offset);
+                qvar++;
+            }
+            pageStmt.setFetchSize(limit);
+            deadline.start(pageStmt);
+            ids = executeTimed(pageStmt, Metrics.SEGMENT_SQL);
+            while (ids.next()) {
+                if (deadline.isExpired()) {
+                    deadline.stopped();
+                    break;
+                }
+                found.add(ids.getInt(1));
+            }
+            Metrics.ROWS_SCANNED.add(found.size());
+            return found.toArray();
+        } catch (SQLException sqle) {
+            if (!deadline.causedBy(sqle)) {
+                throw sqle;
+            }
+            deadline.stopped();
+            return found.toArray();
+        } finally {
+            if (ids != null) {
+                ids.close();
+            }
+            if (pageStmt != null) {
+                deadline.finished(pageStmt);
+                pageStmt.close();
+            }
         }
-        return prepStmt;
     }
 
-    private PreparedStatement prepareTextQuery(String search, int id)
-        throws SQLException {
-        String searchSQL = "SELECT " +
-            "segment_id, cdata, corpora.ex_segmented_transcription.name, " +
-            "avail_url, file_url, char_s, char_e, tli_s, tli_e, " +
-            "tli1.time AS start_time, tli2.time AS end_time " +
-            "FROM corpora.ex_segment INNER JOIN " +
-            "corpora.ex_segmented_transcription ON " +
-            "corpora.ex_segmented_transcription.transcription_guid = " +
-            "corpora.ex_segment.transcription_guid " +
-            "JOIN corpora.ex_timeline_item AS tli1 ON tli1.tli_id = tli_s " +
-            "JOIN corpora.ex_timeline_item AS tli2 ON tli2.tli_id = tli_e " +
-            "WHERE ";
-        if (USE_UTTERANCE_WORD) {
-            searchSQL += "corpora.ex_segment.name = 'HIAT:u' AND " +
-                "corpora.ex_segment.segmentation = 'SpeakerContribution_Utterance_Word'";
+    /** Highlight the segments of record's child layers in its text.
+     *  Without text search the layers only have the segments whose
+     *  annotations matched, so those are the hits.
+     */
+    private void highlightChildLayers(AdvancedSearchResult rec) {
+        List<AdvancedSearchResultSegment> hits =
+            new ArrayList<AdvancedSearchResultSegment>();
+        for (List<AdvancedSearchResultSegment> layer :
+                rec.getChildLayers().values()) {
+            hits.addAll(layer);
+        }
+        if (hits.isEmpty()) {
+            return;
+        }
+        Collections.sort(hits);
+        IntList ranges = new IntList(2 * hits.size());
+        int hitStart = (int) hits.get(0).getStart();
+        int hitEnd = (int) hits.get(0).getEnd();
+        for (AdvancedSearchResultSegment hit : hits) {
+            if (hit.getStart() < hitEnd) {
+                // overlapping hits, e.g. pos and lemma of same token
+                hitEnd = Math.max(hitEnd, (int) hit.getEnd());
+                continue;
+            }
+            ranges.add(hitStart);
+            ranges.add(hitEnd);
+            hitStart = (int) hit.getStart();
+            hitEnd = (int) hit.getEnd();
+        }
+        ranges.add(hitStart);
+        ranges.add(hitEnd);
+        rec.setResultHighlights(AdvancedSearchResult.highlightRanges(
+                    rec.getResultText(), ranges.toArray()));
+    }
+
+    /** Read all utterances, their tokens and lemma and pos into an index.
+     *  Tokens are the HIAT:w children of utterances. Utterances and tokens
+     *  are read in two streaming queries in the order of segment_id and
+     *  text.
+     */
+    public void buildIndex(InvertedIndex.Builder builder)
+            throws SQLException {
+        CorpusSnapshot current = snapshot;
+        if (current != null) {
+            current.buildIndex(builder);
+            return;
+        }
+        String utteranceSQL = "SELECT segment_id, cdata " +
+            "FROM corpora.ex_segment WHERE " + utteranceConditions() +
+            " ORDER BY segment_id";
+        String indexSQL = "SELECT token.parent, token.segment_id, " +
+            "token.cdata AS word, token.char_s, token.char_e, " +
+            "ex_annotation_segment.name AS layer, " +
+            "ex_annotation_segment.cdata AS value " +
+            "FROM corpora.ex_segment AS token JOIN corpora.ex_segment ON " +
+            "corpora.ex_segment.segment_id = token.parent " +
+            "LEFT JOIN ex_segment_has_annotation ON " +
+            "ex_segment_has_annotation.segment_id = token.segment_id " +
+            "LEFT JOIN ex_annotation_segment ON " +
+            "ex_annotation_segment.annotation_id = " +
+            "ex_segment_has_annotation.annotation_id " +
+            "WHERE " + utteranceConditions() + " AND " +
+            "token.name = 'HIAT:w' " +
+            "ORDER BY token.parent, token.char_s, token.segment_id";
+        Connection indexConn = null;
+        Statement indexStmt = null;
+        ResultSet utterances = null;
+        ResultSet tokens = null;
+        try {
+            indexConn = datasource.getConnection();
+            indexStmt = indexConn.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            try {
+                // Connector/J only streams rows with this fetch size
+                indexStmt.setFetchSize(Integer.MIN_VALUE);
+            } catch (SQLException sqle) {
+                indexStmt.setFetchSize(1000);
+            }
+            utterances = indexStmt.executeQuery(utteranceSQL);
+            while (utterances.next()) {
+                builder.addUtterance(utterances.getInt("segment_id"),
+                        utterances.getString("cdata"));
+            }
+            utterances.close();
+            utterances = null;
+            tokens = indexStmt.executeQuery(indexSQL);
+            int token = -1;
+            while (tokens.next()) {
+                int tokenId = tokens.getInt("segment_id");
+                if (tokenId != token) {
+                    builder.addToken(tokens.getInt("parent"),
+                            tokens.getString("word"),
+                            tokens.getInt("char_s"),
+                            tokens.getInt("char_e"));
+                    token = tokenId;
+                }
+                builder.annotate(tokens.getString("layer"),
+                        tokens.getString("value"));
+            }
+        } finally {
+            if (utterances != null) {
+                utterances.close();
+            }
+            if (tokens != null) {
+                tokens.close();
+            }
+            if (indexStmt != null) {
+                indexStmt.close();
+            }
+            if (indexConn != null) {
+                indexConn.close();
+            }
+        }
+    }
+
+    /** Read everything records and the index need into a snapshot.
+     *  Transcriptions, timelines, utterances and their child segments with
+     *  annotations are read in streaming queries, segments in the order of
+     *  parent and text like for the index.
+     */
+    public void exportSnapshot(CorpusSnapshot.Writer writer)
+            throws SQLException {
+        String transcriptionSQL = "SELECT transcription_guid, name, " +
+            "file_url, avail_url FROM corpora.ex_segmented_transcription";
+        String timelineSQL = "SELECT transcription_guid, tli_id, time " +
+            "FROM corpora.ex_timeline_item " +
+            "ORDER BY transcription_guid, tli_id";
+        String utteranceSQL = textByIdSQL(-1) + " ORDER BY segment_id";
+        String segmentSQL = "SELECT seg.parent, seg.segment_id, seg.name, " +
+            "seg.cdata, seg.char_s, seg.char_e, seg.tli_s, seg.tli_e, " +
+            "ex_annotation_segment.name AS tier, " +
+            "ex_annotation_segment.cdata AS value " +
+            "FROM corpora.ex_segment AS seg JOIN corpora.ex_segment ON " +
+            "corpora.ex_segment.segment_id = seg.parent " +
+            "LEFT JOIN ex_segment_has_annotation ON " +
+            "ex_segment_has_annotation.segment_id = seg.segment_id " +
+            "LEFT JOIN ex_annotation_segment ON " +
+            "ex_annotation_segment.annotation_id = " +
+            "ex_segment_has_annotation.annotation_id " +
+            "WHERE " + utteranceConditions() + " " +
+            "ORDER BY seg.parent, seg.char_s, seg.segment_id, " +
+            "ex_annotation_segment.annotation_id";
+        Connection exportConn = null;
+        Statement exportStmt = null;
+        ResultSet rows = null;
+        try {
+            exportConn = datasource.getConnection();
+            exportStmt = exportConn.createStatement(
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            try {
+                // Connector/J only streams rows with this fetch size
+                exportStmt.setFetchSize(Integer.MIN_VALUE);
+            } catch (SQLException sqle) {
+                exportStmt.setFetchSize(1000);
+            }
+            rows = exportStmt.executeQuery(transcriptionSQL);
+            while (rows.next()) {
+                writer.addTranscription(rows.getString(1), rows.getString(2),
+                        rows.getString(3), rows.getString(4));
+            }
+            rows.close();
+            rows = exportStmt.executeQuery(timelineSQL);
+            while (rows.next()) {
+                double time = rows.getDouble(3);
+                writer.addTimelineItem(rows.getString(1), rows.getInt(2),
+                        rows.wasNull() ? Double.NaN : time);
+            }
+            rows.close();
+            rows = exportStmt.executeQuery(utteranceSQL);
+            while (rows.next()) {
+                writer.addUtterance(rows.getInt("segment_id"),
+                        rows.getString("cdata"), rows.getInt("char_s"),
+                        rows.getInt("char_e"), rows.getInt("tli_s"),
+                        rows.getInt("tli_e"),
+                        rows.getString("transcription_guid"));
+            }
+            rows.close();
+            rows = exportStmt.executeQuery(segmentSQL);
+            int segment = -1;
+            while (rows.next()) {
+                int segmentId = rows.getInt("segment_id");
+                if (segmentId != segment) {
+                    writer.addSegment(rows.getInt("parent"),
+                            rows.getString("name"), rows.getString("cdata"),
+                            rows.getInt("char_s"), rows.getInt("char_e"),
+                            rows.getInt("tli_s"), rows.getInt("tli_e"));
+                    segment = segmentId;
+                }
+                writer.annotate(rows.getString("tier"),
+                        rows.getString("value"));
+            }
+        } finally {
+            if (rows != null) {
+                rows.close();
+            }
+            if (exportStmt != null) {
+                exportStmt.close();
+            }
+            if (exportConn != null) {
+                exportConn.close();
+            }
+        }
+    }
+
+    /** Execute a query timing it until the first rows are there. */
+    private static ResultSet executeTimed(PreparedStatement stmt,
+            Histogram latency) throws SQLException {
+        long started = System.nanoTime();
+        ResultSet rs = stmt.executeQuery();
+        latency.recordSince(started);
+        return rs;
+    }
+
+    /** Create a result record with highlights from a text query row.
+     *  @param c connection of the query, for reading timelines and
+     *      transcriptions if needed.
+     *  @return record or null if its transcription isn't in DB.
+     */
+    private AdvancedSearchResult readTextRecord(Connection c,
+            ResultSet results, HZSKQuery query) throws SQLException {
+        Metrics.ROWS_SCANNED.increment();
+        String guid = results.getString("transcription_guid");
+        TranscriptionCache.Transcription transcription =
+            transcriptions.get(c, guid);
+        if (transcription == null) {
+            return null;
+        }
+        double start = 0;
+        double end = 1;
+        if (query.isTimePositions()) {
+            start = timelines.getMillis(c, guid, results.getInt("tli_s"));
+            end = timelines.getMillis(c, guid, results.getInt("tli_e"));
         } else {
-            searchSQL += "corpora.ex_segment.name = 'sc' AND " +
-                "corpora.ex_segment.segmentation = 'SpeakerContribution_Event'";
+            start = results.getInt("char_s");
+            end = results.getInt("char_e");
         }
-        if (search != null) {
-            searchSQL += " AND corpora.ex_segment.cdata LIKE ?";
+        return createRecord(results.getString("cdata"), start, end,
+                transcription, results.getInt("segment_id"), query);
+    }
+
+    /** Create a result record of an utterance with highlights. */
+    private AdvancedSearchResult createRecord(String searchString,
+            double start, double end,
+            TranscriptionCache.Transcription transcription, int segmentId,
+            HZSKQuery query) {
+        AdvancedSearchResultSegment whole = new
+            AdvancedSearchResultSegment(searchString, start, end);
+        List<AdvancedSearchResultSegment> highlights;
+        if (query.isTimePositions() || !query.hasTextSearch()) {
+            highlights = AdvancedSearchResult.highlightSegments(whole, query);
+        } else {
+            highlights = AdvancedSearchResult.highlightSearch(whole,
+                    query.getHighlighter(highlightModes));
         }
+        AdvancedSearchResult rec = new AdvancedSearchResult(whole,
+                highlights, transcription.getSource(), transcription.getPid(),
+                transcription.getPage(), start, end);
+        rec.setSegmentId(segmentId);
+        return rec;
+    }
+
+    /** Assemble child layers of records from a batched segment query.
+     *  The segments must be ordered by parent so that each record's segments
+     *  come in one run.
+     *  @return ids of the parents that had any segments.
+     */
+    private Set<Integer> addChildLayers(Connection c, ResultSet segs,
+            Map<Integer, AdvancedSearchResult> records, HZSKQuery query)
+            throws SQLException {
+        long started = System.nanoTime();
+        int rows = 0;
+        Set<Integer> hadSegments = new HashSet<Integer>();
+        LayerCollector layers = new LayerCollector();
+        int parent = -1;
+        while (segs.next()) {
+            rows++;
+            int newparent = segs.getInt("parent");
+            if (newparent != parent) {
+                layers.finish();
+                parent = newparent;
+                layers.startRecord(records.get(parent));
+                hadSegments.add(parent);
+            }
+            String ann = segs.getString("ex_annotation_segment.cdata");
+            String segtext = segs.getString("ex_segment.cdata");
+            String newtype = segs.getString("name");
+            double segstart = 0;
+            double segend = 1;
+            if (query.isTimePositions()) {
+                String guid = segs.getString("ex_segment.transcription_guid");
+                segstart = timelines.getMillis(c, guid,
+                        segs.getInt("ex_segment.tli_s"));
+                segend = timelines.getMillis(c, guid,
+                        segs.getInt("ex_segment.tli_e"));
+            } else {
+                segstart = segs.getInt("ex_segment.char_s");
+                segend = segs.getInt("ex_segment.char_e");
+            }
+            layers.add(newtype, new AdvancedSearchResultSegment(ann, segtext,
+                        segstart, segend));
+        }
+        layers.finish();
+        Metrics.ROWS_SCANNED.add(rows);
+        Metrics.LAYERS.recordSince(started);
+        return hadSegments;
+    }
+
+    /** Collects segments into child layers of records.
+     *  Segments of a record come ordered by layer name and start; a layer
+     *  is cut where segments overlap, and the parts merged by the record.
+     */
+    private static class LayerCollector {
+        private AdvancedSearchResult rec = null;
+        private List<AdvancedSearchResultSegment> segments =
+            new ArrayList<AdvancedSearchResultSegment>();
+        private String segtype = "";
+        private double last_e = -1;
+
+        /** Start collecting layers of next record, which may be null. */
+        void startRecord(AdvancedSearchResult next) {
+            rec = next;
+            segments = new ArrayList<AdvancedSearchResultSegment>();
+            segtype = "";
+            last_e = -1;
+        }
+
+        void add(String newtype, AdvancedSearchResultSegment segment) {
+            if (segtype.equals("")) {
+                segtype = newtype;
+            } else if (!newtype.equals(segtype) ||
+                    (segment.getStart() < last_e)) {
+                addChildLayer(rec, segtype, segments);
+                segments = new ArrayList<AdvancedSearchResultSegment>();
+                segtype = newtype;
+            }
+            segments.add(segment);
+            last_e = segment.getEnd();
+        }
+
+        /** Add the last layer of the record. */
+        void finish() {
+            if ((rec != null) && !segtype.equals("")) {
+                addChildLayer(rec, segtype, segments);
+            }
+            segtype = "";
+        }
+    }
+
+    /** Add segments to a layer of record, merging with existing ones. */
+    private static void addChildLayer(AdvancedSearchResult rec,
+            String segtype, List<AdvancedSearchResultSegment> segments) {
+        if (rec == null) {
+            return;
+        }
+        rec.mergeChildLayer(segtype, segments);
+    }
+
+    /** Close database connections if needed.
+     *  Nothing is held between calls any more, connections are closed by
+     *  the searches that got them, so this is only kept for callers.
+     */
+    public void close() {
+    }
+
+    private String textByIdSQL(int id) {
+        String searchSQL = "SELECT " +
+            "segment_id, cdata, char_s, char_e, tli_s, tli_e, " +
+            "transcription_guid FROM corpora.ex_segment WHERE ";
+        searchSQL += utteranceConditions();
         if (id != -1) {
             searchSQL += " AND corpora.ex_segment.segment_id = ?";
         }
-        PreparedStatement prepStmt = this.conn.prepareStatement(searchSQL);
+        return searchSQL;
+    }
+
+    /** Query utterances by a list of segment_ids.
+     *  The id list is padded with its last id up to StatementCatalog.bucket()
+     *  size like in segment queries.
+     */
+    private PreparedStatement prepareTextQuery(Connection c,
+            Collection<Integer> ids) throws SQLException {
+        int bucket = StatementCatalog.bucket(ids.size());
+        String shape = "utterance by ids x" + bucket;
+        String searchSQL = catalog.lookup(shape);
+        if (searchSQL == null) {
+            searchSQL = textByIdSQL(-1) +
+                " AND corpora.ex_segment.segment_id IN (";
+            String delim = "";
+            for (int i = 0; i < bucket; i++) {
+                searchSQL += delim + "?";
+                delim = ", ";
+            }
+            searchSQL += ")";
+            catalog.register(shape, searchSQL);
+        }
+        PreparedStatement prepStmt = c.prepareStatement(searchSQL);
         int qvar = 1;
-        if (search != null) {
-            prepStmt.setString(qvar, "%" + search + "%"); //Search expression
+        int lastId = -1;
+        for (Integer id : ids) {
+            prepStmt.setInt(qvar, id);
+            lastId = id;
             qvar++;
         }
-        if (id != -1) {
-            prepStmt.setInt(qvar, id);
+        for (int i = ids.size(); i < bucket; i++) {
+            prepStmt.setInt(qvar, lastId);
             qvar++;
         }
         return prepStmt;
     }
 
-    private PreparedStatement prepareTextQuery(HZSKQuery query, int id)
-        throws SQLException {
-        String searchSQL = "SELECT " +
-            "segment_id, cdata, corpora.ex_segmented_transcription.name, " +
-            "avail_url, file_url, char_s, char_e, tli_s, tli_e, " +
-            "tli1.time AS start_time, tli2.time AS end_time " +
-            "FROM corpora.ex_segment INNER JOIN " +
-            "corpora.ex_segmented_transcription ON " +
+    /** Create the conditions selecting utterances from ex_segment.
+     *  Utterances of transcriptions that aren't in the DB are left out in
+     *  SQL, so that pages are never cut short after LIMIT.
+     */
+    private String utteranceConditions() {
+        String transcribed = " AND EXISTS (SELECT 1 FROM " +
+            "corpora.ex_segmented_transcription WHERE " +
             "corpora.ex_segmented_transcription.transcription_guid = " +
-            "corpora.ex_segment.transcription_guid " +
-            "JOIN corpora.ex_timeline_item AS tli1 ON tli1.tli_id = tli_s " +
-            "JOIN corpora.ex_timeline_item AS tli2 ON tli2.tli_id = tli_e " +
-            "WHERE ";
+            "corpora.ex_segment.transcription_guid)";
         if (USE_UTTERANCE_WORD) {
-            searchSQL += "corpora.ex_segment.name = 'HIAT:u' AND " +
-                "corpora.ex_segment.segmentation = 'SpeakerContribution_Utterance_Word'";
+            return "corpora.ex_segment.name = 'HIAT:u' AND " +
+                "corpora.ex_segment.segmentation = 'SpeakerContribution_Utterance_Word'" +
+                transcribed;
         } else {
-            searchSQL += "corpora.ex_segment.name = 'sc' AND " +
-                "corpora.ex_segment.segmentation = 'SpeakerContribution_Event'";
+            return "corpora.ex_segment.name = 'sc' AND " +
+                "corpora.ex_segment.segmentation = 'SpeakerContribution_Event'" +
+                transcribed;
         }
-        String delim = " AND corpora.ex_segment.cdata LIKE ?";
-        for (String s : query.getTextSearches()) {
-            searchSQL += delim;
-            if (query.getCombinator() == HZSKQuery.ComboType.WHATEVER) {
-                delim = " ";
-            } else if (query.getCombinator() == HZSKQuery.ComboType.AND) {
-                delim = " AND corpora.ex_segment.cdata LIKE ?";
-            } else if (query.getCombinator() == HZSKQuery.ComboType.OR) {
-                delim = " OR corpora.ex_segment.cdata LIKE ?";
-            } else {
-                delim = " ";
-            }
-        }
-        if (id != -1) {
-            searchSQL += " AND corpora.ex_segment.segment_id = ?";
+    }
+
+    /** Get the strings matched against utterance text.
+     *  Terms without combinator are matched as one concatenated string.
+     */
+    private List<String> textTerms(HZSKQuery query) {
+        if (query.getTextSearches().isEmpty()) {
+            return Collections.emptyList();
         }
-        PreparedStatement prepStmt = this.conn.prepareStatement(searchSQL);
-        int qvar = 1;
         if (query.getCombinator() == HZSKQuery.ComboType.WHATEVER) {
             String singleQ = "";
-            delim = "";
+            String delim = "";
             for (String s : query.getTextSearches()) {
                 singleQ += delim;
                 singleQ += s;
                 delim = " ";
             }
-            prepStmt.setString(qvar, "%" + singleQ + "%");
+            return Collections.singletonList(singleQ);
+        }
+        return query.getTextSearches();
+    }
+
+    /** Check if term can be found from FULLTEXT index instead of LIKE.
+     *  Only whole words that the index has tokens for can be used, i.e.
+     *  long enough and not stopwords; other terms are substring searches.
+     */
+    private boolean isFulltextTerm(String term) {
+        if (!useFulltext || !WHOLE_WORDS.matcher(term).matches()) {
+            return false;
+        }
+        for (String word : term.split(" ")) {
+            if ((word.length() < FULLTEXT_MIN_TOKEN) ||
+                    FULLTEXT_STOPWORDS.contains(word.toLowerCase())) {
+                return false;
+            }
+        }
+        return hasFulltextIndex();
+    }
+
+    /** Check once whether the FULLTEXT index of the migration exists. */
+    private boolean hasFulltextIndex() {
+        Boolean available = hasFulltext;
+        if (available != null) {
+            return available;
+        }
+        available = false;
+        Connection infoConn = null;
+        Statement infoStmt = null;
+        ResultSet info = null;
+        try {
+            infoConn = datasource.getConnection();
+            infoStmt = infoConn.createStatement();
+            info = infoStmt.executeQuery("SELECT COUNT(*) FROM " +
+                    "information_schema.STATISTICS WHERE " +
+                    "TABLE_SCHEMA = 'corpora' AND " +
+                    "TABLE_NAME = 'ex_segment' AND " +
+                    "COLUMN_NAME = 'cdata' AND INDEX_TYPE = 'FULLTEXT'");
+            available = info.next() && (info.getInt(1) > 0);
+        } catch (SQLException sqle) {
+            Logger.getLogger(SQLCorpusConnection.class.getName())
+                .log(Level.INFO, "No FULLTEXT index info, using LIKE", sqle);
+        } finally {
+            try {
+                if (info != null) {
+                    info.close();
+                }
+                if (infoStmt != null) {
+                    infoStmt.close();
+                }
+                if (infoConn != null) {
+                    infoConn.close();
+                }
+            } catch (SQLException sqle) {
+                Logger.getLogger(SQLCorpusConnection.class.getName())
+                    .log(Level.WARNING, null, sqle);
+            }
+        }
+        hasFulltext = available;
+        return available;
+    }
+
+    /** Check if term has to be matched with REGEXP instead of LIKE. */
+    private boolean isRegexTerm(HZSKQuery query, String term) {
+        return query.isRegexSearch() && !HZSKQuery.isLiteral(term);
+    }
+
+    /** Describe the text query shape including how each term is matched. */
+    private String textShape(HZSKQuery query) {
+        String shape = StatementCatalog.shapeOf(query) + " match ";
+        for (String term : textTerms(query)) {
+            if (isRegexTerm(query, term)) {
+                shape += "r";
+            } else {
+                shape += isFulltextTerm(term) ? "f" : "l";
+            }
+        }
+        return shape;
+    }
+
+    /** Create the conditions selecting utterances matching text search.
+     *  Annotation searches of the query are required to match some child
+     *  segment, so each matching row is a full hit.
+     */
+    private String textConditions(HZSKQuery query) {
+        String searchSQL = utteranceConditions();
+        String combinator = " AND ";
+        if (query.getCombinator() == HZSKQuery.ComboType.OR) {
+            combinator = " OR ";
+        }
+        List<String> terms = textTerms(query);
+        String delim = " AND (";
+        for (String term : terms) {
+            searchSQL += delim;
+            if (isRegexTerm(query, term)) {
+                searchSQL += "corpora.ex_segment.cdata REGEXP ?";
+            } else if (isFulltextTerm(term)) {
+                searchSQL += "MATCH (corpora.ex_segment.cdata) " +
+                    "AGAINST (? IN BOOLEAN MODE)";
+            } else {
+                searchSQL += "corpora.ex_segment.cdata LIKE ?";
+            }
+            delim = combinator;
+        }
+        if (!terms.isEmpty()) {
+            searchSQL += ")";
+        }
+        String conditions = segmentConditions(query);
+        if (!conditions.equals("")) {
+            searchSQL += " AND EXISTS (SELECT 1 FROM ex_annotation_segment " +
+                "JOIN ex_segment_has_annotation ON " +
+                "ex_segment_has_annotation.annotation_id = " +
+                "ex_annotation_segment.annotation_id " +
+                "JOIN ex_segment AS child ON " +
+                "ex_segment_has_annotation.segment_id = child.segment_id " +
+                "WHERE child.parent = corpora.ex_segment.segment_id AND " +
+                conditions + ")";
+        }
+        return searchSQL;
+    }
+
+    /** Bind the values of conditions made by textConditions().
+     *  @return next free parameter index.
+     */
+    private int bindTextConditions(PreparedStatement prepStmt,
+            HZSKQuery query, int qvar) throws SQLException {
+        for (String term : textTerms(query)) {
+            if (isRegexTerm(query, term)) {
+                prepStmt.setString(qvar, term);
+            } else if (isFulltextTerm(term)) {
+                // phrase of whole words
+                prepStmt.setString(qvar, "\"" + term + "\"");
+            } else {
+                prepStmt.setString(qvar, "%" + term + "%"); //Search expression
+            }
             qvar++;
-        } else {
-            for (String s : query.getTextSearches()) {
-                prepStmt.setString(qvar, "%" + s + "%"); //Search expression
-                qvar++;
+        }
+        return bindSegmentConditions(prepStmt, query, qvar);
+    }
+
+    /** Query a page of utterances matching the text search.
+     *  @param offset rows to skip.
+     *  @param afterId only utterances with larger segment_id or -1.
+     *  @param limit maximum rows to return.
+     */
+    private PreparedStatement prepareTextQuery(Connection c, HZSKQuery query,
+            int offset, int afterId, int limit)
+        throws SQLException {
+        String shape = textShape(query) + " page" +
+            ((afterId != -1) ? " keyset" : "") +
+            ((offset > 0) ? " offset" : "");
+        String searchSQL = catalog.lookup(shape);
+        if (searchSQL == null) {
+            searchSQL = "SELECT " +
+                "segment_id, cdata, char_s, char_e, tli_s, tli_e, " +
+                "transcription_guid FROM corpora.ex_segment WHERE " +
+                textConditions(query);
+            if (afterId != -1) {
+                searchSQL += " AND corpora.ex_segment.segment_id > ?";
             }
+            searchSQL += " ORDER BY corpora.ex_segment.segment_id LIMIT ?";
+            if (offset > 0) {
+                searchSQL += " OFFSET ?";
+            }
+            catalog.register(shape, searchSQL);
         }
-        if (id != -1) {
-            prepStmt.setInt(qvar, id);
+        PreparedStatement prepStmt = c.prepareStatement(searchSQL);
+        int qvar = bindTextConditions(prepStmt, query, 1);
+        if (afterId != -1) {
+            prepStmt.setInt(qvar, afterId);
+            qvar++;
+        }
+        prepStmt.setInt(qvar, limit);
+        qvar++;
+        if (offset > 0) {
+            prepStmt.setInt(qvar, offset);
             qvar++;
         }
         return prepStmt;
     }
 
-    private PreparedStatement prepareSegmentQuery(HZSKQuery query,
-            int parentId, int limit) throws SQLException {
-        String segSQL = "SELECT ex_annotation_segment.cdata, " +
+    /** Get smallest and largest segment_id of utterances.
+     *  @return min and max, or null if there are no utterances.
+     */
+    public int[] getUtteranceIdRange() throws SQLException {
+        Connection rangeConn = null;
+        Statement rangeStmt = null;
+        ResultSet range = null;
+        try {
+            rangeConn = datasource.getConnection();
+            rangeStmt = rangeConn.createStatement();
+            range = rangeStmt.executeQuery("SELECT MIN(segment_id), " +
+                    "MAX(segment_id) FROM corpora.ex_segment WHERE " +
+                    utteranceConditions());
+            if (!range.next()) {
+                return null;
+            }
+            int min = range.getInt(1);
+            if (range.wasNull()) {
+                return null;
+            }
+            return new int[]{min, range.getInt(2)};
+        } finally {
+            if (range != null) {
+                range.close();
+            }
+            if (rangeStmt != null) {
+                rangeStmt.close();
+            }
+            if (rangeConn != null) {
+                rangeConn.close();
+            }
+        }
+    }
+
+    /** Find segment_ids of utterances matching text search in a range.
+     *  Runs on its own connection so that ranges can be searched in
+     *  parallel.
+     *  @param afterId only utterances with larger segment_id.
+     *  @param lastId only utterances with this or smaller segment_id.
+     *  @param limit maximum ids to return.
+     *  @return ascending segment_ids.
+     */
+    public int[] queryIdRange(HZSKQuery query, int afterId, int lastId,
+            int limit) throws SQLException {
+        return queryIdRange(query, afterId, lastId, limit, Deadline.none());
+    }
+
+    /** Find segment_ids in a range within a deadline.
+     *  If the deadline passes, the ids found so far are returned and the
+     *  deadline is marked stopped.
+     *  @see #queryIdRange(HZSKQuery, int, int, int)
+     */
+    public int[] queryIdRange(HZSKQuery query, int afterId, int lastId,
+            int limit, Deadline deadline) throws SQLException {
+        String shape = textShape(query) + " ids range";
+        String rangeSQL = catalog.lookup(shape);
+        if (rangeSQL == null) {
+            rangeSQL = "SELECT corpora.ex_segment.segment_id " +
+                "FROM corpora.ex_segment WHERE " + textConditions(query) +
+                " AND corpora.ex_segment.segment_id > ?" +
+                " AND corpora.ex_segment.segment_id <= ?" +
+                " ORDER BY corpora.ex_segment.segment_id LIMIT ?";
+            catalog.register(shape, rangeSQL);
+        }
+        Connection rangeConn = null;
+        PreparedStatement rangeStmt = null;
+        ResultSet ids = null;
+        IntList found = new IntList();
+        try {
+            rangeConn = datasource.getConnection();
+            rangeStmt = rangeConn.prepareStatement(rangeSQL);
+            int qvar = bindTextConditions(rangeStmt, query, 1);
+            rangeStmt.setInt(qvar, afterId);
+            rangeStmt.setInt(qvar + 1, lastId);
+            rangeStmt.setInt(qvar + 2, limit);
+            rangeStmt.setFetchSize(limit);
+            deadline.start(rangeStmt);
+            ids = executeTimed(rangeStmt, Metrics.TEXT_SQL);
+            while (ids.next()) {
+                if (deadline.isExpired()) {
+                    deadline.stopped();
+                    break;
+                }
+                found.add(ids.getInt(1));
+            }
+            Metrics.ROWS_SCANNED.add(found.size());
+            return found.toArray();
+        } catch (SQLException sqle) {
+            if (!deadline.causedBy(sqle)) {
+                throw sqle;
+            }
+            deadline.stopped();
+            return found.toArray();
+        } finally {
+            if (ids != null) {
+                ids.close();
+            }
+            if (rangeStmt != null) {
+                deadline.finished(rangeStmt);
+                rangeStmt.close();
+            }
+            if (rangeConn != null) {
+                rangeConn.close();
+            }
+        }
+    }
+
+    /** Create SQL counting all hits of the query.
+     *  Text searches count matching utterances, annotation only searches
+     *  count distinct utterances with matching segments.
+     */
+    private String countSQL(HZSKQuery query) {
+        String shape = (query.hasTextSearch() ? textShape(query) :
+                StatementCatalog.shapeOf(query)) + " count";
+        String countSQL = catalog.lookup(shape);
+        if (countSQL == null) {
+            countSQL = createCountSQL(query);
+            catalog.register(shape, countSQL);
+        }
+        return countSQL;
+    }
+
+    private String createCountSQL(HZSKQuery query) {
+        if (query.hasTextSearch()) {
+            return "SELECT COUNT(*) FROM corpora.ex_segment WHERE " +
+                textConditions(query);
+        } else {
+            return "SELECT COUNT(DISTINCT ex_segment.parent) FROM " +
+                "ex_annotation_segment JOIN " +
+                "ex_segment_has_annotation ON " +
+                "ex_segment_has_annotation.annotation_id = " +
+                "ex_annotation_segment.annotation_id JOIN " +
+                "ex_segment ON ex_segment_has_annotation.segment_id = " +
+                "ex_segment.segment_id WHERE " + segmentConditions(query);
+        }
+    }
+
+    private int bindCountConditions(PreparedStatement countStmt,
+            HZSKQuery query) throws SQLException {
+        if (query.hasTextSearch()) {
+            return bindTextConditions(countStmt, query, 1);
+        } else {
+            return bindSegmentConditions(countStmt, query, 1);
+        }
+    }
+
+    /** Count all hits of the query exactly.
+     *  Runs on its own connection so it can be done concurrently with
+     *  fetching the page.
+     */
+    public int countHits(HZSKQuery query) throws SQLException {
+        return countHits(query, Deadline.none());
+    }
+
+    /** Count all hits of the query exactly within a deadline.
+     *  @throws SQLException also if the deadline passes.
+     */
+    public int countHits(HZSKQuery query, Deadline deadline)
+            throws SQLException {
+        Connection countConn = null;
+        PreparedStatement countStmt = null;
+        ResultSet counts = null;
+        try {
+            countConn = datasource.getConnection();
+            countStmt = countConn.prepareStatement(countSQL(query));
+            bindCountConditions(countStmt, query);
+            deadline.start(countStmt);
+            counts = countStmt.executeQuery();
+            if (counts.next()) {
+                return counts.getInt(1);
+            }
+            return 0;
+        } finally {
+            if (counts != null) {
+                counts.close();
+            }
+            if (countStmt != null) {
+                deadline.finished(countStmt);
+                countStmt.close();
+            }
+            if (countConn != null) {
+                countConn.close();
+            }
+        }
+    }
+
+    /** Estimate the number of hits from the optimiser's row statistics.
+     *  Uses MySQL EXPLAIN on the count query, i.e. rows times filtered
+     *  percentage of the driving table.
+     *  @return estimated count or -1 if database gave no estimate.
+     */
+    public int estimateHits(HZSKQuery query) throws SQLException {
+        return estimateHits(query, Deadline.none());
+    }
+
+    /** Estimate the number of hits within a deadline.
+     *  @see #estimateHits(HZSKQuery)
+     */
+    public int estimateHits(HZSKQuery query, Deadline deadline)
+            throws SQLException {
+        Connection countConn = null;
+        PreparedStatement explainStmt = null;
+        ResultSet plan = null;
+        try {
+            countConn = datasource.getConnection();
+            explainStmt = countConn.prepareStatement("EXPLAIN " +
+                    countSQL(query));
+            bindCountConditions(explainStmt, query);
+            deadline.start(explainStmt);
+            plan = explainStmt.executeQuery();
+            if (!plan.next()) {
+                return -1;
+            }
+            double rows = plan.getDouble("rows");
+            double filtered = 100;
+            try {
+                filtered = plan.getDouble("filtered");
+            } catch (SQLException sqle) {
+                // older MySQLs only have filtered in EXPLAIN EXTENDED
+            }
+            return (int) Math.round(rows * filtered / 100);
+        } catch (SQLException sqle) {
+            Logger.getLogger(SQLCorpusConnection.class.getName())
+                .log(Level.WARNING, "ESTIMATE: SQL state:" +
+                        sqle.getSQLState(), sqle);
+            return -1;
+        } finally {
+            if (plan != null) {
+                plan.close();
+            }
+            if (explainStmt != null) {
+                deadline.finished(explainStmt);
+                explainStmt.close();
+            }
+            if (countConn != null) {
+                countConn.close();
+            }
+        }
+    }
+
+    private static final String SEGMENT_SELECT_SQL =
+            "SELECT ex_annotation_segment.cdata, " +
             "ex_annotation_segment.name, ex_segment.cdata, " +
             "ex_segment.parent, " +
             "ex_segment.char_s, ex_segment.char_e, " +
             "ex_segment.tli_s, ex_segment.tli_e, " +
-            "tli1.time AS start_time, tli2.time AS end_time " +
+            "ex_segment.transcription_guid " +
             " FROM " +
             "ex_annotation_segment JOIN " +
             "ex_segment_has_annotation ON " +
@@ -667,15 +1793,19 @@ public class SQLCorpusConnection {
             "ex_annotation_segment.annotation_id JOIN " +
             "ex_segment ON ex_segment_has_annotation.segment_id = " +
             "ex_segment.segment_id " +
-            "JOIN corpora.ex_timeline_item AS tli1 ON tli1.tli_id = tli_s " +
-            "JOIN corpora.ex_timeline_item AS tli2 ON tli2.tli_id = tli_e " +
             "WHERE ";
+
+    /** Create the annotation conditions for segment queries.
+     *  @return SQL conditions, possibly empty.
+     */
+    private String segmentConditions(HZSKQuery query) {
+        String segSQL = "";
         String delim = "";
         if (query.hasPosSearch()) {
             for (String s : query.getPosSearches()) {
                 segSQL += delim;
                 segSQL += "ex_annotation_segment.name = 'pos' AND (";
-                List<String> poses = STTS2UDConverter.toSTTS(s);
+                List<String> poses = StatementCatalog.posTags(s);
                 String subdelim = "";
                 for (String pos : poses) {
                     segSQL += subdelim;
@@ -694,16 +1824,17 @@ public class SQLCorpusConnection {
                 delim = " AND ";
             }
         }
-        if (parentId != -1) {
-            segSQL += delim;
-            segSQL += " ex_segment.parent = ?";
-        }
-        segSQL += " LIMIT " + limit;
-        PreparedStatement segStmt = this.conn.prepareStatement(segSQL);
-        int qvar = 1;
+        return segSQL;
+    }
+
+    /** Bind the values of conditions made by segmentConditions().
+     *  @return next free parameter index.
+     */
+    private int bindSegmentConditions(PreparedStatement segStmt,
+            HZSKQuery query, int qvar) throws SQLException {
         if (query.hasPosSearch()) {
             for (String s : query.getPosSearches()) {
-                List<String> poses = STTS2UDConverter.toSTTS(s);
+                List<String> poses = StatementCatalog.posTags(s);
                 for (String pos : poses) {
                     segStmt.setString(qvar, pos);
                     qvar++;
@@ -716,11 +1847,51 @@ public class SQLCorpusConnection {
                 qvar++;
             }
         }
-        if (parentId != -1) {
+        return qvar;
+    }
+
+    /** Query segments for a batch of parents in one go.
+     *  Results are ordered by parent, tier and position so that the layers
+     *  of all records can be collected in one pass. The id list is padded
+     *  with its last id up to StatementCatalog.bucket() size.
+     */
+    private PreparedStatement prepareSegmentQuery(Connection c,
+            HZSKQuery query, Collection<Integer> parentIds)
+            throws SQLException {
+        int bucket = StatementCatalog.bucket(parentIds.size());
+        String shape = StatementCatalog.shapeOf(query) + " segments parent x" +
+            bucket;
+        String segSQL = catalog.lookup(shape);
+        if (segSQL == null) {
+            segSQL = SEGMENT_SELECT_SQL;
+            String conditions = segmentConditions(query);
+            if (!conditions.equals("")) {
+                segSQL += conditions + " AND ";
+            }
+            segSQL += "ex_segment.parent IN (";
+            String delim = "";
+            for (int i = 0; i < bucket; i++) {
+                segSQL += delim + "?";
+                delim = ", ";
+            }
+            // second tags of a token in a fixed order, like from snapshot
+            segSQL += ") ORDER BY ex_segment.parent, " +
+                "ex_annotation_segment.name, ex_segment.char_s, " +
+                "ex_annotation_segment.annotation_id";
+            catalog.register(shape, segSQL);
+        }
+        PreparedStatement segStmt = c.prepareStatement(segSQL);
+        int qvar = bindSegmentConditions(segStmt, query, 1);
+        int lastId = -1;
+        for (Integer parentId : parentIds) {
             segStmt.setInt(qvar, parentId);
+            lastId = parentId;
+            qvar++;
+        }
+        for (int i = parentIds.size(); i < bucket; i++) {
+            segStmt.setInt(qvar, lastId);
             qvar++;
         }
-        System.out.println("DEBUG: segq SQL: " + segSQL + " ? = " + parentId);
         return segStmt;
     }
 }
@@ -0,0 +1,181 @@
+/**
+ * @file SnapshotManager.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Versions of the corpus snapshot and index that searches are answered from.
+ * A new version is loaded and warmed in background while searches go on
+ * with the current one, and then swapped in by switching one reference.
+ * Each search holds the version it started with until its response is
+ * written, so that the hits of the index and the records of the snapshot
+ * always come from the same version. Versions are reference counted: the
+ * manager holds one reference to the current version and each search one
+ * more, and an old version is retired when the last search holding it is
+ * done. Retired versions are left to the garbage collector, which also
+ * unmaps their snapshot files.
+ * @author tpirinen
+ */
+public class SnapshotManager {
+
+    /** One version of corpus snapshot and index, either may be null. */
+    public static class Version {
+        private final int number;
+        private final CorpusSnapshot snapshot;
+        private final InvertedIndex index;
+        private final long loaded;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private SnapshotManager manager;
+
+        Version(int number, CorpusSnapshot snapshot, InvertedIndex index) {
+            this.number = number;
+            this.snapshot = snapshot;
+            this.index = index;
+            this.loaded = System.currentTimeMillis();
+        }
+
+        /** Take a reference unless the version is already retired. */
+        boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /** Give a reference back. Call exactly once per acquire(). */
+        public void release() {
+            int count = references.decrementAndGet();
+            if (count < 0) {
+                throw new IllegalStateException(this + " released too often");
+            }
+            if ((count == 0) && (manager != null)) {
+                manager.retired(this);
+            }
+        }
+
+        /** Number of the version, counting up from 1 per manager. */
+        public int getNumber() {
+            return number;
+        }
+
+        public CorpusSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        public InvertedIndex getIndex() {
+            return index;
+        }
+
+        /** Time the data of the version is from: the time the snapshot
+         *  was written, or the time the version was loaded from DB.
+         */
+        public long getCreated() {
+            return (snapshot != null) ? snapshot.getCreated() : loaded;
+        }
+
+        /** References held by the manager and searches. */
+        public int getReferences() {
+            return references.get();
+        }
+
+        @Override
+        public String toString() {
+            return "version " + number + " of " + new Date(getCreated()) +
+                ((snapshot != null) ? ", " + snapshot : "") +
+                ((index != null) ? ", " + index : "");
+        }
+    }
+
+    private final AtomicReference<Version> current =
+        new AtomicReference<Version>();
+    private final AtomicInteger versions = new AtomicInteger(0);
+    private final Set<Version> retiring =
+        Collections.synchronizedSet(new HashSet<Version>());
+    private final AtomicInteger swaps = new AtomicInteger(0);
+    private final AtomicInteger retired = new AtomicInteger(0);
+
+    /** Create next version, to be swapped in when it's ready. */
+    public Version create(CorpusSnapshot snapshot, InvertedIndex index) {
+        Version version = new Version(versions.incrementAndGet(), snapshot,
+                index);
+        version.manager = this;
+        return version;
+    }
+
+    /** Get the current version for a search, which must release() it
+     *  when done.
+     *  @return current version or null if none has been loaded.
+     */
+    public Version acquire() {
+        while (true) {
+            Version version = current.get();
+            if ((version == null) || version.retain()) {
+                return version;
+            }
+            // swapped and retired in between, the new one is there now
+        }
+    }
+
+    /** Make fresh the current version. The old one is retired when the
+     *  searches holding it are done.
+     *  @return the old version or null.
+     */
+    public Version swap(Version fresh) {
+        Version old = current.getAndSet(fresh);
+        swaps.incrementAndGet();
+        if (old != null) {
+            retiring.add(old);
+            old.release();
+        }
+        return old;
+    }
+
+    private void retired(Version version) {
+        if (retiring.remove(version)) {
+            retired.incrementAndGet();
+        }
+    }
+
+    /** Get the current version without holding it, e.g. for display.
+     *  @return current version or null.
+     */
+    public Version getCurrent() {
+        return current.get();
+    }
+
+    /** Number of old versions that searches still hold. */
+    public int getRetiring() {
+        return retiring.size();
+    }
+
+    public int getSwaps() {
+        return swaps.get();
+    }
+
+    /** Number of old versions that have been retired. */
+    public int getRetired() {
+        return retired.get();
+    }
+
+    @Override
+    public String toString() {
+        Version version = current.get();
+        return "SnapshotManager: " + ((version != null) ? version + ", " +
+                (version.getReferences() - 1) + " searches" : "no version") +
+            ", " + swaps.get() + " swaps, " + retiring.size() +
+            " retiring, " + retired.get() + " retired";
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * @file StatementCatalog.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Catalog of SQL statements keyed by the shape of the query.
+ * The SQL of a search only depends on how many terms, tags and which
+ * combinator there is, not on the values, which are all bound as
+ * parameters, including limits. The shape is a short string like
+ * "text x2 AND + pos(3 tags) page", which is used to find the SQL generated
+ * before, so that the same text goes to the driver each time and its
+ * server-side prepared statement cache (useServerPrepStmts and
+ * cachePrepStmts in context.xml) can reuse the statement parsed once per
+ * pooled connection.
+ * @author tpirinen
+ */
+public class StatementCatalog {
+
+    private final Map<String, String> sqlByShape =
+        new ConcurrentHashMap<String, String>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Get SQL for given shape.
+     *  @return the SQL registered before or null if it needs to be created.
+     */
+    public String lookup(String shape) {
+        String sql = sqlByShape.get(shape);
+        if (sql == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return sql;
+    }
+
+    /** Remember SQL created for given shape. */
+    public void register(String shape, String sql) {
+        sqlByShape.put(shape, sql);
+    }
+
+    /** Describe the shape of the search conditions of the query. */
+    public static String shapeOf(HZSKQuery query) {
+        StringBuilder shape = new StringBuilder();
+        String delim = "";
+        if (query.hasTextSearch()) {
+            if (query.getCombinator() == HZSKQuery.ComboType.WHATEVER) {
+                // concatenated into one LIKE
+                shape.append("text x1");
+            } else {
+                shape.append("text x").append(query.getTextSearches().size())
+                    .append(' ').append(query.getCombinator());
+            }
+            delim = " + ";
+        }
+        if (query.hasPosSearch()) {
+            for (String pos : query.getPosSearches()) {
+                shape.append(delim).append("pos(")
+                    .append(posTags(pos).size()).append(" tags)");
+                delim = " + ";
+            }
+        } else if (query.hasLemmaSearch()) {
+            shape.append(delim).append("lemma x")
+                .append(query.getLemmaSearches().size());
+        }
+        return shape.toString();
+    }
+
+    /** Get STTS tags matching an UD tag searched for.
+     *  Tags that are not UD are searched as they are.
+     */
+    public static List<String> posTags(String ud) {
+        List<String> tags = STTS2UDConverter.toSTTS(ud);
+        if (tags == null) {
+            return Collections.singletonList(ud);
+        }
+        return tags;
+    }
+
+    /** Round number of parameters up to a power of two.
+     *  Lists of ids are padded to these sizes so that there's only a
+     *  handful of shapes for IN (...) lists.
+     */
+    public static int bucket(int size) {
+        int bucket = 1;
+        while (bucket < size) {
+            bucket *= 2;
+        }
+        return bucket;
+    }
+
+    /** Number of lookups that found existing SQL. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Number of lookups that had to create SQL. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Number of distinct query shapes seen. */
+    public int getShapeCount() {
+        return sqlByShape.size();
+    }
+
+    @Override
+    public String toString() {
+        return "StatementCatalog: " + getShapeCount() + " shapes, " +
+            getHits() + " hits, " + getMisses() + " misses";
+    }
+}
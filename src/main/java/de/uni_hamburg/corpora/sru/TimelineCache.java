@@ -0,0 +1,186 @@
+/**
+ * @file TimelineCache.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times of timeline items by transcription, for results positioned in time.
+ * Segments only point to their start and end timeline items, and joining
+ * ex_timeline_item twice for every row of every query was the biggest cost
+ * of such results. Instead the whole timeline of a transcription is read
+ * once into sorted arrays of tli_ids and times, and the times of segments
+ * are looked up from those. The least recently used transcriptions are
+ * evicted when there are more than the limit.
+ * @author tpirinen
+ */
+public class TimelineCache {
+
+    /** Timeline of one transcription. */
+    public static class Timeline {
+        private final int[] tliIds;
+        private final double[] times;
+
+        Timeline(int[] tliIds, double[] times) {
+            this.tliIds = tliIds;
+            this.times = times;
+        }
+
+        /** Get time of timeline item in seconds, or NaN if it has none. */
+        public double getTime(int tliId) {
+            int i = Arrays.binarySearch(tliIds, tliId);
+            return (i < 0) ? Double.NaN : times[i];
+        }
+
+        public int size() {
+            return tliIds.length;
+        }
+    }
+
+    private static final String TIMELINE_SQL = "SELECT tli_id, time " +
+        "FROM corpora.ex_timeline_item WHERE transcription_guid = ? " +
+        "ORDER BY tli_id";
+
+    private final int maxTranscriptions;
+    private final LinkedHashMap<String, Timeline> timelines;
+    private long items = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long generation = 0;
+
+    /** Create a cache of given size.
+     *  @param maxTranscriptions how many timelines are kept.
+     */
+    public TimelineCache(int maxTranscriptions) {
+        this.maxTranscriptions = maxTranscriptions;
+        this.timelines = new LinkedHashMap<String, Timeline>(16, 0.75f,
+                true);
+    }
+
+    /** Get timeline of transcription, reading it on given connection if
+     *  it isn't cached.
+     */
+    public Timeline get(Connection c, String transcriptionGuid)
+            throws SQLException {
+        long readGeneration;
+        synchronized (this) {
+            Timeline timeline = timelines.get(transcriptionGuid);
+            if (timeline != null) {
+                hits++;
+                return timeline;
+            }
+            misses++;
+            readGeneration = generation;
+        }
+        // concurrent misses may both read it, that's just some waste
+        Timeline timeline = read(c, transcriptionGuid);
+        put(transcriptionGuid, timeline, readGeneration);
+        return timeline;
+    }
+
+    /** Get time in milliseconds of timeline item of transcription.
+     *  @return time or -1 if the item has no time.
+     */
+    public double getMillis(Connection c, String transcriptionGuid,
+            int tliId) throws SQLException {
+        double time = get(c, transcriptionGuid).getTime(tliId);
+        return Double.isNaN(time) ? -1 : time * 1000;
+    }
+
+    private static Timeline read(Connection c, String transcriptionGuid)
+            throws SQLException {
+        PreparedStatement tliStmt = null;
+        ResultSet tlis = null;
+        IntList ids = new IntList(256);
+        double[] times = new double[256];
+        try {
+            tliStmt = c.prepareStatement(TIMELINE_SQL);
+            tliStmt.setString(1, transcriptionGuid);
+            tliStmt.setFetchSize(1024);
+            tlis = tliStmt.executeQuery();
+            while (tlis.next()) {
+                if (ids.size() == times.length) {
+                    times = Arrays.copyOf(times, times.length * 2);
+                }
+                double time = tlis.getDouble(2);
+                times[ids.size()] = tlis.wasNull() ? Double.NaN : time;
+                ids.add(tlis.getInt(1));
+            }
+        } finally {
+            if (tlis != null) {
+                tlis.close();
+            }
+            if (tliStmt != null) {
+                tliStmt.close();
+            }
+        }
+        Metrics.ROWS_SCANNED.add(ids.size());
+        return new Timeline(ids.toArray(), Arrays.copyOf(times, ids.size()));
+    }
+
+    /** Cache timeline unless the cache was invalidated after it was read,
+     *  when it may be of the old DB.
+     */
+    private synchronized void put(String transcriptionGuid,
+            Timeline timeline, long readGeneration) {
+        if (readGeneration != generation) {
+            return;
+        }
+        Timeline old = timelines.put(transcriptionGuid, timeline);
+        if (old != null) {
+            items -= old.size();
+        }
+        items += timeline.size();
+        while (timelines.size() > maxTranscriptions) {
+            Map.Entry<String, Timeline> eldest =
+                timelines.entrySet().iterator().next();
+            timelines.remove(eldest.getKey());
+            items -= eldest.getValue().size();
+            evictions++;
+        }
+    }
+
+    /** Forget all timelines, e.g. when corpus DB is reloaded. */
+    public synchronized void invalidate() {
+        generation++;
+        timelines.clear();
+        items = 0;
+    }
+
+    public synchronized int size() {
+        return timelines.size();
+    }
+
+    /** Number of timeline items in all cached timelines. */
+    public synchronized long getItems() {
+        return items;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TimelineCache: " + timelines.size() + "/" +
+            maxTranscriptions + " transcriptions, " + items + " items, " +
+            hits + " hits, " + misses + " misses, " + evictions + " evicted";
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * @file TranscriptionCache.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Source name, PID and page of transcriptions by transcription_guid.
+ * Every utterance row used to join ex_segmented_transcription just to get
+ * the same few strings again. They are read here once for all
+ * transcriptions, and records of the same transcription share the same
+ * String instances; the URLs of a corpus are often the same too, so all
+ * strings are deduplicated. Transcriptions added to DB later are read when
+ * first seen, and refresh() reads everything again.
+ * @author tpirinen
+ */
+public class TranscriptionCache {
+
+    /** Metadata of one transcription. */
+    public static class Transcription {
+        private final String source;
+        private final String pid;
+        private final String page;
+
+        Transcription(String source, String pid, String page) {
+            this.source = source;
+            this.pid = pid;
+            this.page = page;
+        }
+
+        /** Name of the transcription. */
+        public String getSource() {
+            return source;
+        }
+
+        /** file_url of the transcription. */
+        public String getPid() {
+            return pid;
+        }
+
+        /** avail_url of the transcription. */
+        public String getPage() {
+            return page;
+        }
+    }
+
+    private static final String TRANSCRIPTIONS_SQL = "SELECT " +
+        "transcription_guid, name, file_url, avail_url " +
+        "FROM corpora.ex_segmented_transcription";
+    // guids not in DB, so that their segments don't query every time
+    private static final Transcription MISSING =
+        new Transcription(null, null, null);
+
+    private volatile Map<String, Transcription> transcriptions =
+        new ConcurrentHashMap<String, Transcription>();
+    private final Map<String, String> strings = new HashMap<String, String>();
+    private volatile long loaded = 0;
+    private long misses = 0;
+
+    /** Get metadata of transcription, reading it on given connection if
+     *  it isn't cached.
+     *  @return metadata, or null if the transcription isn't in DB.
+     */
+    public Transcription get(Connection c, String transcriptionGuid)
+            throws SQLException {
+        Transcription transcription = transcriptions.get(transcriptionGuid);
+        if (transcription == null) {
+            synchronized (this) {
+                misses++;
+            }
+            transcription = read(c, transcriptionGuid);
+        }
+        return (transcription == MISSING) ? null : transcription;
+    }
+
+    /** Read metadata of all transcriptions again, e.g. when corpus DB has
+     *  been changed. Lookups use the old ones until it's done.
+     */
+    public void refresh(Connection c) throws SQLException {
+        Map<String, Transcription> fresh =
+            new ConcurrentHashMap<String, Transcription>();
+        PreparedStatement stmt = null;
+        ResultSet rows = null;
+        try {
+            stmt = c.prepareStatement(TRANSCRIPTIONS_SQL);
+            stmt.setFetchSize(1024);
+            rows = stmt.executeQuery();
+            synchronized (this) {
+                strings.clear();
+                while (rows.next()) {
+                    fresh.put(rows.getString(1), create(rows));
+                }
+            }
+        } finally {
+            if (rows != null) {
+                rows.close();
+            }
+            if (stmt != null) {
+                stmt.close();
+            }
+        }
+        transcriptions = fresh;
+        loaded = System.currentTimeMillis();
+    }
+
+    private Transcription read(Connection c, String transcriptionGuid)
+            throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rows = null;
+        try {
+            stmt = c.prepareStatement(TRANSCRIPTIONS_SQL +
+                    " WHERE transcription_guid = ?");
+            stmt.setString(1, transcriptionGuid);
+            rows = stmt.executeQuery();
+            Transcription transcription = MISSING;
+            if (rows.next()) {
+                synchronized (this) {
+                    transcription = create(rows);
+                }
+            }
+            transcriptions.put(transcriptionGuid, transcription);
+            return transcription;
+        } finally {
+            if (rows != null) {
+                rows.close();
+            }
+            if (stmt != null) {
+                stmt.close();
+            }
+        }
+    }
+
+    /** Create metadata from a row, holding the lock of strings. */
+    private Transcription create(ResultSet row) throws SQLException {
+        return new Transcription(share(row.getString(2)),
+                share(row.getString(3)), share(row.getString(4)));
+    }
+
+    private String share(String s) {
+        if (s == null) {
+            return null;
+        }
+        String shared = strings.get(s);
+        if (shared == null) {
+            strings.put(s, s);
+            shared = s;
+        }
+        return shared;
+    }
+
+    public int size() {
+        return transcriptions.size();
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TranscriptionCache: " + transcriptions.size() +
+            " transcriptions, " + strings.size() + " strings, " + misses +
+            " misses, loaded at " + loaded;
+    }
+}
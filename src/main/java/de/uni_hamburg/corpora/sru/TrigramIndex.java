@@ -0,0 +1,303 @@
+/**
+ * @file TrigramIndex.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Trigram index over utterance texts for regex and substring searches.
+ * Each lowercased three character sequence of a text is mapped to the
+ * utterances having it. A regular expression is taken apart into literal
+ * strings that every match must contain; the utterances having all their
+ * trigrams are the candidates, and only those need to be checked with the
+ * compiled Pattern. Expressions without such literals, like ".*", get no
+ * candidates from here and have to be checked against all texts.
+ * Utterances are numbered by the InvertedIndex containing this.
+ * @author tpirinen
+ */
+public class TrigramIndex {
+
+    /** Collects trigram postings while building. */
+    public static class Builder {
+        private final Map<Long, IntList> postings =
+            new HashMap<Long, IntList>();
+
+        /** Add text of utterance, in ascending utterance numbers. */
+        public void add(int doc, String text) {
+            String folded = fold(text);
+            for (int i = 0; i + 3 <= folded.length(); i++) {
+                Long trigram = trigram(folded, i);
+                IntList docs = postings.get(trigram);
+                if (docs == null) {
+                    docs = new IntList(4);
+                    postings.put(trigram, docs);
+                }
+                if (docs.last() != doc) {
+                    docs.add(doc);
+                }
+            }
+        }
+
+        public TrigramIndex build() {
+            Map<Long, int[]> built =
+                new HashMap<Long, int[]>(postings.size() * 2);
+            for (Map.Entry<Long, IntList> entry : postings.entrySet()) {
+                built.put(entry.getKey(), entry.getValue().toArray());
+            }
+            return new TrigramIndex(built);
+        }
+    }
+
+    private static final int[] NO_DOCS = new int[0];
+
+    private final Map<Long, int[]> postings;
+
+    private TrigramIndex(Map<Long, int[]> postings) {
+        this.postings = postings;
+    }
+
+    private static String fold(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    /** Pack three chars from position i into a key. */
+    private static Long trigram(String text, int i) {
+        return ((long) text.charAt(i) << 32) |
+            ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+    }
+
+    /** Find candidate utterances for a literal substring.
+     *  @return ascending utterance numbers, or null if the string is too
+     *      short to narrow down the search.
+     */
+    public int[] candidatesForLiteral(String literal) {
+        List<String> runs = new ArrayList<String>();
+        runs.add(literal);
+        return candidates(runs);
+    }
+
+    /** Find candidate utterances for a regular expression.
+     *  @return ascending utterance numbers, or null if all utterances need
+     *      to be checked.
+     */
+    public int[] candidatesForRegex(String regex) {
+        int[] docs = NO_DOCS;
+        for (List<String> branch : requiredLiterals(regex)) {
+            int[] branchDocs = candidates(branch);
+            if (branchDocs == null) {
+                return null;
+            }
+            docs = InvertedIndex.union(docs, branchDocs);
+        }
+        return docs;
+    }
+
+    /** Intersect postings of all trigrams of all the strings.
+     *  @return candidates or null if there were no trigrams.
+     */
+    private int[] candidates(List<String> runs) {
+        int[] docs = null;
+        for (String run : runs) {
+            String folded = fold(run);
+            for (int i = 0; i + 3 <= folded.length(); i++) {
+                int[] trigramDocs = postings.get(trigram(folded, i));
+                if (trigramDocs == null) {
+                    return NO_DOCS;
+                }
+                docs = (docs == null) ? trigramDocs :
+                    InvertedIndex.intersect(docs, trigramDocs);
+                if (docs.length == 0) {
+                    return docs;
+                }
+            }
+        }
+        return docs;
+    }
+
+    /** Take apart the literal strings a regex match must contain.
+     *  This is conservative: groups, classes and escapes like \w only end
+     *  the current literal, and an optional character is dropped from it.
+     *  @return alternatives of top-level |, each a list of literals that
+     *      must all be found.
+     */
+    static List<List<String>> requiredLiterals(String regex) {
+        List<List<String>> branches = new ArrayList<List<String>>();
+        List<String> runs = new ArrayList<String>();
+        StringBuilder run = new StringBuilder();
+        boolean lastLiteral = false;
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\' && (i + 1 < regex.length())) {
+                char escaped = regex.charAt(i + 1);
+                i += 2;
+                if (escaped == 'Q') {
+                    int end = regex.indexOf("\\E", i);
+                    if (end == -1) {
+                        end = regex.length();
+                    }
+                    run.append(regex, i, end);
+                    lastLiteral = false;
+                    i = end + 2;
+                    flush(run, runs);
+                } else if (Character.isLetterOrDigit(escaped)) {
+                    // \w, \d, \b, \p{L}... or back references
+                    if ((escaped == 'p' || escaped == 'P') &&
+                            (i < regex.length()) && (regex.charAt(i) == '{')) {
+                        i = regex.indexOf('}', i) + 1;
+                        if (i == 0) {
+                            i = regex.length();
+                        }
+                    }
+                    flush(run, runs);
+                    lastLiteral = false;
+                } else {
+                    run.append(escaped);
+                    lastLiteral = true;
+                }
+                continue;
+            }
+            switch (c) {
+                case '[':
+                    i = skipClass(regex, i);
+                    flush(run, runs);
+                    lastLiteral = false;
+                    continue;
+                case '(':
+                    i = skipGroup(regex, i);
+                    flush(run, runs);
+                    lastLiteral = false;
+                    continue;
+                case '*':
+                case '?':
+                    if (lastLiteral) {
+                        run.setLength(run.length() - 1);
+                    }
+                    flush(run, runs);
+                    lastLiteral = false;
+                    break;
+                case '{':
+                    if (lastLiteral && regex.startsWith("{0", i)) {
+                        run.setLength(run.length() - 1);
+                    }
+                    flush(run, runs);
+                    lastLiteral = false;
+                    int end = regex.indexOf('}', i);
+                    i = (end == -1) ? regex.length() : end + 1;
+                    continue;
+                case '|':
+                    flush(run, runs);
+                    branches.add(runs);
+                    runs = new ArrayList<String>();
+                    lastLiteral = false;
+                    break;
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                    flush(run, runs);
+                    lastLiteral = false;
+                    break;
+                default:
+                    run.append(c);
+                    lastLiteral = true;
+                    break;
+            }
+            i++;
+        }
+        flush(run, runs);
+        branches.add(runs);
+        return branches;
+    }
+
+    private static void flush(StringBuilder run, List<String> runs) {
+        if (run.length() > 0) {
+            runs.add(run.toString());
+            run.setLength(0);
+        }
+    }
+
+    /** Get position after character class starting at i. */
+    private static int skipClass(String regex, int i) {
+        int j = i + 1;
+        if ((j < regex.length()) && (regex.charAt(j) == '^')) {
+            j++;
+        }
+        if ((j < regex.length()) && (regex.charAt(j) == ']')) {
+            j++;
+        }
+        int depth = 1;
+        while ((j < regex.length()) && (depth > 0)) {
+            char c = regex.charAt(j);
+            if (c == '\\') {
+                j++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            }
+            j++;
+        }
+        return j;
+    }
+
+    /** Get position after group starting at i. */
+    private static int skipGroup(String regex, int i) {
+        int j = i + 1;
+        int depth = 1;
+        while ((j < regex.length()) && (depth > 0)) {
+            char c = regex.charAt(j);
+            if (c == '\\') {
+                j++;
+            } else if (c == '[') {
+                j = skipClass(regex, j) - 1;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            }
+            j++;
+        }
+        return j;
+    }
+
+    /** Number of distinct trigrams. */
+    public int size() {
+        return postings.size();
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(postings.size());
+        for (Map.Entry<Long, int[]> entry : postings.entrySet()) {
+            out.writeLong(entry.getKey());
+            int[] docs = entry.getValue();
+            out.writeInt(docs.length);
+            for (int doc : docs) {
+                out.writeInt(doc);
+            }
+        }
+    }
+
+    static TrigramIndex read(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<Long, int[]> postings = new HashMap<Long, int[]>(size * 2);
+        for (int i = 0; i < size; i++) {
+            long trigram = in.readLong();
+            int[] docs = new int[in.readInt()];
+            for (int j = 0; j < docs.length; j++) {
+                docs[j] = in.readInt();
+            }
+            postings.put(trigram, docs);
+        }
+        return new TrigramIndex(postings);
+    }
+}
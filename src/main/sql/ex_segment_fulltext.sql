@@ -0,0 +1,11 @@
+-- FULLTEXT index for HZSK SRU whole word searches.
+-- SQLCorpusConnection checks information_schema for this index and uses
+-- MATCH ... AGAINST instead of LIKE '%term%' for terms that are whole words
+-- of at least innodb_ft_min_token_size (3) characters and not stopwords.
+-- Substring searches keep using LIKE.
+--
+-- Run once after importing the corpora, e.g.:
+--     mysql corpora < src/main/sql/ex_segment_fulltext.sql
+-- Building the index takes a while on large corpora.
+ALTER TABLE corpora.ex_segment
+    ADD FULLTEXT INDEX ex_segment_cdata_fulltext (cdata);
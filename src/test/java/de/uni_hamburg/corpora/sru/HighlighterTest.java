@@ -0,0 +1,81 @@
+/**
+ * @file HighlighterTest.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks highlighting of literal and regex terms in the Highlighter modes.
+ * @author tpirinen
+ */
+public class HighlighterTest {
+
+    /** Render segments with hits in brackets, and check their positions. */
+    private static String render(String text, Highlighter highlighter) {
+        AdvancedSearchResultSegment whole =
+            new AdvancedSearchResultSegment(text, 100, 100 + text.length());
+        List<AdvancedSearchResultSegment> segments =
+            highlighter.highlight(whole);
+        StringBuilder sb = new StringBuilder();
+        double position = 100;
+        for (AdvancedSearchResultSegment seg : segments) {
+            assertEquals(position, seg.getStart(), 0);
+            position = seg.getEnd();
+            if (seg.isHighlighted()) {
+                sb.append('[').append(seg.getText()).append(']');
+            } else {
+                sb.append(seg.getText());
+            }
+        }
+        assertEquals(100 + text.length(), position, 0);
+        return sb.toString();
+    }
+
+    private static HZSKQuery query(String... terms) {
+        HZSKQuery query = new HZSKQuery(terms[0]);
+        for (int i = 1; i < terms.length; i++) {
+            query.combineOr(new HZSKQuery(terms[i]));
+        }
+        return query;
+    }
+
+    @Test
+    public void literalsLeftmostLongest() {
+        Highlighter h = new Highlighter(query("he", "she", "hers"), 0);
+        assertEquals("u[she]rs [hers] a.b",
+                render("ushers hers a.b", h));
+        assertEquals("no hits", render("no hits", h));
+    }
+
+    @Test
+    public void literalsAreNotRegex() {
+        Highlighter h = new Highlighter(query("a.b"), 0);
+        assertEquals("axb [a.b]", render("axb a.b", h));
+    }
+
+    @Test
+    public void regexAndLiteralTerms() throws Exception {
+        HZSKQuery query = new HZSKQuery();
+        query.setRegexTextSearch("Ha+us");
+        query.combineOr(new HZSKQuery("Maus"));
+        Highlighter h = new Highlighter(query, 0);
+        assertEquals("[Haaus] und [Maus]", render("Haaus und Maus", h));
+    }
+
+    @Test
+    public void caseFoldingAndWords() {
+        Highlighter folding = new Highlighter(query("haus"),
+                Highlighter.CASE_FOLDING);
+        assertEquals("[Haus] [haus]tür", render("Haus haustür", folding));
+        Highlighter words = new Highlighter(query("haus"),
+                Highlighter.CASE_FOLDING | Highlighter.WORD_BOUNDARIES);
+        assertEquals("[Haus] haustür [HAUS]",
+                render("Haus haustür HAUS", words));
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * @file InvertedIndexTest.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks phrase, regex and sequence searches of the inverted index and the
+ * hit offsets of sequences.
+ * @author tpirinen
+ */
+public class InvertedIndexTest {
+
+    private static InvertedIndex index;
+
+    /** Add utterance of words, each word, lemma and STTS tag. */
+    private static void add(InvertedIndex.Builder builder, int id,
+            String... tokens) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < tokens.length; i += 3) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(tokens[i]);
+        }
+        builder.addUtterance(id, text.toString());
+    }
+
+    private static void tokens(InvertedIndex.Builder builder, int id,
+            String... tokens) {
+        int start = 0;
+        for (int i = 0; i < tokens.length; i += 3) {
+            builder.addToken(id, tokens[i], start,
+                    start + tokens[i].length());
+            builder.annotate("lemma", tokens[i + 1]);
+            builder.annotate("pos", tokens[i + 2]);
+            start += tokens[i].length() + 1;
+        }
+    }
+
+    @BeforeClass
+    public static void build() {
+        String[][] utterances = {
+            {"das", "die", "ART", "alte", "alt", "ADJA", "Haus", "Haus",
+                "NN"},
+            {"das", "die", "ART", "Haus", "Haus", "NN", "ist", "sein",
+                "VAFIN", "alt", "alt", "ADJD"},
+            {"eine", "ein", "ART", "Möglichkeit", "Möglichkeit", "NN"},
+            {"alte", "alt", "ADJA", "Haus", "Haus", "NN", "alte", "alt",
+                "ADJA", "Haus", "Haus", "NN"},
+        };
+        InvertedIndex.Builder builder = new InvertedIndex.Builder();
+        for (int u = 0; u < utterances.length; u++) {
+            add(builder, 10 * (u + 1), utterances[u]);
+        }
+        for (int u = 0; u < utterances.length; u++) {
+            tokens(builder, 10 * (u + 1), utterances[u]);
+        }
+        index = builder.build();
+    }
+
+    private static int[] ids(InvertedIndex.Hits hits) {
+        return index.getUtteranceIds(hits, 0, 10);
+    }
+
+    private static HZSKQuery sequence(HZSKQuery... items) {
+        HZSKQuery query = new HZSKQuery();
+        query.sequence = Arrays.asList(items);
+        return query;
+    }
+
+    private static HZSKQuery regex(String term) throws Exception {
+        HZSKQuery query = new HZSKQuery();
+        query.setRegexTextSearch(term);
+        return query;
+    }
+
+    @Test
+    public void phraseMatchesConsecutiveWords() {
+        assertArrayEquals(new int[] {10, 40},
+                ids(index.search(new HZSKQuery("alte Haus"))));
+        assertArrayEquals(new int[] {40},
+                ids(index.search(new HZSKQuery("Haus alte"))));
+        assertArrayEquals(new int[] {10, 20, 40},
+                ids(index.search(new HZSKQuery("haus"))));
+    }
+
+    @Test
+    public void regexMatchesTexts() throws Exception {
+        assertArrayEquals(new int[] {30},
+                ids(index.search(regex(".*keit"))));
+        assertArrayEquals(new int[] {10, 20, 40},
+                ids(index.search(regex("H.us"))));
+        assertEquals(0, index.search(regex("Haus{3}")).size());
+    }
+
+    @Test
+    public void sequenceMatchesAdjacentTokens() throws Exception {
+        HZSKQuery adjHaus = sequence(new HZSKQuery("pos", "ADJ"),
+                new HZSKQuery("Haus"));
+        assertTrue(index.canAnswer(adjHaus));
+        InvertedIndex.Hits hits = index.search(adjHaus);
+        assertArrayEquals(new int[] {10, 40}, ids(hits));
+        // both hits of the last utterance, alte Haus at 0 and 10
+        int[][] offsets = index.getHitOffsets(hits, 0, 10);
+        assertArrayEquals(new int[] {4, 13}, offsets[0]);
+        assertArrayEquals(new int[] {0, 9, 10, 19}, offsets[1]);
+        // not adjacent in the first utterance, the wrong way around in
+        // the second
+        assertArrayEquals(new int[] {20}, ids(index.search(sequence(
+                            new HZSKQuery("das"), new HZSKQuery("Haus")))));
+        assertArrayEquals(new int[] {40}, ids(index.search(sequence(
+                            new HZSKQuery("Haus"),
+                            new HZSKQuery("pos", "ADJ")))));
+        assertArrayEquals(new int[] {20}, ids(index.search(sequence(
+                            new HZSKQuery("Haus"), regex("i.t"),
+                            new HZSKQuery("lemma", "alt")))));
+    }
+
+    @Test
+    public void posAndLemmaValuesAreLiteral() throws Exception {
+        HZSKQuery broken = sequence(new HZSKQuery("pos", "("),
+                new HZSKQuery("Haus"));
+        assertTrue(index.canAnswer(broken));
+        assertEquals(0, index.search(broken).size());
+        assertEquals(0, index.search(sequence(new HZSKQuery("lemma", "a.t"),
+                        new HZSKQuery("Haus"))).size());
+        assertEquals(0, index.search(new HZSKQuery("lemma", "a.t")).size());
+    }
+
+    @Test
+    public void onlySequencesHaveOffsets() {
+        InvertedIndex.Hits hits = index.search(new HZSKQuery("Haus"));
+        for (int[] offsets : index.getHitOffsets(hits, 0, 10)) {
+            assertNull(offsets);
+        }
+    }
+}
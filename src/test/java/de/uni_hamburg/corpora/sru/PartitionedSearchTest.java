@@ -0,0 +1,166 @@
+/**
+ * @file PartitionedSearchTest.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.uni_hamburg.corpora.sru.testing.EmbeddedCorpusDB;
+import de.uni_hamburg.corpora.sru.testing.SyntheticCorpus;
+
+/**
+ * Checks that partitioned searches find the same pages as one search of
+ * SQLCorpusConnection, across partition bounds and for utterances added
+ * after the bounds were set, and also for queries without any text to
+ * search.
+ * @author tpirinen
+ */
+public class PartitionedSearchTest {
+
+    private static final int UTTERANCES = 1000;
+
+    private static EmbeddedCorpusDB db;
+    private static SyntheticCorpus synthetic;
+    private static SQLCorpusConnection corpus;
+    private static PartitionedSearch partitioned;
+
+    @BeforeClass
+    public static void generate() throws Exception {
+        db = EmbeddedCorpusDB.inMemory("partitioned");
+        synthetic = new SyntheticCorpus(7);
+        synthetic.setVocabularySize(2000);
+        Connection c = db.getConnection();
+        try {
+            synthetic.generate(c, UTTERANCES);
+        } finally {
+            c.close();
+        }
+        corpus = new SQLCorpusConnection(db.getDataSource());
+        corpus.setUseFulltext(false);
+        partitioned = new PartitionedSearch(corpus, 4);
+    }
+
+    @AfterClass
+    public static void drop() throws Exception {
+        partitioned.close();
+        db.close();
+    }
+
+    /** Query of FCS-QL sequence, flattened like HZSKQuery does. */
+    private static HZSKQuery sequence(HZSKQuery... items) {
+        HZSKQuery query = new HZSKQuery();
+        for (HZSKQuery item : items) {
+            query.combineAnd(item);
+        }
+        query.sequence = Arrays.asList(items);
+        return query;
+    }
+
+    /** Read all records of ids with a cursor, like streaming responses. */
+    private static int[] stream(HZSKQuery query, int[] ids)
+            throws Exception {
+        ResultCursor cursor = corpus.openCursor(query, ids, null);
+        try {
+            IntList read = new IntList();
+            AdvancedSearchResult rec;
+            while ((rec = cursor.next()) != null) {
+                read.add(rec.getSegmentId());
+            }
+            return read.toArray();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void pagesAreInSegmentIdOrder() throws Exception {
+        HZSKQuery ich = new HZSKQuery("ich");
+        // large enough to take hits from all partitions
+        int[] all = corpus.queryPageIds(ich, 0, UTTERANCES, -1);
+        assertTrue(all.length > 100);
+        assertTrue("sorted", isAscending(all));
+        assertArrayEquals(all, partitioned.queryIds(ich, 0, UTTERANCES, -1));
+        assertArrayEquals(corpus.queryPageIds(ich, 40, 30, -1),
+                partitioned.queryIds(ich, 40, 30, -1));
+    }
+
+    @Test
+    public void keysetContinuesAcrossPartitions() throws Exception {
+        HZSKQuery ich = new HZSKQuery("ich");
+        int[] all = corpus.queryPageIds(ich, 0, UTTERANCES, -1);
+        IntList paged = new IntList();
+        int after = -1;
+        while (true) {
+            int[] page = partitioned.queryIds(ich, paged.size(), 37, after);
+            if (page.length == 0) {
+                break;
+            }
+            for (int id : page) {
+                paged.add(id);
+            }
+            after = page[page.length - 1];
+        }
+        assertArrayEquals(all, paged.toArray());
+    }
+
+    @Test
+    public void laterUtterancesAreFound() throws Exception {
+        // bounds are set on first search
+        partitioned.queryIds(new HZSKQuery("ich"), 0, 1, -1);
+        int[] range = corpus.getUtteranceIdRange();
+        int later = range[1] + 1000;
+        Connection c = db.getConnection();
+        try {
+            Statement st = c.createStatement();
+            st.execute("INSERT INTO corpora.ex_segment VALUES (" + later +
+                    ", 'synthetic-t0', NULL, 'HIAT:u', " +
+                    "'SpeakerContribution_Utterance_Word', 'Wombatsache', " +
+                    "0, 11, 1, 2)");
+            st.close();
+        } finally {
+            c.close();
+        }
+        HZSKQuery wombat = new HZSKQuery("Wombatsache");
+        assertArrayEquals(new int[] {later},
+                partitioned.queryIds(wombat, 0, 10, -1));
+        assertArrayEquals(new int[] {later},
+                partitioned.queryIds(wombat, 0, 10, range[1]));
+    }
+
+    @Test
+    public void annotationQueriesAreNotText() throws Exception {
+        HZSKQuery nouns = new HZSKQuery("pos", "NOUN");
+        int[] ids = corpus.queryPageIds(nouns, 0, 20, -1);
+        assertEquals(20, ids.length);
+        assertArrayEquals(ids, stream(nouns, ids));
+        // no text terms to match, only the annotations
+        assertArrayEquals(ids, partitioned.queryIds(nouns, 0, 20, -1));
+        HZSKQuery adjNoun = sequence(new HZSKQuery("pos", "ADJ"),
+                new HZSKQuery("pos", "NOUN"));
+        int[] sequenceIds = corpus.queryPageIds(adjNoun, 0, 20, -1);
+        assertArrayEquals(sequenceIds, stream(adjNoun, sequenceIds));
+        assertArrayEquals(sequenceIds,
+                partitioned.queryIds(adjNoun, 0, 20, -1));
+        assertTrue("sorted", isAscending(sequenceIds));
+    }
+
+    private static boolean isAscending(int[] ids) {
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i] <= ids[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ * @file SQLCorpusConnectionConcurrencyTest.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.uni_hamburg.corpora.sru.testing.EmbeddedCorpusDB;
+
+/**
+ * Runs mixed searches from many threads against one shared
+ * SQLCorpusConnection on an embedded H2 database, checking that each search
+ * gets the same records as when run alone and that all connections and
+ * statements are closed afterwards.
+ * @author tpirinen
+ */
+public class SQLCorpusConnectionConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 20;
+    private static final int UTTERANCES = 120;
+
+    private static final String[][] SENTENCES = {
+        {"das Haus ist rot", "ART NN VAFIN ADJD"},
+        {"ein Haus und ein Baum", "ART NN KON ART NN"},
+        {"der Baum ist gross", "ART NN VAFIN ADJD"},
+        {"wir gehen nach Hause", "PPER VVFIN APPR NN"},
+        {"das ist ein kleines Haus", "PDS VAFIN ART ADJA NN"},
+        {"ja genau", "ITJ ADV"}
+    };
+
+    /** Counts connections and statements opened and not closed yet. */
+    static class LeakCounter implements InvocationHandler {
+        static final AtomicInteger openConnections = new AtomicInteger();
+        static final AtomicInteger openStatements = new AtomicInteger();
+        static final AtomicInteger connections = new AtomicInteger();
+        private final Object target;
+        private final AtomicInteger open;
+        private boolean closed = false;
+
+        LeakCounter(Object target, AtomicInteger open) {
+            this.target = target;
+            this.open = open;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            if (method.getName().equals("close") && (open != null)) {
+                synchronized (this) {
+                    if (!closed) {
+                        closed = true;
+                        open.decrementAndGet();
+                    }
+                }
+            }
+            Object rv;
+            try {
+                rv = method.invoke(target, args);
+            } catch (InvocationTargetException ite) {
+                throw ite.getCause();
+            }
+            if (rv instanceof PreparedStatement) {
+                openStatements.incrementAndGet();
+                return wrap(rv, PreparedStatement.class, openStatements);
+            } else if (rv instanceof Statement) {
+                openStatements.incrementAndGet();
+                return wrap(rv, Statement.class, openStatements);
+            } else if (rv instanceof Connection) {
+                connections.incrementAndGet();
+                openConnections.incrementAndGet();
+                return wrap(rv, Connection.class, openConnections);
+            }
+            return rv;
+        }
+
+        static Object wrap(Object target, Class<?> iface,
+                AtomicInteger open) {
+            return Proxy.newProxyInstance(iface.getClassLoader(),
+                    new Class<?>[]{iface}, new LeakCounter(target, open));
+        }
+    }
+
+    private static EmbeddedCorpusDB db;
+    private static SQLCorpusConnection corpus;
+    private static PartitionedSearch partitioned;
+
+    @BeforeClass
+    public static void createDatabase() throws Exception {
+        db = EmbeddedCorpusDB.inMemory("concurrency");
+        Connection c = db.getConnection();
+        try {
+            insertCorpus(c);
+        } finally {
+            c.close();
+        }
+        DataSource counting = (DataSource) LeakCounter.wrap(
+                db.getDataSource(), DataSource.class, null);
+        corpus = new SQLCorpusConnection(counting);
+        corpus.setUseFulltext(false);
+        partitioned = new PartitionedSearch(corpus, 3);
+    }
+
+    @AfterClass
+    public static void dropDatabase() throws Exception {
+        partitioned.close();
+        db.close();
+    }
+
+    private static void insertCorpus(Connection c) throws Exception {
+        Statement st = c.createStatement();
+        st.execute("INSERT INTO ex_segmented_transcription VALUES " +
+                "('t1', 'c1', 'Test one', 'http://avail/1', 'http://file/1')," +
+                "('t2', 'c1', 'Test two', 'http://avail/2', 'http://file/2')");
+        st.execute("INSERT INTO ex_timeline_item VALUES (1, 't1', 0.0), " +
+                "(2, 't1', 1.5), (3, 't2', 0.0), (4, 't2', 2.5)");
+        st.close();
+        PreparedStatement seg = c.prepareStatement("INSERT INTO ex_segment " +
+                "VALUES (?, ?, ?, ?, 'SpeakerContribution_Utterance_Word', " +
+                "?, ?, ?, ?, ?)");
+        PreparedStatement ann = c.prepareStatement(
+                "INSERT INTO ex_annotation_segment VALUES (?, ?, ?)");
+        PreparedStatement has = c.prepareStatement(
+                "INSERT INTO ex_segment_has_annotation VALUES (?, ?)");
+        int segmentId = UTTERANCES;
+        int annotationId = 0;
+        for (int u = 1; u <= UTTERANCES; u++) {
+            String[] sentence = SENTENCES[u % SENTENCES.length];
+            String transcription = (u % 2 == 0) ? "t1" : "t2";
+            int tli = (u % 2 == 0) ? 1 : 3;
+            int offset = u * 100;
+            setSegment(seg, u, transcription, -1, "HIAT:u", sentence[0],
+                    offset, tli);
+            String[] words = sentence[0].split(" ");
+            String[] tags = sentence[1].split(" ");
+            for (int w = 0; w < words.length; w++) {
+                segmentId++;
+                setSegment(seg, segmentId, transcription, u, "HIAT:w",
+                        words[w], offset, tli);
+                offset += words[w].length() + 1;
+                String[][] annotations = {{"pos", tags[w]},
+                    {"lemma", words[w].toLowerCase()}};
+                for (String[] a : annotations) {
+                    annotationId++;
+                    ann.setInt(1, annotationId);
+                    ann.setString(2, a[0]);
+                    ann.setString(3, a[1]);
+                    ann.execute();
+                    has.setInt(1, segmentId);
+                    has.setInt(2, annotationId);
+                    has.execute();
+                }
+            }
+        }
+        seg.close();
+        ann.close();
+        has.close();
+    }
+
+    private static void setSegment(PreparedStatement seg, int id,
+            String transcription, int parent, String name, String text,
+            int start, int tli) throws Exception {
+        seg.setInt(1, id);
+        seg.setString(2, transcription);
+        if (parent == -1) {
+            seg.setNull(3, java.sql.Types.INTEGER);
+        } else {
+            seg.setInt(3, parent);
+        }
+        seg.setString(4, name);
+        seg.setString(5, text);
+        seg.setInt(6, start);
+        seg.setInt(7, start + text.length());
+        seg.setInt(8, tli);
+        seg.setInt(9, tli + 1);
+        seg.execute();
+    }
+
+    private static HZSKQuery and(HZSKQuery lhs, HZSKQuery rhs) {
+        lhs.combineAnd(rhs);
+        return lhs;
+    }
+
+    /** Searches that go through different code paths of the connection. */
+    private static List<Callable<String>> searches() {
+        List<Callable<String>> searches = new ArrayList<Callable<String>>();
+        searches.add(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return describe(corpus.query(new HZSKQuery("Haus"), 0, 10));
+            }
+        });
+        searches.add(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return describe(corpus.query(new HZSKQuery("Baum"), 5, 7,
+                            40));
+            }
+        });
+        searches.add(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return describe(corpus.query(and(new HZSKQuery("ist"),
+                                new HZSKQuery("pos", "ADJ")), 3, 10));
+            }
+        });
+        searches.add(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return describe(corpus.query(new HZSKQuery("pos", "ADJ"),
+                            0, 5));
+            }
+        });
+        searches.add(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return describe(corpus.queryByIds(new HZSKQuery("Haus"),
+                            new int[]{61, 5, 17, 2}));
+            }
+        });
+        searches.add(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                HZSKQuery query = new HZSKQuery("ein");
+                int[] ids = corpus.queryPageIds(query, 4, 8, -1);
+                ResultCursor cursor = corpus.openCursor(query, ids, null);
+                StringBuilder sb = new StringBuilder();
+                try {
+                    AdvancedSearchResult rec;
+                    while ((rec = cursor.next()) != null) {
+                        describe(rec, sb);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return sb.toString();
+            }
+        });
+        searches.add(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return corpus.countHits(new HZSKQuery("Haus")) + " " +
+                    corpus.countHits(new HZSKQuery("pos", "NOUN"));
+            }
+        });
+        searches.add(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return describe(partitioned.query(new HZSKQuery("genau"), 2,
+                            6, -1));
+            }
+        });
+        return searches;
+    }
+
+    private static String describe(AdvancedSearchResultSet results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(results.getTotalLength()).append(':');
+        for (int i = 0; i < results.getLength(); i++) {
+            describe(results.getRecordAt(i), sb);
+        }
+        return sb.toString();
+    }
+
+    private static void describe(AdvancedSearchResult rec, StringBuilder sb) {
+        sb.append(' ').append(rec.getSegmentId()).append('=')
+            .append(rec.getResultText().getText()).append('@')
+            .append(rec.getPID());
+        for (String layer : rec.getChildLayers().keySet()) {
+            sb.append(' ').append(layer).append('x')
+                .append(rec.getChildLayers().get(layer).size());
+        }
+    }
+
+    @Test
+    public void concurrentSearchesDontMixOrLeak() throws Exception {
+        final List<Callable<String>> searches = searches();
+        final List<String> expected = new ArrayList<String>();
+        for (Callable<String> search : searches) {
+            expected.add(search.call());
+        }
+        assertTrue("test data should match",
+                expected.get(0).startsWith("10:"));
+        int connectionsBefore = LeakCounter.connections.get();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        final List<Integer> which = new ArrayList<Integer>();
+        for (int i = 0; i < THREADS * ROUNDS; i++) {
+            final Callable<String> search = searches.get(i % searches.size());
+            which.add(i % searches.size());
+            futures.add(pool.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    start.await();
+                    return search.call();
+                }
+            }));
+        }
+        start.countDown();
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("search " + which.get(i) + " in parallel",
+                    expected.get(which.get(i)), futures.get(i).get());
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        assertTrue("connections were used",
+                LeakCounter.connections.get() > connectionsBefore);
+        assertEquals("connections left open", 0,
+                LeakCounter.openConnections.get());
+        assertEquals("statements left open", 0,
+                LeakCounter.openStatements.get());
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * @file SnapshotManagerTest.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Checks that swapped out versions live until the searches holding them
+ * are done.
+ * @author tpirinen
+ */
+public class SnapshotManagerTest {
+
+    @Test
+    public void oldVersionRetiresAfterLastRelease() {
+        SnapshotManager manager = new SnapshotManager();
+        assertNull(manager.acquire());
+        SnapshotManager.Version first = manager.create(null, null);
+        manager.swap(first);
+        SnapshotManager.Version held = manager.acquire();
+        assertSame(first, held);
+        SnapshotManager.Version second = manager.create(null, null);
+        manager.swap(second);
+        assertEquals(2, second.getNumber());
+        assertSame(second, manager.acquire());
+        assertEquals(1, manager.getRetiring());
+        assertEquals(0, manager.getRetired());
+        held.release();
+        assertEquals(0, manager.getRetiring());
+        assertEquals(1, manager.getRetired());
+        assertEquals(0, first.getReferences());
+        // the manager's and the search's
+        assertEquals(2, second.getReferences());
+    }
+
+    @Test
+    public void concurrentSearchesAndSwaps() throws Exception {
+        final SnapshotManager manager = new SnapshotManager();
+        manager.swap(manager.create(null, null));
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        SnapshotManager.Version version = manager.acquire();
+                        // may be swapped out already, but not retired
+                        if (version.getReferences() < 1) {
+                            failures.incrementAndGet();
+                        }
+                        version.release();
+                    }
+                    done.countDown();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        while (done.getCount() > 0) {
+            manager.swap(manager.create(null, null));
+            Thread.yield();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(0, manager.getRetiring());
+        assertEquals(manager.getSwaps() - 1, manager.getRetired());
+    }
+}
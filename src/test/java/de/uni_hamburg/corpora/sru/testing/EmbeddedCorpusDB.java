@@ -0,0 +1,104 @@
+/**
+ * @file EmbeddedCorpusDB.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.testing;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * H2 database in MySQL mode with the tables of the corpora DB that the
+ * searches use, for tests and benchmarks without the HZSK DB server.
+ * Fill it e.g. with SyntheticCorpus and give getDataSource() to
+ * SQLCorpusConnection, or to the engine in the servlet context attribute
+ * HZSKSRUSearchEngine.DATA_SOURCE_ATTRIBUTE.
+ * Fulltext indexes don't exist, so searches must not use them.
+ * @author tpirinen
+ */
+public class EmbeddedCorpusDB {
+
+    private static final String SCHEMA = "classpath:corpora-schema.sql";
+    private static final int MAX_CONNECTIONS = 64;
+
+    private final JdbcConnectionPool pool;
+    private final Connection keepAlive;
+
+    private EmbeddedCorpusDB(String url) throws SQLException {
+        // H2 keeps the cancel of a statement that had already run on its
+        // cached command and fails the next use of it, so don't cache them
+        url += ";QUERY_CACHE_SIZE=0";
+        JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL(url);
+        // keeps an in-memory DB alive and runs the schema only once
+        keepAlive = h2.getConnection();
+        Statement st = keepAlive.createStatement();
+        try {
+            st.execute("RUNSCRIPT FROM '" + SCHEMA + "'");
+        } finally {
+            st.close();
+        }
+        // searches use tables of corpora schema without schema too
+        JdbcDataSource corpora = new JdbcDataSource();
+        corpora.setURL(url + ";SCHEMA=corpora");
+        pool = JdbcConnectionPool.create(corpora);
+        pool.setMaxConnections(MAX_CONNECTIONS);
+    }
+
+    /** Create an empty corpus DB in memory, gone after close(). */
+    public static EmbeddedCorpusDB inMemory(String name) throws SQLException {
+        return new EmbeddedCorpusDB("jdbc:h2:mem:" + name +
+                ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+    }
+
+    /** Open or create a corpus DB in files named by path, e.g. for corpora
+     *  too big for memory or reused between runs.
+     */
+    public static EmbeddedCorpusDB onDisk(File path) throws SQLException {
+        // page store without transaction log loads millions of rows a few
+        // times faster into a third of the space, it's only test data
+        return new EmbeddedCorpusDB("jdbc:h2:" + path.getAbsolutePath() +
+                ";MODE=MySQL;MV_STORE=FALSE;LOG=0;UNDO_LOG=0");
+    }
+
+    /** Pooled connections to the DB. */
+    public DataSource getDataSource() {
+        return pool;
+    }
+
+    /** Get a connection, e.g. for filling the DB. Close it after use. */
+    public Connection getConnection() throws SQLException {
+        return pool.getConnection();
+    }
+
+    /** Whether the DB has any utterances yet. */
+    public boolean isEmpty() throws SQLException {
+        Statement st = keepAlive.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(
+                    "SELECT COUNT(*) FROM corpora.ex_segment");
+            rs.next();
+            return rs.getInt(1) == 0;
+        } finally {
+            st.close();
+        }
+    }
+
+    /** Shut the DB down, deleting it if in memory. */
+    public void close() throws SQLException {
+        pool.dispose();
+        Statement st = keepAlive.createStatement();
+        try {
+            st.execute("SHUTDOWN");
+        } finally {
+            keepAlive.close();
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/**
+ * @file SyntheticCorpus.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.testing;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Fills a corpus DB with synthetic spoken German for load tests.
+ * Utterances are HIAT:u segments of HIAT:w words with pos and lemma
+ * annotations, on timelines of transcriptions in corpora, like EXMARaLDA
+ * corpora dumped into the HZSK DB. Words are drawn from a vocabulary by a
+ * Zipfian distribution, the most common ones real function words and the
+ * rest made up of syllables with open class tags that are Zipfian too, so
+ * there are very common and very rare search terms of each tag. Some
+ * tokens get a second pos tag, like ambiguous tokens of real corpora.
+ * The same seed and settings give the same corpus.
+ * Run main to fill an H2 DB on disk:
+ * <pre>
+ * java ... SyntheticCorpus /tmp/corpora 1000000
+ * </pre>
+ * @author tpirinen
+ */
+public class SyntheticCorpus {
+
+    private static final Logger logger =
+        Logger.getLogger(SyntheticCorpus.class.getName());
+
+    /** word, lemma, STTS of the most common words, in order. */
+    private static final String[][] COMMON = {
+        {"ich", "ich", "PPER"}, {"und", "und", "KON"},
+        {"die", "die", "ART"}, {"das", "die", "ART"},
+        {"ja", "ja", "PTKANT"}, {"äh", "äh", "ITJ"},
+        {"ist", "sein", "VAFIN"}, {"der", "die", "ART"},
+        {"nicht", "nicht", "PTKNEG"}, {"da", "da", "ADV"},
+        {"so", "so", "ADV"}, {"wir", "wir", "PPER"},
+        {"in", "in", "APPR"}, {"du", "du", "PPER"},
+        {"es", "es", "PPER"}, {"dann", "dann", "ADV"},
+        {"habe", "haben", "VAFIN"}, {"auch", "auch", "ADV"},
+        {"mit", "mit", "APPR"}, {"was", "was", "PWS"},
+        {"ein", "ein", "ART"}, {"hm", "hm", "ITJ"},
+        {"aber", "aber", "KON"}, {"war", "sein", "VAFIN"},
+        {"dass", "dass", "KOUS"}, {"noch", "noch", "ADV"},
+        {"im", "in", "APPRART"}, {"mal", "mal", "ADV"},
+        {"zu", "zu", "PTKZU"}, {"kann", "können", "VMFIN"},
+        {"schon", "schon", "ADV"}, {"wie", "wie", "KOKOM"},
+        {"man", "man", "PIS"}, {"sie", "sie", "PPER"},
+        {"ähm", "ähm", "ITJ"}, {"hier", "hier", "ADV"},
+        {"also", "also", "ADV"}, {"eine", "ein", "ART"},
+        {"den", "die", "ART"}, {"haben", "haben", "VAFIN"},
+        {"immer", "immer", "ADV"}, {"weiß", "wissen", "VVFIN"},
+        {"gesagt", "sagen", "VVPP"}, {"gut", "gut", "ADJD"},
+        {"Leute", "Leute", "NN"}, {"Hamburg", "Hamburg", "NE"},
+    };
+
+    /** Open class tags for made up words, most common first. */
+    private static final String[] OPEN_TAGS = {"NN", "ADJA", "VVFIN",
+        "VVINF", "ADV", "NE", "VVPP", "ADJD", "CARD", "FM", "TRUNC"};
+
+    private static final String[] ONSETS = {"b", "d", "f", "g", "h", "k",
+        "l", "m", "n", "p", "r", "s", "t", "w", "z", "sch", "st", "br",
+        "kr", "tr", "pf", "ge", "be", "ver"};
+    private static final String[] NUCLEI = {"a", "e", "i", "o", "u", "ä",
+        "ö", "ü", "ei", "au", "ie", "eu"};
+    private static final String[] CODAS = {"", "", "n", "r", "s", "t",
+        "ch", "ng", "l", "nd", "st", "ck"};
+
+    /** Second tags of ambiguous tokens. */
+    private static final String[] AMBIGUOUS = {"PDS", "ADV", "PTKVZ", "PIS"};
+
+    private static final String SEGMENTATION =
+        "SpeakerContribution_Utterance_Word";
+    private static final int BATCH = 1000;
+    private static final int COMMIT = 20000;
+
+    /** Samples ranks 0 to n - 1 with probability proportional to
+     *  1 / (rank + 1)^s.
+     */
+    public static class ZipfSampler {
+        private final double[] cdf;
+
+        public ZipfSampler(int n, double s) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1.0 / Math.pow(i + 1, s);
+                cdf[i] = sum;
+            }
+        }
+
+        public int sample(Random random) {
+            double u = random.nextDouble() * cdf[cdf.length - 1];
+            int i = Arrays.binarySearch(cdf, u);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return Math.min(i, cdf.length - 1);
+        }
+    }
+
+    private final long seed;
+    private int corpora = 4;
+    private int transcriptionsPerCorpus = 50;
+    private int vocabularySize = 50000;
+    private double wordExponent = 1.07;
+    private double tagExponent = 1.2;
+    private double meanTokens = 8;
+    private double ambiguity = 0.02;
+
+    private String[] words;
+    private String[] lemmas;
+    private String[] tags;
+    private long utteranceCount;
+    private long tokenCount;
+    private long annotationCount;
+
+    public SyntheticCorpus(long seed) {
+        this.seed = seed;
+    }
+
+    public void setCorpora(int corpora) {
+        this.corpora = corpora;
+    }
+
+    public void setTranscriptionsPerCorpus(int transcriptionsPerCorpus) {
+        this.transcriptionsPerCorpus = transcriptionsPerCorpus;
+    }
+
+    public void setVocabularySize(int vocabularySize) {
+        this.vocabularySize = vocabularySize;
+    }
+
+    /** Zipf exponent of words, about 1 for natural language. */
+    public void setWordExponent(double wordExponent) {
+        this.wordExponent = wordExponent;
+    }
+
+    /** Mean length of utterances in words, spoken ones are short. */
+    public void setMeanTokens(double meanTokens) {
+        this.meanTokens = meanTokens;
+    }
+
+    /** Share of tokens with a second pos tag. */
+    public void setAmbiguity(double ambiguity) {
+        this.ambiguity = ambiguity;
+    }
+
+    /** Get word of a frequency rank, 0 the most common. */
+    public String getWord(int rank) {
+        makeVocabulary();
+        return words[rank];
+    }
+
+    public String getLemma(int rank) {
+        makeVocabulary();
+        return lemmas[rank];
+    }
+
+    public String getTag(int rank) {
+        makeVocabulary();
+        return tags[rank];
+    }
+
+    public long getUtteranceCount() {
+        return utteranceCount;
+    }
+
+    public long getTokenCount() {
+        return tokenCount;
+    }
+
+    public long getAnnotationCount() {
+        return annotationCount;
+    }
+
+    /** Make the vocabulary, common words first then made up ones. */
+    private void makeVocabulary() {
+        if (words != null) {
+            return;
+        }
+        Random random = new Random(seed);
+        ZipfSampler tagSampler = new ZipfSampler(OPEN_TAGS.length,
+                tagExponent);
+        int size = Math.max(vocabularySize, COMMON.length);
+        words = new String[size];
+        lemmas = new String[size];
+        tags = new String[size];
+        Set<String> used = new HashSet<String>();
+        for (int i = 0; i < COMMON.length; i++) {
+            words[i] = COMMON[i][0];
+            lemmas[i] = COMMON[i][1];
+            tags[i] = COMMON[i][2];
+            used.add(words[i]);
+        }
+        for (int i = COMMON.length; i < size; i++) {
+            String tag = OPEN_TAGS[tagSampler.sample(random)];
+            String stem;
+            do {
+                StringBuilder sb = new StringBuilder();
+                int syllables = 1 + random.nextInt(3);
+                for (int s = 0; s < syllables; s++) {
+                    sb.append(ONSETS[random.nextInt(ONSETS.length)]);
+                    sb.append(NUCLEI[random.nextInt(NUCLEI.length)]);
+                    sb.append(CODAS[random.nextInt(CODAS.length)]);
+                }
+                stem = sb.toString();
+            } while (!used.add(stem + tag));
+            tags[i] = tag;
+            if (tag.equals("NN") || tag.equals("NE")) {
+                words[i] = Character.toUpperCase(stem.charAt(0)) +
+                    stem.substring(1);
+                lemmas[i] = words[i];
+            } else if (tag.equals("VVFIN")) {
+                words[i] = stem + "t";
+                lemmas[i] = stem + "en";
+            } else if (tag.equals("VVINF")) {
+                words[i] = stem + "en";
+                lemmas[i] = words[i];
+            } else if (tag.equals("VVPP")) {
+                words[i] = "ge" + stem + "t";
+                lemmas[i] = stem + "en";
+            } else if (tag.equals("ADJA")) {
+                words[i] = stem + "e";
+                lemmas[i] = stem;
+            } else if (tag.equals("CARD")) {
+                words[i] = String.valueOf(i);
+                lemmas[i] = words[i];
+            } else {
+                words[i] = stem;
+                lemmas[i] = stem;
+            }
+        }
+    }
+
+    /** Add utterances to the corpus DB, committing every now and then.
+     *  Ids continue from nothing, so fill an empty DB only once.
+     */
+    public void generate(Connection c, int utterances) throws SQLException {
+        makeVocabulary();
+        Random random = new Random(seed + 1);
+        // own random, so that ambiguity doesn't change the words
+        Random ambiguous = new Random(seed + 2);
+        ZipfSampler wordSampler = new ZipfSampler(words.length,
+                wordExponent);
+        boolean autoCommit = c.getAutoCommit();
+        c.setAutoCommit(false);
+        PreparedStatement corpus = c.prepareStatement(
+                "INSERT INTO corpora.ex_corpus VALUES (?, ?, ?)");
+        PreparedStatement desc = c.prepareStatement(
+                "INSERT INTO corpora.ex_corpus_desc_item VALUES (?, ?, ?)");
+        PreparedStatement transcription = c.prepareStatement(
+                "INSERT INTO corpora.ex_segmented_transcription " +
+                "VALUES (?, ?, ?, ?, ?)");
+        PreparedStatement tli = c.prepareStatement(
+                "INSERT INTO corpora.ex_timeline_item VALUES (?, ?, ?)");
+        PreparedStatement seg = c.prepareStatement(
+                "INSERT INTO corpora.ex_segment VALUES " +
+                "(?, ?, ?, ?, '" + SEGMENTATION + "', ?, ?, ?, ?, ?)");
+        PreparedStatement ann = c.prepareStatement(
+                "INSERT INTO corpora.ex_annotation_segment VALUES (?, ?, ?)");
+        PreparedStatement has = c.prepareStatement(
+                "INSERT INTO corpora.ex_segment_has_annotation VALUES (?, ?)");
+        List<PreparedStatement> inserts = Arrays.asList(corpus, desc,
+                transcription, tli, seg, ann, has);
+        try {
+            int transcriptions = corpora * transcriptionsPerCorpus;
+            for (int k = 0; k < corpora; k++) {
+                String guid = "synthetic-" + k;
+                corpus.setString(1, guid);
+                corpus.setString(2, "SYNTH" + k);
+                corpus.setString(3, "http://corpora.uni-hamburg.de/synth/" +
+                        k);
+                corpus.addBatch();
+                String[][] items = {{"pid", "hdl:11022/synth-" + k},
+                    {"title:en", "Synthetic corpus " + k},
+                    {"description:en", "Generated for load tests"},
+                    {"languages", "deu"}};
+                for (String[] item : items) {
+                    desc.setString(1, guid);
+                    desc.setString(2, item[0]);
+                    desc.setString(3, item[1]);
+                    desc.addBatch();
+                }
+            }
+            for (int t = 0; t < transcriptions; t++) {
+                transcription.setString(1, "synthetic-t" + t);
+                transcription.setString(2, "synthetic-" + (t % corpora));
+                transcription.setString(3, "SYNTH" + (t % corpora) + "_" + t);
+                transcription.setString(4,
+                        "http://corpora.uni-hamburg.de/synth/t" + t);
+                transcription.setString(5,
+                        "http://corpora.uni-hamburg.de/synth/t" + t + ".exs");
+                transcription.addBatch();
+            }
+            // running positions of each transcription
+            int[] chars = new int[transcriptions];
+            int[] lastTli = new int[transcriptions];
+            double[] times = new double[transcriptions];
+            int tliId = 0;
+            int segmentId = 0;
+            int annotationId = 0;
+            int pending = 0;
+            for (int u = 0; u < utterances; u++) {
+                int t = random.nextInt(transcriptions);
+                String tguid = "synthetic-t" + t;
+                int length = 1 + (int) (-(meanTokens - 1) *
+                        Math.log(1 - random.nextDouble()));
+                length = Math.min(length, (int) (meanTokens * 8));
+                int[] ranks = new int[length];
+                StringBuilder text = new StringBuilder();
+                for (int w = 0; w < length; w++) {
+                    ranks[w] = wordSampler.sample(random);
+                    if (w > 0) {
+                        text.append(' ');
+                    }
+                    text.append(words[ranks[w]]);
+                }
+                if (lastTli[t] == 0) {
+                    tliId++;
+                    addTli(tli, tliId, tguid, times[t]);
+                    lastTli[t] = tliId;
+                }
+                int utteranceId = ++segmentId;
+                int utteranceTli = lastTli[t];
+                int utteranceChar = chars[t];
+                // words first to know where the utterance ends
+                for (int w = 0; w < length; w++) {
+                    String word = words[ranks[w]];
+                    times[t] += 0.05 + 0.06 * word.length();
+                    tliId++;
+                    addTli(tli, tliId, tguid, times[t]);
+                    segmentId++;
+                    addSegment(seg, segmentId, tguid, utteranceId, "HIAT:w",
+                            word, chars[t], lastTli[t], tliId);
+                    lastTli[t] = tliId;
+                    chars[t] += word.length() + 1;
+                    List<String[]> annotations = new ArrayList<String[]>();
+                    annotations.add(new String[] {"pos", tags[ranks[w]]});
+                    if (ambiguous.nextDouble() < ambiguity) {
+                        String second = AMBIGUOUS[ambiguous.nextInt(
+                                AMBIGUOUS.length)];
+                        if (!second.equals(tags[ranks[w]])) {
+                            annotations.add(new String[] {"pos", second});
+                        }
+                    }
+                    annotations.add(new String[] {"lemma", lemmas[ranks[w]]});
+                    for (String[] a : annotations) {
+                        annotationId++;
+                        ann.setInt(1, annotationId);
+                        ann.setString(2, a[0]);
+                        ann.setString(3, a[1]);
+                        ann.addBatch();
+                        has.setInt(1, segmentId);
+                        has.setInt(2, annotationId);
+                        has.addBatch();
+                        annotationCount++;
+                    }
+                    tokenCount++;
+                }
+                addSegment(seg, utteranceId, tguid, -1, "HIAT:u",
+                        text.toString(), utteranceChar, utteranceTli,
+                        lastTli[t]);
+                // pause between utterances
+                times[t] += 0.3;
+                utteranceCount++;
+                pending += length;
+                if (pending >= BATCH) {
+                    executeBatches(inserts);
+                    pending = 0;
+                }
+                if ((u + 1) % COMMIT == 0) {
+                    c.commit();
+                    logger.fine(u + 1 + " utterances");
+                }
+            }
+            executeBatches(inserts);
+            c.commit();
+        } finally {
+            for (PreparedStatement insert : inserts) {
+                insert.close();
+            }
+            c.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static void addTli(PreparedStatement tli, int id, String tguid,
+            double time) throws SQLException {
+        tli.setInt(1, id);
+        tli.setString(2, tguid);
+        tli.setDouble(3, time);
+        tli.addBatch();
+    }
+
+    private static void addSegment(PreparedStatement seg, int id,
+            String tguid, int parent, String name, String text, int start,
+            int tliStart, int tliEnd) throws SQLException {
+        seg.setInt(1, id);
+        seg.setString(2, tguid);
+        if (parent == -1) {
+            seg.setNull(3, java.sql.Types.INTEGER);
+        } else {
+            seg.setInt(3, parent);
+        }
+        seg.setString(4, name);
+        seg.setString(5, text);
+        seg.setInt(6, start);
+        seg.setInt(7, start + text.length());
+        seg.setInt(8, tliStart);
+        seg.setInt(9, tliEnd);
+        seg.addBatch();
+    }
+
+    private static void executeBatches(List<PreparedStatement> inserts)
+            throws SQLException {
+        for (PreparedStatement insert : inserts) {
+            insert.executeBatch();
+        }
+    }
+
+    /** Fill an H2 DB on disk: path utterances [seed] */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticCorpus PATH UTTERANCES " +
+                    "[SEED]");
+            System.exit(1);
+        }
+        int utterances = Integer.parseInt(args[1]);
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 1;
+        EmbeddedCorpusDB db = EmbeddedCorpusDB.onDisk(new File(args[0]));
+        try {
+            if (!db.isEmpty()) {
+                System.err.println(args[0] + " has a corpus already");
+                System.exit(1);
+            }
+            SyntheticCorpus corpus = new SyntheticCorpus(seed);
+            long started = System.currentTimeMillis();
+            Connection c = db.getConnection();
+            try {
+                corpus.generate(c, utterances);
+            } finally {
+                c.close();
+            }
+            System.out.println(corpus.getUtteranceCount() + " utterances, " +
+                    corpus.getTokenCount() + " tokens in " +
+                    (System.currentTimeMillis() - started) + " ms");
+        } finally {
+            db.close();
+        }
+    }
+}
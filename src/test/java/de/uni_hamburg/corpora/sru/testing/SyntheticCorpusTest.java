@@ -0,0 +1,253 @@
+/**
+ * @file SyntheticCorpusTest.java
+ * @copyright Hamburger Zentrum für Sprach Korpora
+ */
+package de.uni_hamburg.corpora.sru.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.uni_hamburg.corpora.sru.AdvancedSearchResult;
+import de.uni_hamburg.corpora.sru.AdvancedSearchResultSegment;
+import de.uni_hamburg.corpora.sru.AdvancedSearchResultSet;
+import de.uni_hamburg.corpora.sru.CorpusSnapshot;
+import de.uni_hamburg.corpora.sru.HZSKQuery;
+import de.uni_hamburg.corpora.sru.InvertedIndex;
+import de.uni_hamburg.corpora.sru.SQLCorpusConnection;
+
+/**
+ * Checks that a synthetic corpus in the embedded DB has Zipfian words and
+ * can be searched with SQLCorpusConnection.
+ * @author tpirinen
+ */
+public class SyntheticCorpusTest {
+
+    private static final int UTTERANCES = 3000;
+
+    private static EmbeddedCorpusDB db;
+    private static SyntheticCorpus synthetic;
+    private static SQLCorpusConnection corpus;
+
+    @BeforeClass
+    public static void generate() throws Exception {
+        db = EmbeddedCorpusDB.inMemory("synthetic");
+        synthetic = new SyntheticCorpus(42);
+        synthetic.setVocabularySize(5000);
+        Connection c = db.getConnection();
+        try {
+            synthetic.generate(c, UTTERANCES);
+        } finally {
+            c.close();
+        }
+        corpus = new SQLCorpusConnection(db.getDataSource());
+        corpus.setUseFulltext(false);
+    }
+
+    @AfterClass
+    public static void drop() throws Exception {
+        db.close();
+    }
+
+    private static int count(String sql) throws SQLException {
+        Connection c = db.getConnection();
+        try {
+            Statement st = c.createStatement();
+            ResultSet rs = st.executeQuery(sql);
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static int wordCount(String word) throws SQLException {
+        return count("SELECT COUNT(*) FROM corpora.ex_segment WHERE " +
+                "name = 'HIAT:w' AND cdata = '" + word + "'");
+    }
+
+    @Test
+    public void generatesRowsOfAllTables() throws Exception {
+        assertEquals(UTTERANCES, count("SELECT COUNT(*) FROM " +
+                    "corpora.ex_segment WHERE name = 'HIAT:u'"));
+        assertEquals(synthetic.getTokenCount(), count("SELECT COUNT(*) " +
+                    "FROM corpora.ex_segment WHERE name = 'HIAT:w'"));
+        assertEquals(synthetic.getAnnotationCount(), count("SELECT " +
+                    "COUNT(*) FROM corpora.ex_segment_has_annotation"));
+        assertTrue("ambiguous tokens", synthetic.getAnnotationCount() >
+                2 * synthetic.getTokenCount());
+        assertTrue("timeline items",
+                count("SELECT COUNT(*) FROM corpora.ex_timeline_item") >
+                synthetic.getTokenCount());
+    }
+
+    @Test
+    public void wordsAreZipfian() throws Exception {
+        int first = wordCount(synthetic.getWord(0));
+        int tenth = wordCount(synthetic.getWord(9));
+        int hundredth = wordCount(synthetic.getWord(99));
+        assertTrue("rank 1 " + first + " vs 10 " + tenth,
+                first > 5 * tenth);
+        assertTrue("rank 10 " + tenth + " vs 100 " + hundredth,
+                tenth > 5 * hundredth);
+    }
+
+    @Test
+    public void searchFindsAndHighlightsWords() throws Exception {
+        String word = synthetic.getWord(45);
+        AdvancedSearchResultSet results =
+            corpus.query(new HZSKQuery(word), 0, 10);
+        assertTrue("hits for " + word, results.getLength() > 0);
+        for (int i = 0; i < results.getLength(); i++) {
+            AdvancedSearchResult rec = results.getRecordAt(i);
+            boolean highlighted = false;
+            for (AdvancedSearchResultSegment seg :
+                    rec.getResultHighlights()) {
+                highlighted |= seg.isHighlighted() &&
+                    seg.getText().equals(word);
+            }
+            assertTrue("highlight in " + rec.getResultText().getText(),
+                    highlighted);
+            assertTrue("layers", rec.getChildLayers().containsKey("pos"));
+        }
+    }
+
+    private static double timeOf(int segmentId, String tli)
+            throws SQLException {
+        Connection c = db.getConnection();
+        try {
+            Statement st = c.createStatement();
+            ResultSet rs = st.executeQuery("SELECT time FROM " +
+                    "corpora.ex_timeline_item JOIN corpora.ex_segment ON " +
+                    "tli_id = " + tli + " WHERE segment_id = " + segmentId);
+            rs.next();
+            return rs.getDouble(1) * 1000;
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void searchPositionsInTime() throws Exception {
+        HZSKQuery query = new HZSKQuery(synthetic.getWord(45));
+        query.setTimePositions(true);
+        AdvancedSearchResultSet results = corpus.query(query, 0, 5);
+        assertTrue("hits", results.getLength() > 0);
+        for (int i = 0; i < results.getLength(); i++) {
+            AdvancedSearchResult rec = results.getRecordAt(i);
+            assertEquals(timeOf(rec.getSegmentId(), "tli_s"),
+                    rec.getResultText().getStart(), 1e-6);
+            assertEquals(timeOf(rec.getSegmentId(), "tli_e"),
+                    rec.getResultText().getEnd(), 1e-6);
+            for (AdvancedSearchResultSegment seg :
+                    rec.getChildLayers().get("pos")) {
+                assertTrue("token in utterance time",
+                        (seg.getStart() >= rec.getResultText().getStart()) &&
+                        (seg.getEnd() <= rec.getResultText().getEnd()));
+            }
+        }
+    }
+
+    @Test
+    public void searchFindsTags() throws Exception {
+        AdvancedSearchResultSet results =
+            corpus.query(new HZSKQuery("pos", "NOUN"), 0, 10);
+        assertEquals(10, results.getLength());
+        AdvancedSearchResultSet next =
+            corpus.query(new HZSKQuery("pos", "NOUN"), 10, 10);
+        assertEquals(10, next.getLength());
+        int previous = -1;
+        for (AdvancedSearchResultSet page : Arrays.asList(results, next)) {
+            for (int i = 0; i < page.getLength(); i++) {
+                AdvancedSearchResult rec = page.getRecordAt(i);
+                assertTrue("distinct utterances in order",
+                        rec.getSegmentId() > previous);
+                previous = rec.getSegmentId();
+                boolean highlighted = false;
+                for (AdvancedSearchResultSegment seg :
+                        rec.getResultHighlights()) {
+                    highlighted |= seg.isHighlighted();
+                }
+                assertTrue("highlight in " + rec.getResultText().getText(),
+                        highlighted);
+                assertTrue("layers", rec.getChildLayers().containsKey("pos"));
+            }
+        }
+    }
+
+    /** Render what a record shows, to compare records of DB and snapshot. */
+    private static String render(AdvancedSearchResult rec) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(rec.getSegmentId()).append(' ').append(rec.getSource())
+            .append(' ').append(rec.getPID()).append(' ')
+            .append(rec.getResultText().getStart()).append('-')
+            .append(rec.getResultText().getEnd()).append(' ');
+        for (AdvancedSearchResultSegment seg : rec.getResultHighlights()) {
+            sb.append(seg.isHighlighted() ? "[" + seg.getText() + "]" :
+                    seg.getText());
+        }
+        for (Map.Entry<String, List<AdvancedSearchResultSegment>> layer :
+                rec.getChildLayers().entrySet()) {
+            sb.append(' ').append(layer.getKey()).append(':');
+            for (AdvancedSearchResultSegment seg : layer.getValue()) {
+                sb.append(' ').append(seg.getText()).append('/')
+                    .append(seg.getAnnotation()).append('@')
+                    .append(seg.getStart()).append('-').append(seg.getEnd());
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void snapshotServesSameRecords() throws Exception {
+        File file = File.createTempFile("synthetic", ".hzsc");
+        file.deleteOnExit();
+        CorpusSnapshot.Writer writer = new CorpusSnapshot.Writer();
+        corpus.exportSnapshot(writer);
+        writer.write(file);
+        CorpusSnapshot snapshot = CorpusSnapshot.open(file);
+        assertEquals(UTTERANCES, snapshot.getUtteranceCount());
+        SQLCorpusConnection fromSnapshot =
+            new SQLCorpusConnection(db.getDataSource());
+        fromSnapshot.setUseFulltext(false);
+        fromSnapshot.setSnapshot(snapshot);
+        HZSKQuery inTime = new HZSKQuery(synthetic.getWord(45));
+        inTime.setTimePositions(true);
+        for (HZSKQuery query : Arrays.asList(
+                    new HZSKQuery(synthetic.getWord(45)),
+                    new HZSKQuery("pos", "NOUN"),
+                    // PDS is only ever a second tag
+                    new HZSKQuery("pos", "PDS"), inTime)) {
+            AdvancedSearchResultSet expected = corpus.query(query, 0, 10);
+            AdvancedSearchResultSet actual = fromSnapshot.query(query, 0, 10);
+            assertEquals(expected.getLength(), actual.getLength());
+            for (int i = 0; i < expected.getLength(); i++) {
+                assertEquals(render(expected.getRecordAt(i)),
+                        render(actual.getRecordAt(i)));
+            }
+        }
+        InvertedIndex.Builder dbIndex = new InvertedIndex.Builder();
+        corpus.buildIndex(dbIndex);
+        InvertedIndex.Builder snapshotIndex = new InvertedIndex.Builder();
+        fromSnapshot.buildIndex(snapshotIndex);
+        InvertedIndex expected = dbIndex.build();
+        InvertedIndex actual = snapshotIndex.build();
+        assertEquals(expected.toString(), actual.toString());
+        HZSKQuery pds = new HZSKQuery("pos", "PDS");
+        assertTrue("ambiguous tokens", expected.search(pds).size() > 0);
+        assertEquals(expected.search(pds).size(),
+                actual.search(pds).size());
+    }
+}
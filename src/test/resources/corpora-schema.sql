@@ -0,0 +1,51 @@
+-- Subset of the corpora DB used by the searches, for embedded H2 tests in
+-- MySQL mode, see de.uni_hamburg.corpora.sru.testing.EmbeddedCorpusDB
+CREATE SCHEMA IF NOT EXISTS corpora;
+SET SCHEMA corpora;
+CREATE TABLE IF NOT EXISTS ex_corpus (
+    corpus_guid VARCHAR(64) PRIMARY KEY,
+    name VARCHAR(255),
+    corpus_location VARCHAR(255));
+CREATE TABLE IF NOT EXISTS ex_corpus_desc_item (
+    corpus_guid VARCHAR(64),
+    attribute VARCHAR(64),
+    value VARCHAR(1024));
+CREATE TABLE IF NOT EXISTS ex_segmented_transcription (
+    transcription_guid VARCHAR(64) PRIMARY KEY,
+    corpus_guid VARCHAR(64),
+    name VARCHAR(255),
+    avail_url VARCHAR(255),
+    file_url VARCHAR(255));
+CREATE TABLE IF NOT EXISTS ex_timeline_item (
+    tli_id INT PRIMARY KEY,
+    transcription_guid VARCHAR(64),
+    time DOUBLE);
+CREATE TABLE IF NOT EXISTS ex_segment (
+    segment_id INT PRIMARY KEY,
+    transcription_guid VARCHAR(64),
+    parent INT,
+    name VARCHAR(64),
+    segmentation VARCHAR(64),
+    cdata TEXT,
+    char_s INT,
+    char_e INT,
+    tli_s INT,
+    tli_e INT);
+CREATE INDEX IF NOT EXISTS ex_segment_parent ON ex_segment (parent);
+CREATE TABLE IF NOT EXISTS ex_annotation_segment (
+    annotation_id INT PRIMARY KEY,
+    name VARCHAR(64),
+    cdata VARCHAR(255));
+CREATE TABLE IF NOT EXISTS ex_segment_has_annotation (
+    segment_id INT,
+    annotation_id INT);
+-- the same lookups are indexed in the corpora DB
+CREATE INDEX IF NOT EXISTS ex_segment_name ON ex_segment (name, segmentation);
+CREATE INDEX IF NOT EXISTS ex_timeline_item_transcription
+    ON ex_timeline_item (transcription_guid);
+CREATE INDEX IF NOT EXISTS ex_segment_has_annotation_segment
+    ON ex_segment_has_annotation (segment_id);
+CREATE INDEX IF NOT EXISTS ex_segment_has_annotation_annotation
+    ON ex_segment_has_annotation (annotation_id);
+CREATE INDEX IF NOT EXISTS ex_annotation_segment_name
+    ON ex_annotation_segment (name, cdata);